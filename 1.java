@@ -40,24 +40,17 @@ public class Main {
         return a % b;
     }
 
-    // Проверка введеных чисел и знака
-    static boolean isValid(String[] parts) {
-        if (parts.length != 3) {
-            return false;
-        }
-
-        // Проверка чисел, что они действительно числа
-        try {
-            Double.parseDouble(parts[0]);
-            Double.parseDouble(parts[2]);
-        } catch (NumberFormatException e) {
-            return false;
+    // Позиция знака операции в строке или -1. Знак первого числа (-2 + 3) и знак порядка (1e-5)
+    // знаком операции не считаются, поэтому пробелы вокруг знака не обязательны ("2+3")
+    static int findOperator(String input) {
+        for (int i = 1; i < input.length(); i++) {
+            char c = input.charAt(i);
+            char previous = input.charAt(i - 1);
+            if ("+-*/^%".indexOf(c) >= 0 && previous != 'e' && previous != 'E') {
+                return i;
+            }
         }
-
-        // Проверка на поддерживаемый знак
-        String op = parts[1];
-        return op.equals("+") || op.equals("-") || op.equals("*") ||
-                op.equals("/") || op.equals("//") || op.equals("^") || op.equals("%");
+        return -1;
     }
 
     public static void main(String[] args) {
@@ -69,6 +62,7 @@ public class Main {
 
         while (true) { //бесконечный цикл, в котором запрашиваем выражение и обрабатываем его.
             System.out.print("\nВведите выражение: ");
+            if (!scanner.hasNextLine()) break; // ввод закончился
             String input = scanner.nextLine().trim();
 
             if (input.equalsIgnoreCase("exit") || input.equalsIgnoreCase("учше")) { //сравниваем строку игнорируя регистр
@@ -76,17 +70,24 @@ public class Main {
                 break;
             }
 
-            // Разбиваем строку на части. В качестве разделителя используем пробел (из примеров к заданию)
-            String[] parts = input.split(" ");
-            if (!isValid(parts)) {
+            // Делим строку по знаку операции за один проход, без split; каждое число разбираем один раз
+            int opIndex = findOperator(input);
+            if (opIndex < 0) {
                 System.out.println("Неверное выражение. Введите еще раз.");
                 continue;
             }
+            int opEnd = input.startsWith("//", opIndex) ? opIndex + 2 : opIndex + 1;
+            String op = input.substring(opIndex, opEnd);
 
-            // Проверка чисел, что они действительно числа
-            double a = Double.parseDouble(parts[0]);
-            String op = parts[1];
-            double b = Double.parseDouble(parts[2]);
+            double a;
+            double b;
+            try {
+                a = Double.parseDouble(input.substring(0, opIndex));
+                b = Double.parseDouble(input.substring(opEnd));
+            } catch (NumberFormatException e) {
+                System.out.println("Неверное выражение. Введите еще раз.");
+                continue;
+            }
 
             try {
                 double result = 0;
@@ -1,33 +1,142 @@
-import java.util.Scanner;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleBinaryOperator;
+import java.util.stream.IntStream;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 // Типы операций
-enum OperationType {
-    ADD("+"),
-    SUBTRACT("-"),
-    MULTIPLY("*"),
-    DIVIDE("/"),
-    INT_DIVIDE("//"),
-    POWER("^"),
-    MODULO("%");
+// Каждый тип несёт функцию без состояния (double, double) -> double,
+// поэтому вычисление через apply не создаёт объектов.
+enum OperationType implements Main.CalculatorOperator {
+    ADD("+", ADDITIVE, (a, b) -> a + b),
+    SUBTRACT("-", ADDITIVE, (a, b) -> a - b),
+    MULTIPLY("*", MULTIPLICATIVE, (a, b) -> a * b),
+    DIVIDE("/", MULTIPLICATIVE, (a, b) -> {
+        if (b == 0) throw new ArithmeticException("Ошибка - деление на 0.");
+        return a / b;
+    }),
+    INT_DIVIDE("//", MULTIPLICATIVE, (a, b) -> {
+        if (isIntegerZero(b)) throw new ArithmeticException("Ошибка - деление на 0.");
+        // long, а не int: при int всё больше 2^31 молча обрезалось. От 2^63 и long
+        // насыщается, поэтому такие операнды делятся в double с отбрасыванием дробной части
+        if (Math.abs(a) >= 0x1p63 || Math.abs(b) >= 0x1p63) {
+            double quotient = truncate(a) / truncate(b);
+            return truncate(quotient) + 0.0;
+        }
+        return (long) a / (long) b;
+    }),
+    POWER("^", EXPONENT, Math::pow),
+    MODULO("%", MULTIPLICATIVE, (a, b) -> {
+        if (b == 0) throw new ArithmeticException("Ошибка - деление на 0.");
+        return a % b;
+    });
+
+    private static final OperationType[] VALUES = values();
 
     private final String symbol;
+    private final int precedence;
+    private final DoubleBinaryOperator kernel;
 
-    OperationType(String symbol) {
+    OperationType(String symbol, int precedence, DoubleBinaryOperator kernel) {
         this.symbol = symbol;
+        this.precedence = precedence;
+        this.kernel = kernel;
     }
 
+    @Override
     public String getSymbol() {
         return symbol;
     }
 
+    @Override
+    public int getPrecedence() {
+        return precedence;
+    }
+
+    public DoubleBinaryOperator getKernel() {
+        return kernel;
+    }
+
+    // Вычисление операции без создания объекта Operation
+    @Override
+    public double apply(double a, double b) throws ArithmeticException {
+        return kernel.applyAsDouble(a, b);
+    }
+
+    // Делитель целочисленного деления: дробная часть отбрасывается, поэтому |b| < 1 - это деление на 0
+    static boolean isIntegerZero(double b) {
+        return (long) b == 0;
+    }
+
+    private static double truncate(double value) {
+        return value < 0 ? Math.ceil(value) : Math.floor(value);
+    }
+
+    // Поиск по коду оператора из OperatorRegistry; null - оператор подключён через ServiceLoader
+    public static OperationType fromCode(int code) {
+        return code >= 0 && code < VALUES.length ? VALUES[code] : null;
+    }
+
     // Поиск по символу
     public static OperationType fromSymbol(String symbol) {
-        for (OperationType type : values()) {
-            if (type.symbol.equals(symbol)) {
-                return type;
-            }
-        }
-        return null;
+        return fromCode(OperatorRegistry.lookup(symbol));
     }
 }
 
@@ -44,6 +153,13 @@ abstract class Operation {
 
     // Метод, который возвращает результат операции
     public abstract double getResult() throws ArithmeticException;
+
+    public abstract OperationType getType();
+
+    // Результат в десятичной арифметике с округлением по context (режим точности)
+    public BigDecimal getPreciseResult(MathContext context) throws ArithmeticException {
+        return new PreciseArithmetic(context).apply(getType(), BigDecimal.valueOf(operand1), BigDecimal.valueOf(operand2));
+    }
 }
 
 // Реализации операций
@@ -54,7 +170,12 @@ class Addition extends Operation {
 
     @Override
     public double getResult() {
-        return operand1 + operand2;
+        return OperationType.ADD.apply(operand1, operand2);
+    }
+
+    @Override
+    public OperationType getType() {
+        return OperationType.ADD;
     }
 }
 
@@ -65,7 +186,12 @@ class Subtraction extends Operation {
 
     @Override
     public double getResult() {
-        return operand1 - operand2;
+        return OperationType.SUBTRACT.apply(operand1, operand2);
+    }
+
+    @Override
+    public OperationType getType() {
+        return OperationType.SUBTRACT;
     }
 }
 
@@ -76,7 +202,12 @@ class Multiplication extends Operation {
 
     @Override
     public double getResult() {
-        return operand1 * operand2;
+        return OperationType.MULTIPLY.apply(operand1, operand2);
+    }
+
+    @Override
+    public OperationType getType() {
+        return OperationType.MULTIPLY;
     }
 }
 
@@ -87,8 +218,12 @@ class Division extends Operation {
 
     @Override
     public double getResult() {
-        if (operand2 == 0) throw new ArithmeticException("Ошибка - деление на 0.");
-        return operand1 / operand2;
+        return OperationType.DIVIDE.apply(operand1, operand2);
+    }
+
+    @Override
+    public OperationType getType() {
+        return OperationType.DIVIDE;
     }
 }
 
@@ -99,8 +234,12 @@ class IntDivision extends Operation {
 
     @Override
     public double getResult() {
-        if ((int) operand2 == 0) throw new ArithmeticException("Ошибка - деление на 0.");
-        return (int) operand1 / (int) operand2;
+        return OperationType.INT_DIVIDE.apply(operand1, operand2);
+    }
+
+    @Override
+    public OperationType getType() {
+        return OperationType.INT_DIVIDE;
     }
 }
 
@@ -111,7 +250,12 @@ class Power extends Operation {
 
     @Override
     public double getResult() {
-        return Math.pow(operand1, operand2);
+        return OperationType.POWER.apply(operand1, operand2);
+    }
+
+    @Override
+    public OperationType getType() {
+        return OperationType.POWER;
     }
 }
 
@@ -122,8 +266,12 @@ class Modulo extends Operation {
 
     @Override
     public double getResult() {
-        if (operand2 == 0) throw new ArithmeticException("Ошибка - деление на 0.");
-        return operand1 % operand2;
+        return OperationType.MODULO.apply(operand1, operand2);
+    }
+
+    @Override
+    public OperationType getType() {
+        return OperationType.MODULO;
     }
 }
 
@@ -134,83 +282,4284 @@ class Calculator {
     public double calculate(Operation operation) {
         return operation.getResult();
     }
+
+    // Вычисление в режиме точности
+    public BigDecimal calculate(Operation operation, MathContext context) {
+        return operation.getPreciseResult(context);
+    }
+
+    // Вычисление без создания объекта операции
+    public double calculate(OperationType type, double a, double b) {
+        return type.apply(a, b);
+    }
+
+    // Вычисление по коду оператора из OperatorRegistry (в том числе подключённого)
+    public double calculate(int operator, double a, double b) {
+        return OperatorRegistry.apply(operator, a, b);
+    }
 }
 
-// Класс для валидации выражений
-class Validator {
-    public static boolean isValid(String[] parts) {
-        if (parts.length != 3) return false;
+// Создание объекта операции по её типу
+class OperationFactory {
+    public static Operation create(OperationType type, double a, double b) {
+        return switch (type) {
+            case ADD -> new Addition(a, b);
+            case SUBTRACT -> new Subtraction(a, b);
+            case MULTIPLY -> new Multiplication(a, b);
+            case DIVIDE -> new Division(a, b);
+            case INT_DIVIDE -> new IntDivision(a, b);
+            case POWER -> new Power(a, b);
+            case MODULO -> new Modulo(a, b);
+        };
+    }
+}
+
+// Реестр операторов: встроенные OperationType (коды 0..6 совпадают с ordinal)
+// и подключённые через ServiceLoader (коды дальше, в порядке загрузки).
+// Символ до 4 знаков упаковывается в long по 16 бит на знак, поиск - одно умножение
+// со сдвигом в таблицу без коллизий (идеальное хеширование: множитель подбирается
+// при загрузке реестра) и сравнение ключа. Этот же поиск используют токенизатор,
+// компилятор выражений и OperationType.fromSymbol, а вычисление идёт по коду через KERNELS.
+final class OperatorRegistry {
+    static final int MAX_SYMBOL_LENGTH = 4;
+    // Коды операторов записываются в программу CompiledExpression рядом с PUSH/NEGATE/LOAD
+    private static final int MAX_OPERATORS = CompiledExpression.PUSH;
+
+    private static final Main.CalculatorOperator[] OPERATORS = load();
+    private static final DoubleBinaryOperator[] KERNELS = new DoubleBinaryOperator[OPERATORS.length];
+    private static final int[] PRECEDENCE = new int[OPERATORS.length];
+    private static final int[] LENGTHS = new int[OPERATORS.length];
+    private static final long[] KEYS;
+    private static final int[] CODES;
+    private static final long MULTIPLIER;
+    private static final int SHIFT;
+
+    static {
+        long[] keys = new long[OPERATORS.length];
+        for (int i = 0; i < OPERATORS.length; i++) {
+            Main.CalculatorOperator operator = OPERATORS[i];
+            KERNELS[i] = operator instanceof OperationType type ? type.getKernel() : operator::apply;
+            PRECEDENCE[i] = operator.getPrecedence();
+            LENGTHS[i] = operator.getSymbol().length();
+            keys[i] = pack(operator.getSymbol(), 0, LENGTHS[i]);
+        }
+
+        // Таблица в 4+ раза больше числа операторов, множитель ищем перебором
+        int bits = 4;
+        while ((1 << bits) < keys.length * 4) bits++;
+        Random random = new Random(1);
+        long[] table;
+        int[] codes;
+        long multiplier;
+        int attempt = 0;
+        search:
+        while (true) {
+            if (++attempt % 1000 == 0) bits++;
+            multiplier = random.nextLong() | 1;
+            table = new long[1 << bits];
+            codes = new int[1 << bits];
+            for (int i = 0; i < keys.length; i++) {
+                int slot = (int) ((keys[i] * multiplier) >>> (64 - bits));
+                if (table[slot] != 0) continue search;
+                table[slot] = keys[i];
+                codes[slot] = i;
+            }
+            break;
+        }
+        KEYS = table;
+        CODES = codes;
+        MULTIPLIER = multiplier;
+        SHIFT = 64 - bits;
+    }
+
+    private OperatorRegistry() {
+    }
 
+    private static Main.CalculatorOperator[] load() {
+        List<Main.CalculatorOperator> operators = new ArrayList<>(List.of(OperationType.values()));
+        List<String> symbols = new ArrayList<>();
+        for (Main.CalculatorOperator operator : operators) symbols.add(operator.getSymbol());
         try {
-            Double.parseDouble(parts[0]);
-            Double.parseDouble(parts[2]);
-        } catch (NumberFormatException e) {
-            return false;
+            for (Main.CalculatorOperator operator : ServiceLoader.load(Main.CalculatorOperator.class)) {
+                String symbol = operator.getSymbol();
+                if (!isValidSymbol(symbol) || symbols.contains(symbol) || operators.size() == MAX_OPERATORS) {
+                    System.err.println("Оператор " + operator.getClass().getName() + " (" + symbol + ") пропущен: "
+                            + "символ неверный, уже занят или операторов больше " + MAX_OPERATORS);
+                    continue;
+                }
+                operators.add(operator);
+                symbols.add(symbol);
+            }
+        } catch (ServiceConfigurationError e) {
+            System.err.println("Не удалось загрузить операторы: " + e.getMessage());
         }
+        return operators.toArray(new Main.CalculatorOperator[0]);
+    }
 
-        String op = parts[1];
-        return op.equals("+") || op.equals("-") || op.equals("*") ||
-                op.equals("/") || op.equals("//") || op.equals("^") || op.equals("%");
+    // Символ - 1-4 буквы ("min") или 1-4 знака ("//", "**"), без цифр, пробелов, скобок и точки
+    private static boolean isValidSymbol(String symbol) {
+        if (symbol == null || symbol.isEmpty() || symbol.length() > MAX_SYMBOL_LENGTH) return false;
+        boolean word = Character.isLetter(symbol.charAt(0));
+        for (int i = 0; i < symbol.length(); i++) {
+            char c = symbol.charAt(i);
+            if (word ? !Character.isLetter(c) : !isSymbolChar(c)) return false;
+        }
+        return true;
     }
-}
 
-// Главный класс с консольным интерфейсом
-public class Main {
-    public static void main(String[] args) {
-        Scanner scanner = new Scanner(System.in);
-        Calculator calculator = new Calculator();
+    private static boolean isSymbolChar(char c) {
+        return c > ' ' && !Character.isLetterOrDigit(c) && c != '(' && c != ')' && c != '.' && c != '_';
+    }
 
-        System.out.println("Вас приветствует простой консольный калькулятор.");
-        System.out.println("Поддерживаемые операции: +, -, *, /, //, ^, %");
-        System.out.println("Для выхода введите: exit");
+    private static long pack(CharSequence text, int from, int to) {
+        long key = 0;
+        for (int i = from; i < to; i++) key = key << 16 | text.charAt(i);
+        return key;
+    }
 
-        while (true) { //бесконечный цикл, в котором запрашиваем выражение и обрабатываем его.
-            System.out.print("\nВведите выражение: ");
-            String input = scanner.nextLine().trim();
+    private static int find(long key) {
+        int slot = (int) ((key * MULTIPLIER) >>> SHIFT);
+        return KEYS[slot] == key ? CODES[slot] : -1;
+    }
 
-            if (input.equalsIgnoreCase("exit") || input.equalsIgnoreCase("учше")) { //сравниваем строку игнорируя регистр
-                System.out.println("Выход...");
-                break;
-            }
+    // Код оператора с символом symbol или -1
+    static int lookup(String symbol) {
+        if (symbol.isEmpty() || symbol.length() > MAX_SYMBOL_LENGTH) return -1;
+        return find(pack(symbol, 0, symbol.length()));
+    }
 
-            // Разбиваем строку на части. В качестве разделителя используем пробел (из примеров к заданию)
-            String[] parts = input.split(" ");
-            if (!Validator.isValid(parts)) {
-                System.out.println("Неверное выражение. Введите еще раз.");
-                continue;
+    // Код оператора, записанного в input с позиции from, или -1.
+    // Слово должно совпасть целиком ("minx" - не "min"), из знаков берётся самое длинное
+    // совпадение: "//" раньше "/", а в "2*-3" после "*" остаётся минус числа.
+    static int match(CharSequence input, int from) {
+        int length = input.length();
+        if (from >= length) return -1;
+        int end = from;
+        if (Character.isLetter(input.charAt(from))) {
+            while (end < length && Character.isLetter(input.charAt(end))) {
+                if (end - from == MAX_SYMBOL_LENGTH) return -1;
+                end++;
             }
+            return find(pack(input, from, end));
+        }
+        while (end < length && end - from < MAX_SYMBOL_LENGTH && isSymbolChar(input.charAt(end))) end++;
+        for (int to = end; to > from; to--) {
+            int code = find(pack(input, from, to));
+            if (code >= 0) return code;
+        }
+        return -1;
+    }
 
-            // Проверка чисел, что они действительно числа
-            double a = Double.parseDouble(parts[0]);
-            double b = Double.parseDouble(parts[2]);
-            OperationType type = OperationType.fromSymbol(parts[1]);
-            if (type == null) {
-                System.out.println("Неизвестная операция. Введите еще раз.");
-                continue;
+    static int size() {
+        return OPERATORS.length;
+    }
+
+    static Main.CalculatorOperator get(int code) {
+        return OPERATORS[code];
+    }
+
+    static int symbolLength(int code) {
+        return LENGTHS[code];
+    }
+
+    static int precedence(int code) {
+        return PRECEDENCE[code];
+    }
+
+    static double apply(int code, double a, double b) throws ArithmeticException {
+        return KERNELS[code].applyAsDouble(a, b);
+    }
+
+    static DoubleBinaryOperator[] kernels() {
+        return KERNELS.clone();
+    }
+
+    // "+, -, *, /, //, ^, %" и подключённые операторы - для подсказки в консоли
+    static String symbols() {
+        StringBuilder text = new StringBuilder();
+        for (Main.CalculatorOperator operator : OPERATORS) {
+            if (text.length() > 0) text.append(", ");
+            text.append(operator.getSymbol());
+        }
+        return text.toString();
+    }
+}
+
+// Перевод десятичной записи w * 10^q в double по алгоритму Эйзеля-Лемира
+// (D. Lemire, "Number Parsing at a Gigabyte per Second", 2021): одно-два
+// 64x64-битных умножения на 128-битное приближение 5^q вместо BigInteger.
+// Результат совпадает с Double.parseDouble при мантиссе до 19 цифр,
+// для более длинных вызывающий код сам обращается к Double.parseDouble.
+final class FastDoubleParser {
+    private static final int SMALLEST_POWER = -342;
+    private static final int LARGEST_POWER = 308;
+
+    // 128-битные приближения 5^q для q от -342 до 308: [2i] - старшие 64 бита, [2i + 1] - младшие
+    private static final long[] POWERS_OF_FIVE = powersOfFive();
+
+    private FastDoubleParser() {
+    }
+
+    // w - мантисса без знака (до 19 цифр, может не помещаться в long со знаком)
+    static double toDouble(long w, int q, boolean negative) {
+        double value;
+        if (w == 0 || q < SMALLEST_POWER) {
+            value = 0;
+        } else if (q > LARGEST_POWER) {
+            value = Double.POSITIVE_INFINITY;
+        } else {
+            value = Double.longBitsToDouble(bits(w, q));
+        }
+        return negative ? -value : value;
+    }
+
+    private static long bits(long w, int q) {
+        int lz = Long.numberOfLeadingZeros(w);
+        w <<= lz;
+
+        int index = 2 * (q - SMALLEST_POWER);
+        long high = unsignedMultiplyHigh(w, POWERS_OF_FIVE[index]);
+        long low = w * POWERS_OF_FIVE[index];
+        // Младших 64 бит приближения хватает, кроме случая, когда все отбрасываемые биты - единицы
+        if ((high & 0x1FF) == 0x1FF) {
+            long secondHigh = unsignedMultiplyHigh(w, POWERS_OF_FIVE[index + 1]);
+            long sum = low + secondHigh;
+            if (Long.compareUnsigned(secondHigh, sum) > 0) high++;
+            low = sum;
+        }
+
+        int upperBit = (int) (high >>> 63);
+        long mantissa = high >>> (upperBit + 9);
+        int power2 = (((152170 + 65536) * q) >> 16) + 63 + upperBit - lz + 1023;
+
+        if (power2 <= 0) {
+            // Денормализованное число
+            if (-power2 + 1 >= 64) return 0;
+            mantissa >>>= -power2 + 1;
+            mantissa += mantissa & 1;
+            mantissa >>>= 1;
+            power2 = mantissa < (1L << 52) ? 0 : 1;
+            return mantissa | ((long) power2 << 52);
+        }
+
+        // Ровно посередине между двумя double - округляем к чётному
+        if (Long.compareUnsigned(low, 1) <= 0 && q >= -4 && q <= 23 && (mantissa & 3) == 1
+                && (mantissa << (upperBit + 9)) == high) {
+            mantissa &= ~1L;
+        }
+        mantissa += mantissa & 1;
+        mantissa >>>= 1;
+        if (mantissa >= (2L << 52)) {
+            mantissa = 1L << 52;
+            power2++;
+        }
+        mantissa &= ~(1L << 52);
+        if (power2 >= 0x7FF) return 0x7FFL << 52;
+        return mantissa | ((long) power2 << 52);
+    }
+
+    // Math.unsignedMultiplyHigh появился только в JDK 18
+    private static long unsignedMultiplyHigh(long a, long b) {
+        return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+    }
+
+    private static long[] powersOfFive() {
+        long[] table = new long[2 * (LARGEST_POWER - SMALLEST_POWER + 1)];
+        BigInteger five = BigInteger.valueOf(5);
+        for (int q = SMALLEST_POWER; q <= LARGEST_POWER; q++) {
+            BigInteger value;
+            if (q < 0) {
+                // Округлённое вверх 2^b / 5^-q, усечённое до 128 бит
+                BigInteger power = five.pow(-q);
+                int z = power.bitLength();
+                int b = q >= -27 ? z + 127 : 2 * z + 128;
+                value = BigInteger.ONE.shiftLeft(b).divide(power).add(BigInteger.ONE);
+            } else {
+                value = five.pow(q);
             }
+            int shift = value.bitLength() - 128;
+            value = shift > 0 ? value.shiftRight(shift) : value.shiftLeft(-shift);
 
-            try {
-                Operation operation;
+            int i = 2 * (q - SMALLEST_POWER);
+            table[i] = value.shiftRight(64).longValue();
+            table[i + 1] = value.longValue();
+        }
+        return table;
+    }
+}
+
+// Запись чисел в байтовый буфер без промежуточных String.
+// Формат как у Double.toString: обычная запись для 1e-3 <= |x| < 1e7, иначе "d.dddE±n".
+// В обычной записи ищется самая короткая дробная часть, которая читается обратно
+// в то же самое число (k знаков, k = 0, 1, 2, ...). Экспоненциальная запись и числа,
+// которым нужно больше 15-16 значащих цифр, отдаются Double.toString.
+final class DoubleFormatter {
+    static final int MAX_LENGTH = 32;
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long[] LONG_POWERS_OF_TEN = {
+            1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L,
+            1_000_000_000L, 10_000_000_000L, 100_000_000_000L, 1_000_000_000_000L,
+            10_000_000_000_000L, 100_000_000_000_000L, 1_000_000_000_000_000L,
+            10_000_000_000_000_000L, 100_000_000_000_000_000L, 1_000_000_000_000_000_000L
+    };
+
+    private DoubleFormatter() {
+    }
 
-                switch (type) { // делаем арифметическое действие в зависимости от оператора
-                    case ADD -> operation = new Addition(a, b);
-                    case SUBTRACT -> operation = new Subtraction(a, b);
-                    case MULTIPLY -> operation = new Multiplication(a, b);
-                    case DIVIDE -> operation = new Division(a, b);
-                    case INT_DIVIDE -> operation = new IntDivision(a, b);
-                    case POWER -> operation = new Power(a, b);
-                    case MODULO -> operation = new Modulo(a, b);
-                    default -> throw new IllegalStateException("Неизвестная операция: " + type);
+    // Пишет value в buffer с позиции position (нужно MAX_LENGTH свободных байт), возвращает новую позицию
+    static int format(double value, byte[] buffer, int position) {
+        double abs = Math.abs(value);
+        if (abs >= 1e-3 && abs < 1e7) {
+            for (int k = 0; k < LONG_POWERS_OF_TEN.length; k++) {
+                double scaled = Math.rint(abs * POWERS_OF_TEN[k]);
+                if (scaled >= 0x1p53) break;
+                // scaled и 10^k точны, поэтому деление даёт ровно то число, которое
+                // получится при чтении строки "scaled / 10^k"
+                if (scaled / POWERS_OF_TEN[k] == abs) {
+                    return writeFixed(value < 0, (long) scaled, k, buffer, position);
                 }
+            }
+        }
+        if (value == 0) {
+            if (Double.doubleToRawLongBits(value) < 0) buffer[position++] = '-';
+            buffer[position++] = '0';
+            buffer[position++] = '.';
+            buffer[position++] = '0';
+            return position;
+        }
 
-                double result = calculator.calculate(operation);
-                System.out.println("Результат: " + result);
+        String text = Double.toString(value);
+        for (int i = 0; i < text.length(); i++) buffer[position++] = (byte) text.charAt(i);
+        return position;
+    }
 
-            } catch (ArithmeticException e) {
-                System.out.println(e.getMessage());
+    static int format(long value, byte[] buffer, int position) {
+        if (value < 0) {
+            buffer[position++] = '-';
+        } else {
+            value = -value;
+        }
+        // Цифры считаем от отрицательного значения, чтобы не терять Long.MIN_VALUE
+        int end = position + digitCount(value);
+        for (int i = end - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' - value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    // Точный целый результат в том же виде, что и у double ("5.0", "1.2345678E7"), но со всеми
+    // цифрами: вид вывода не зависит от того, считалось выражение в long или в double
+    static int formatExact(long value, byte[] buffer, int position) {
+        if (value > -10_000_000L && value < 10_000_000L) {
+            position = format(value, buffer, position);
+            buffer[position++] = '.';
+            buffer[position++] = '0';
+            return position;
+        }
+        String digits = Long.toString(value);
+        int start = 0;
+        if (value < 0) {
+            buffer[position++] = '-';
+            start = 1;
+        }
+        int end = digits.length();
+        while (end > start + 2 && digits.charAt(end - 1) == '0') end--;
+        buffer[position++] = (byte) digits.charAt(start);
+        buffer[position++] = '.';
+        for (int i = start + 1; i < end; i++) buffer[position++] = (byte) digits.charAt(i);
+        buffer[position++] = 'E';
+        return format(digits.length() - start - 1, buffer, position);
+    }
+
+    private static int writeFixed(boolean negative, long scaled, int fractionDigits, byte[] buffer, int position) {
+        if (negative) buffer[position++] = '-';
+        long power = LONG_POWERS_OF_TEN[fractionDigits];
+        position = format(scaled / power, buffer, position);
+        buffer[position++] = '.';
+        if (fractionDigits == 0) {
+            buffer[position++] = '0';
+            return position;
+        }
+
+        long fraction = scaled % power;
+        for (int i = position + fractionDigits - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        return position + fractionDigits;
+    }
+
+    // Число цифр неположительного value
+    private static int digitCount(long value) {
+        int count = 1;
+        while (value <= -10) {
+            value /= 10;
+            count++;
+        }
+        return count;
+    }
+}
+
+// Буферизованный вывод в консоль: текст копится в буфере и уходит в stdout одной пачкой -
+// когда буфер заполнен или при flush перед ожиданием ввода, а не на каждой строке,
+// как у System.out с автосбросом.
+final class ConsoleOutput {
+    private static final Charset CHARSET = consoleCharset();
+    private static final byte[] NEW_LINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out = new FileOutputStream(FileDescriptor.out);
+    private byte[] buffer = new byte[1 << 16];
+    private int size;
+
+    // Та же кодировка, что System.out выбирает в JDK 17
+    private static Charset consoleCharset() {
+        String name = System.getProperty("sun.stdout.encoding");
+        try {
+            return name != null ? Charset.forName(name) : Charset.defaultCharset();
+        } catch (IllegalArgumentException e) {
+            return Charset.defaultCharset();
+        }
+    }
+
+    static byte[] encode(String text) {
+        return text.getBytes(CHARSET);
+    }
+
+    public void print(String text) {
+        write(encode(text));
+    }
+
+    public void println(String text) {
+        print(text);
+        newLine();
+    }
+
+    public void newLine() {
+        write(NEW_LINE);
+    }
+
+    public void write(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+    }
+
+    public void print(double value) {
+        ensure(DoubleFormatter.MAX_LENGTH);
+        size = DoubleFormatter.format(value, buffer, size);
+    }
+
+    public void print(long value) {
+        ensure(DoubleFormatter.MAX_LENGTH);
+        size = DoubleFormatter.format(value, buffer, size);
+    }
+
+    // Точный целый результат в виде double (см. DoubleFormatter.formatExact)
+    public void printExact(long value) {
+        ensure(DoubleFormatter.MAX_LENGTH);
+        size = DoubleFormatter.formatExact(value, buffer, size);
+    }
+
+    public void flush() {
+        try {
+            out.write(buffer, 0, size);
+            out.flush();
+        } catch (IOException e) {
+            // stdout закрыт - писать всё равно некуда
+        }
+        size = 0;
+    }
+
+    private void ensure(int length) {
+        if (size + length <= buffer.length) return;
+        flush();
+        if (length > buffer.length) buffer = new byte[length];
+    }
+}
+
+// Разбор выражения "a op b" за один проход по строке, без split и без исключений.
+// Пробелы вокруг чисел и знака могут быть любыми или отсутствовать ("2+3").
+// Код оператора - код из OperatorRegistry (для встроенных совпадает с ordinal OperationType).
+class ExpressionTokenizer {
+    // Степени 10, которые представимы в double точно
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private CharSequence input;
+    private int pos;
+    private double number;
+    private boolean integral;
+    private long integralValue;
+    private boolean scaled;
+    private long unscaled;
+    private int scale;
+    private int numberStart;
+
+    private double operand1;
+    private double operand2;
+    private boolean integral1;
+    private boolean integral2;
+    private long long1;
+    private long long2;
+    private boolean scaled1;
+    private boolean scaled2;
+    private long unscaled1;
+    private long unscaled2;
+    private int scale1;
+    private int scale2;
+    private int start1;
+    private int end1;
+    private int start2;
+    private int end2;
+    private int operator;
+    private String error;
+    private int errorPosition;
+
+    public boolean tokenize(CharSequence input) {
+        this.input = input;
+        pos = 0;
+        operator = -1;
+        error = null;
+        errorPosition = -1;
+
+        skipSpaces();
+        if (!parseNumber()) return false;
+        operand1 = number;
+        integral1 = integral;
+        long1 = integralValue;
+        scaled1 = scaled;
+        unscaled1 = unscaled;
+        scale1 = scale;
+        start1 = numberStart;
+        end1 = pos;
+
+        skipSpaces();
+        if (!parseOperator()) return false;
+
+        skipSpaces();
+        if (!parseNumber()) return false;
+        operand2 = number;
+        integral2 = integral;
+        long2 = integralValue;
+        scaled2 = scaled;
+        unscaled2 = unscaled;
+        scale2 = scale;
+        start2 = numberStart;
+        end2 = pos;
+
+        skipSpaces();
+        if (pos != input.length()) return fail("Лишние символы");
+        return true;
+    }
+
+    // Разбор одного числа с позиции from (для ExpressionCompiler).
+    // Возвращает позицию сразу после числа или -1, если числа нет.
+    public int scanNumber(CharSequence input, int from) {
+        this.input = input;
+        pos = from;
+        error = null;
+        errorPosition = -1;
+        return parseNumber() ? pos : -1;
+    }
+
+    public double getNumber() {
+        return number;
+    }
+
+    public double getOperand1() {
+        return operand1;
+    }
+
+    public double getOperand2() {
+        return operand2;
+    }
+
+    // Оба операнда записаны целыми числами и точно помещаются в long
+    public boolean isIntegral() {
+        return integral1 && integral2;
+    }
+
+    public long getLongOperand1() {
+        return long1;
+    }
+
+    public long getLongOperand2() {
+        return long2;
+    }
+
+    // Операнды как десятичные числа unscaled * 10^-scale, без округления до double (режим точности).
+    // isScaled() - оба записаны не более чем 18 значащими цифрами и помещаются в long
+    public boolean isScaled() {
+        return scaled1 && scaled2;
+    }
+
+    public long getUnscaledOperand1() {
+        return unscaled1;
+    }
+
+    public int getScale1() {
+        return scale1;
+    }
+
+    public long getUnscaledOperand2() {
+        return unscaled2;
+    }
+
+    public int getScale2() {
+        return scale2;
+    }
+
+    public BigDecimal getDecimalOperand1() {
+        return scaled1 ? BigDecimal.valueOf(unscaled1, scale1) : new BigDecimal(input.subSequence(start1, end1).toString());
+    }
+
+    public BigDecimal getDecimalOperand2() {
+        return scaled2 ? BigDecimal.valueOf(unscaled2, scale2) : new BigDecimal(input.subSequence(start2, end2).toString());
+    }
+
+    public int getOperator() {
+        return operator;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    // Позиция символа (с 0), на котором разбор остановился
+    public int getErrorPosition() {
+        return errorPosition;
+    }
+
+    private void skipSpaces() {
+        while (pos < input.length() && Character.isWhitespace(input.charAt(pos))) pos++;
+    }
+
+    private boolean fail(String message) {
+        error = message;
+        errorPosition = pos;
+        return false;
+    }
+
+    private boolean parseOperator() {
+        if (pos >= input.length()) return fail("Ожидался знак операции");
+
+        operator = OperatorRegistry.match(input, pos);
+        if (operator < 0) return fail("Неизвестная операция");
+        pos += OperatorRegistry.symbolLength(operator);
+        return true;
+    }
+
+    // Число: [+-]цифры[.цифры][e[+-]цифры]
+    private boolean parseNumber() {
+        int start = pos;
+        numberStart = start;
+        int length = input.length();
+        boolean negative = false;
+        if (pos < length && (input.charAt(pos) == '+' || input.charAt(pos) == '-')) {
+            negative = input.charAt(pos) == '-';
+            pos++;
+        }
+
+        long mantissa = 0; // до 19 цифр, поэтому может не поместиться в long со знаком
+        int digits = 0; // значащие цифры, попавшие в mantissa
+        int exponent = 0;
+        boolean hasDigits = false;
+        boolean truncated = false; // отброшены ненулевые цифры после 19-й
+
+        while (pos < length && isDigit(input.charAt(pos))) {
+            hasDigits = true;
+            if (digits < 19) {
+                mantissa = mantissa * 10 + (input.charAt(pos) - '0');
+                if (mantissa != 0) digits++;
+            } else {
+                exponent++;
+                truncated |= input.charAt(pos) != '0';
+            }
+            pos++;
+        }
+        if (pos < length && input.charAt(pos) == '.') {
+            pos++;
+            while (pos < length && isDigit(input.charAt(pos))) {
+                hasDigits = true;
+                if (digits < 19) {
+                    mantissa = mantissa * 10 + (input.charAt(pos) - '0');
+                    if (mantissa != 0) digits++;
+                    exponent--;
+                } else {
+                    truncated |= input.charAt(pos) != '0';
+                }
+                pos++;
+            }
+        }
+        if (!hasDigits) {
+            pos = start;
+            return fail("Ожидалось число");
+        }
+
+        if (pos < length && (input.charAt(pos) == 'e' || input.charAt(pos) == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < length && (input.charAt(pos) == '+' || input.charAt(pos) == '-')) {
+                negativeExponent = input.charAt(pos) == '-';
+                pos++;
             }
+            if (pos >= length || !isDigit(input.charAt(pos))) return fail("Ожидался показатель степени");
+            int value = 0;
+            while (pos < length && isDigit(input.charAt(pos))) {
+                if (value < 100_000) value = value * 10 + (input.charAt(pos) - '0');
+                pos++;
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+
+        // Десятичная запись как есть: mantissa * 10^exponent, если все цифры попали в mantissa
+        scaled = !truncated && digits <= 18;
+        unscaled = negative ? -mantissa : mantissa;
+        scale = -exponent;
+
+        // Целое число до 18 цифр (без дробной части) точно помещается в long
+        integral = exponent >= 0 && digits + exponent <= 18;
+        if (integral) {
+            long value = mantissa;
+            for (int i = 0; i < exponent; i++) value *= 10;
+            integralValue = negative ? -value : value;
+        }
+
+        // Быстрый путь: мантисса и степень 10 точны в double, значит одно умножение
+        // или деление даёт правильно округлённый результат, как у Double.parseDouble.
+        // Иначе - алгоритм Эйзеля-Лемира, и только для мантиссы длиннее 19 цифр - Double.parseDouble
+        if (mantissa == 0) {
+            number = 0;
+        } else if (digits <= 15 && exponent >= -22 && exponent <= 22) {
+            number = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        } else if (!truncated) {
+            number = FastDoubleParser.toDouble(mantissa, exponent, false);
+        } else {
+            number = Math.abs(Double.parseDouble(input.subSequence(start, pos).toString()));
+        }
+        if (negative) number = -number;
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
+
+// Точные вычисления над long для целых операндов.
+// apply возвращает false, если результат не целый или не помещается в long
+// (переполнение ловят Math.*Exact) - тогда считать нужно в double.
+// Деление на 0 бросает ArithmeticException, как и в double.
+final class ExactArithmetic {
+    private long result;
+
+    public boolean apply(OperationType type, long a, long b) throws ArithmeticException {
+        if (b == 0 && (type == OperationType.DIVIDE || type == OperationType.INT_DIVIDE
+                || type == OperationType.MODULO)) {
+            throw new ArithmeticException("Ошибка - деление на 0.");
         }
 
-        scanner.close();
+        try {
+            switch (type) {
+                case ADD -> result = Math.addExact(a, b);
+                case SUBTRACT -> result = Math.subtractExact(a, b);
+                case MULTIPLY -> result = Math.multiplyExact(a, b);
+                case DIVIDE -> {
+                    if (a % b != 0 || isDivisionOverflow(a, b)) return false;
+                    result = a / b;
+                }
+                case INT_DIVIDE -> {
+                    if (isDivisionOverflow(a, b)) return false;
+                    result = a / b;
+                }
+                case MODULO -> result = a % b;
+                case POWER -> {
+                    if (b < 0) return false;
+                    result = power(a, b);
+                }
+            }
+            return true;
+        } catch (ArithmeticException overflow) {
+            return false;
+        }
+    }
+
+    public long getResult() {
+        return result;
+    }
+
+    // Единственный случай переполнения при делении long (Math.divideExact есть только с JDK 18)
+    private static boolean isDivisionOverflow(long a, long b) {
+        return a == Long.MIN_VALUE && b == -1;
+    }
+
+    // Возведение в степень последовательным возведением в квадрат: O(log b) умножений
+    static long power(long base, long exponent) {
+        long result = 1;
+        while (exponent > 0) {
+            if ((exponent & 1) != 0) result = Math.multiplyExact(result, base);
+            exponent >>= 1;
+            if (exponent > 0) base = Math.multiplyExact(base, base);
+        }
+        return result;
+    }
+}
+
+// Режим точности: вычисления в десятичной арифметике с округлением по MathContext
+// (число значащих цифр и способ округления) вместо двоичного округления double.
+// Операнды "a op b" приходят из токенизатора как масштабированные long (unscaled * 10^-scale):
+// пока значения и промежуточные результаты помещаются в long, считаем без BigDecimal
+// (масштабы выравниваются по таблице степеней 10), иначе - в BigDecimal с тем же MathContext.
+// Нецелая степень в десятичной арифметике не выражается и считается в double, как и
+// операторы, подключённые через ServiceLoader; их результат округляется по MathContext.
+// Экземпляр не потокобезопасен.
+final class PreciseArithmetic {
+    private static final long[] POWERS_OF_TEN = new long[19];
+    private static final BigDecimal MAX_EXPONENT = BigDecimal.valueOf(999_999_999); // предел BigDecimal.pow
+    private static final int EXACT_POWER_DIGITS = 2000;
+    private static final long OVERFLOW = Long.MIN_VALUE;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private final MathContext context;
+    private long unscaled;
+    private int scale;
+
+    PreciseArithmetic(MathContext context) {
+        if (context.getPrecision() == 0) {
+            throw new IllegalArgumentException("Нужна конечная точность: без неё 1 / 3 не вычислить");
+        }
+        this.context = context;
+    }
+
+    MathContext getContext() {
+        return context;
+    }
+
+    // Быстрый путь: a = unscaledA * 10^-scaleA, b = unscaledB * 10^-scaleB.
+    // true - результат посчитан (getResult), false - не поместился в long или частное -
+    // бесконечная дробь, нужен apply с BigDecimal. Переполнение проверяется без исключений:
+    // в быстром пути оно обычное дело, а исключение стоит микросекунды.
+    boolean apply(OperationType type, long a, int scaleA, long b, int scaleB) throws ArithmeticException {
+        if (type == OperationType.DIVIDE || type == OperationType.MODULO ? b == 0
+                : type == OperationType.INT_DIVIDE && isZeroInteger(b, scaleB)) {
+            throw divisionByZero();
+        }
+
+        long value;
+        int resultScale;
+        try {
+            switch (type) {
+                case ADD, SUBTRACT, MODULO -> {
+                    resultScale = Math.max(scaleA, scaleB);
+                    long x = scaleUp(a, resultScale - scaleA);
+                    long y = scaleUp(b, resultScale - scaleB);
+                    if (x == OVERFLOW || y == OVERFLOW) return false;
+                    value = type == OperationType.ADD ? add(x, y) : type == OperationType.SUBTRACT ? add(x, -y) : x % y;
+                }
+                case MULTIPLY -> {
+                    value = multiply(a, b);
+                    resultScale = Math.addExact(scaleA, scaleB);
+                }
+                case DIVIDE -> {
+                    // Частное - конечная дробь с digits знаками, масштаб наименьший, как у BigDecimal.divide
+                    int digits = terminatingDigits(a, b);
+                    if (digits < 0) return false;
+                    long x = scaleUp(a, digits);
+                    if (x == OVERFLOW) return false;
+                    value = x / b;
+                    resultScale = Math.addExact(scaleA - scaleB, digits);
+                }
+                case INT_DIVIDE -> {
+                    // Как в double: операнды сначала обрезаются до целых
+                    long x = truncate(a, scaleA);
+                    long y = truncate(b, scaleB);
+                    if (x == OVERFLOW || y == OVERFLOW) return false;
+                    value = x / y;
+                    resultScale = 0;
+                }
+                case POWER -> {
+                    // Только целый неотрицательный показатель
+                    boolean integral = scaleB <= 0 || b == 0 || scaleB <= 18 && b % POWERS_OF_TEN[scaleB] == 0;
+                    long n = truncate(b, scaleB);
+                    if (!integral || n < 0 || n > Integer.MAX_VALUE) return false;
+                    value = power(a, n);
+                    resultScale = Math.multiplyExact(scaleA, (int) n);
+                }
+                default -> {
+                    return false;
+                }
+            }
+        } catch (ArithmeticException overflow) {
+            return false; // масштаб не помещается в int
+        }
+        if (value == OVERFLOW) return false;
+        unscaled = value;
+        scale = resultScale;
+        return true;
+    }
+
+    // Результат быстрого пути, округлённый по MathContext
+    BigDecimal getResult() {
+        BigDecimal value = BigDecimal.valueOf(unscaled, scale);
+        return needsRounding(unscaled) ? value.round(context) : value;
+    }
+
+    // Общий путь для любых операндов и операторов (operator - код из OperatorRegistry)
+    BigDecimal apply(int operator, BigDecimal a, BigDecimal b) throws ArithmeticException {
+        OperationType type = OperationType.fromCode(operator);
+        if (type == null) return fromDouble(OperatorRegistry.apply(operator, a.doubleValue(), b.doubleValue()));
+        return apply(type, a, b);
+    }
+
+    BigDecimal apply(OperationType type, BigDecimal a, BigDecimal b) throws ArithmeticException {
+        switch (type) {
+            case ADD:
+                return a.add(b, context);
+            case SUBTRACT:
+                return a.subtract(b, context);
+            case MULTIPLY:
+                return a.multiply(b, context);
+            case DIVIDE:
+                if (b.signum() == 0) throw divisionByZero();
+                return a.divide(b, context);
+            case INT_DIVIDE: {
+                BigDecimal x = a.setScale(0, RoundingMode.DOWN);
+                BigDecimal y = b.setScale(0, RoundingMode.DOWN);
+                if (y.signum() == 0) throw divisionByZero();
+                return x.divideToIntegralValue(y).round(context);
+            }
+            case MODULO:
+                if (b.signum() == 0) throw divisionByZero();
+                // Остаток a - q * b точно записывается с большим из масштабов операндов,
+                // как и в быстром пути (у BigDecimal.remainder масштаб бывает вида 0E+2)
+                return a.remainder(b).setScale(Math.max(a.scale(), b.scale())).round(context);
+            case POWER:
+            default: {
+                BigDecimal exponent = b.stripTrailingZeros();
+                if (exponent.scale() <= 0 && exponent.abs().compareTo(MAX_EXPONENT) <= 0) {
+                    int n = exponent.intValueExact();
+                    if (a.signum() == 0 && n < 0) throw divisionByZero();
+                    // pow(n, context) ошибается до 2 единиц последнего разряда, поэтому, пока
+                    // точная степень не слишком длинная, считаем её и округляем один раз
+                    if ((long) a.precision() * Math.abs(n) <= EXACT_POWER_DIGITS) {
+                        BigDecimal power = a.pow(Math.abs(n));
+                        return n >= 0 ? power.round(context) : BigDecimal.ONE.divide(power, context);
+                    }
+                    return a.pow(n, context);
+                }
+                return fromDouble(Math.pow(a.doubleValue(), b.doubleValue()));
+            }
+        }
+    }
+
+    // Вычисление скомпилированного выражения; константы берутся из getDecimalConstants()
+    BigDecimal evaluate(CompiledExpression expression) throws ArithmeticException {
+        int[] code = expression.getCode();
+        BigDecimal[] constants = expression.getDecimalConstants();
+        BigDecimal[] stack = new BigDecimal[expression.getMaxStack()];
+        int sp = 0;
+        for (int i = 0; i < code.length; i++) {
+            int op = code[i];
+            if (op == CompiledExpression.PUSH) {
+                stack[sp++] = constants[code[++i]];
+            } else if (op == CompiledExpression.NEGATE) {
+                stack[sp - 1] = stack[sp - 1].negate();
+            } else if (op == CompiledExpression.LOAD) {
+                throw new IllegalArgumentException("Переменные в режиме точности не поддерживаются");
+            } else {
+                BigDecimal b = stack[--sp];
+                stack[sp - 1] = apply(op, stack[sp - 1], b);
+            }
+        }
+        return stack[0].round(context);
+    }
+
+    // Запись результата: обычная, если не слишком много нулей, иначе научная (1.5E+40).
+    // Отрицательный масштаб - младшие цифры целой части отброшены округлением до точности:
+    // такое число тоже пишется в научной записи, чтобы непосчитанные цифры не выглядели нулями
+    static String toText(BigDecimal value) {
+        if (value.scale() < 0) return value.stripTrailingZeros().toString();
+        int exponent = value.precision() - value.scale() - 1;
+        return exponent >= -7 && exponent < 40 ? value.toPlainString() : value.toString();
+    }
+
+    private BigDecimal fromDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new ArithmeticException("Результат не выражается десятичным числом: " + value);
+        }
+        return BigDecimal.valueOf(value).round(context);
+    }
+
+    private boolean needsRounding(long value) {
+        int precision = context.getPrecision();
+        return precision < 19 && Math.abs(value) >= POWERS_OF_TEN[precision];
+    }
+
+    // Арифметика быстрого пути: при переполнении результат - OVERFLOW (Long.MIN_VALUE).
+    // Настоящий результат Long.MIN_VALUE тоже уходит в BigDecimal - это лишь медленнее.
+    private static long scaleUp(long value, int digits) {
+        if (value == 0) return 0;
+        if (digits < 0 || digits > 18) return OVERFLOW;
+        return multiply(value, POWERS_OF_TEN[digits]);
+    }
+
+    private static long multiply(long x, long y) {
+        long high = Math.multiplyHigh(x, y);
+        long low = x * y;
+        return high == (low >> 63) ? low : OVERFLOW;
+    }
+
+    private static long add(long x, long y) {
+        long sum = x + y;
+        return ((x ^ sum) & (y ^ sum)) < 0 ? OVERFLOW : sum;
+    }
+
+    // Возведение в квадрат, как в ExactArithmetic.power
+    private static long power(long base, long exponent) {
+        long result = 1;
+        while (exponent > 0) {
+            if ((exponent & 1) != 0) result = multiply(result, base);
+            exponent >>= 1;
+            if (exponent > 0) base = multiply(base, base);
+            if (result == OVERFLOW || base == OVERFLOW) return OVERFLOW;
+        }
+        return result;
+    }
+
+    // Сколько знаков после запятой у частного a / b, или -1, если дробь бесконечная:
+    // знаменатель несократимой дроби должен состоять только из двоек и пятёрок
+    private static int terminatingDigits(long a, long b) {
+        if (a == 0) return 0;
+        long denominator = Math.abs(b) / gcd(Math.abs(a), Math.abs(b));
+        int twos = Long.numberOfTrailingZeros(denominator);
+        denominator >>= twos;
+        int fives = 0;
+        while (denominator % 5 == 0) {
+            denominator /= 5;
+            fives++;
+        }
+        return denominator == 1 ? Math.max(twos, fives) : -1;
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    // Целая часть value * 10^-scale
+    private static long truncate(long value, int scale) {
+        if (scale <= 0) return scaleUp(value, -scale);
+        return scale > 18 ? 0 : value / POWERS_OF_TEN[scale];
+    }
+
+    private static boolean isZeroInteger(long value, int scale) {
+        return value == 0 || scale > 18 || scale > 0 && Math.abs(value) < POWERS_OF_TEN[scale];
+    }
+
+    private static ArithmeticException divisionByZero() {
+        return new ArithmeticException("Ошибка - деление на 0.");
+    }
+}
+
+// Скомпилированное выражение: программа в обратной польской записи.
+// Код - массив int: коды операторов из OperatorRegistry, NEGATE, PUSH с индексом константы
+// или LOAD с номером переменной (значения переменных передаются в bindings).
+final class CompiledExpression {
+    static final int PUSH = 100;
+    static final int NEGATE = 101;
+    static final int LOAD = 102;
+
+    private static final DoubleBinaryOperator[] KERNELS = OperatorRegistry.kernels();
+    private static final double[] NO_BINDINGS = new double[0];
+
+    private final int[] code;
+    private final double[] constants;
+    private final String[] variables;
+    private final int maxStack;
+    private volatile BigDecimal[] decimalConstants;
+
+    CompiledExpression(int[] code, double[] constants, String[] variables, int maxStack) {
+        this.code = code;
+        this.constants = constants;
+        this.variables = variables;
+        this.maxStack = maxStack;
+    }
+
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    // Имена переменных в порядке первого появления в формуле
+    public String[] getVariables() {
+        return variables.clone();
+    }
+
+    public int getVariableCount() {
+        return variables.length;
+    }
+
+    int[] getCode() {
+        return code;
+    }
+
+    double[] getConstants() {
+        return constants;
+    }
+
+    // Константы для режима точности: кратчайшая десятичная запись каждого double
+    // (совпадает с литералом, если в нём не больше 15 значащих цифр). Считаются один раз
+    // и живут вместе с выражением в кэше компилятора.
+    BigDecimal[] getDecimalConstants() {
+        BigDecimal[] decimals = decimalConstants;
+        if (decimals == null) {
+            decimals = new BigDecimal[constants.length];
+            for (int i = 0; i < constants.length; i++) decimals[i] = BigDecimal.valueOf(constants[i]);
+            decimalConstants = decimals;
+        }
+        return decimals;
+    }
+
+    public double evaluate() throws ArithmeticException {
+        return evaluate(new double[maxStack]);
+    }
+
+    // Вычисление на переданном стеке (длиной не меньше getMaxStack()), без выделения памяти
+    public double evaluate(double[] stack) throws ArithmeticException {
+        return evaluate(NO_BINDINGS, 0, stack);
+    }
+
+    // Значения переменных берутся из bindings[offset], bindings[offset + 1], ...
+    public double evaluate(double[] bindings, int offset, double[] stack) throws ArithmeticException {
+        int sp = 0;
+        for (int i = 0; i < code.length; i++) {
+            int op = code[i];
+            if (op == PUSH) {
+                stack[sp++] = constants[code[++i]];
+            } else if (op == LOAD) {
+                stack[sp++] = bindings[offset + code[++i]];
+            } else if (op == NEGATE) {
+                stack[sp - 1] = -stack[sp - 1];
+            } else {
+                double b = stack[--sp];
+                stack[sp - 1] = KERNELS[op].applyAsDouble(stack[sp - 1], b);
+            }
+        }
+        return stack[0];
+    }
+}
+
+// Компилятор инфиксных выражений со скобками, приоритетами и унарным минусом.
+// Грамматика (сверху вниз по возрастанию приоритета):
+//   expr    = term (('+' | '-') term)*
+//   term    = unary (('*' | '/' | '//' | '%') unary)*
+//   unary   = ('-' | '+') unary | power
+//   power   = primary ('^' unary)?        - правая ассоциативность: 2^3^2 = 2^9
+//   primary = число | переменная | '(' expr ')'
+// Переменные (x, rate_2) разрешены только в компиляторе, созданном с variables = true.
+// Знак вплотную к цифре - часть числа, как и в режиме "a op b": -2^2 = 4,
+// а унарный минус перед скобкой или через пробел слабее степени: -(2)^2 = - 2^2 = -4.
+// Скомпилированные программы кэшируются (LRU) по тексту без лишних пробелов.
+// Экземпляр не потокобезопасен: в каждом потоке свой компилятор.
+class ExpressionCompiler {
+    private static final int DEFAULT_CACHE_SIZE = 1024;
+
+    private final ExpressionTokenizer numbers = new ExpressionTokenizer();
+    private final StringBuilder key = new StringBuilder();
+    private final Map<String, CompiledExpression> cache;
+    private final boolean variablesAllowed;
+    private final List<String> variables = new ArrayList<>();
+
+    private CharSequence input;
+    private int pos;
+    private String error;
+    private int errorPosition;
+
+    private int[] code = new int[32];
+    private int codeLength;
+    private double[] constants = new double[8];
+    private int constantCount;
+    private int stackDepth;
+    private int maxStack;
+
+    public ExpressionCompiler() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    public ExpressionCompiler(int cacheSize) {
+        this(cacheSize, false);
+    }
+
+    public ExpressionCompiler(int cacheSize, boolean variablesAllowed) {
+        this.variablesAllowed = variablesAllowed;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledExpression> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    // Возвращает программу или null, если выражение неверное (см. getError)
+    public CompiledExpression compile(CharSequence text) {
+        // Пробелы выбрасываем, кроме одного между двумя "словами": "1 2" и "12" - разные строки,
+        // и между знаком и числом: "-2^2" (знак у литерала) = 4, а "- 2^2" (унарный минус) = -4
+        key.setLength(0);
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = key.length() > 0;
+                continue;
+            }
+            if (space && keepsSpace(key.charAt(key.length() - 1), c)) key.append(' ');
+            key.append(c);
+            space = false;
+        }
+        String normalized = key.toString();
+        CompiledExpression cached = cache.get(normalized);
+        if (cached != null) {
+            error = null;
+            errorPosition = -1;
+            return cached;
+        }
+
+        CompiledExpression compiled = parse(text);
+        if (compiled != null) cache.put(normalized, compiled);
+        return compiled;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public int getErrorPosition() {
+        return errorPosition;
+    }
+
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    private CompiledExpression parse(CharSequence text) {
+        input = text;
+        pos = 0;
+        error = null;
+        errorPosition = -1;
+        codeLength = 0;
+        constantCount = 0;
+        stackDepth = 0;
+        maxStack = 0;
+        variables.clear();
+
+        if (!parseExpression()) return null;
+        skipSpaces();
+        if (pos != input.length()) {
+            fail(peek() == ')' ? "Лишняя закрывающая скобка" : "Лишние символы");
+            return null;
+        }
+        return new CompiledExpression(Arrays.copyOf(code, codeLength),
+                Arrays.copyOf(constants, constantCount), variables.toArray(new String[0]), maxStack);
+    }
+
+    private boolean parseExpression() {
+        if (!parseTerm()) return false;
+        while (true) {
+            int operator = nextOperator(Main.CalculatorOperator.ADDITIVE);
+            if (operator < 0) return true;
+            if (!parseTerm()) return false;
+            emitBinary(operator);
+        }
+    }
+
+    private boolean parseTerm() {
+        if (!parseUnary()) return false;
+        while (true) {
+            int operator = nextOperator(Main.CalculatorOperator.MULTIPLICATIVE);
+            if (operator < 0) return true;
+            if (!parseUnary()) return false;
+            emitBinary(operator);
+        }
+    }
+
+    private boolean parseUnary() {
+        char c = peek();
+        if ((c == '-' || c == '+') && !startsNumber(pos + 1)) {
+            pos++;
+            if (!parseUnary()) return false;
+            if (c == '-') emit(CompiledExpression.NEGATE);
+            return true;
+        }
+        return parsePower();
+    }
+
+    private boolean parsePower() {
+        if (!parsePrimary()) return false;
+        int operator = nextOperator(Main.CalculatorOperator.EXPONENT);
+        if (operator < 0) return true;
+        // Показатель разбираем как unary, чтобы правая часть снова могла содержать '^'
+        if (!parseUnary()) return false;
+        emitBinary(operator);
+        return true;
+    }
+
+    private boolean parsePrimary() {
+        char c = peek();
+        if (c == '(') {
+            int open = pos++;
+            if (!parseExpression()) return false;
+            if (peek() != ')') {
+                if (pos >= input.length()) errorPosition = open;
+                return fail("Не закрыта скобка");
+            }
+            pos++;
+            return true;
+        }
+
+        if (pos < input.length() && isIdentifierStart(input.charAt(pos))) return parseVariable();
+
+        int end = numbers.scanNumber(input, pos);
+        if (end < 0) {
+            if (pos >= input.length()) return fail("Неожиданный конец выражения");
+            errorPosition = numbers.getErrorPosition();
+            return fail(numbers.getError());
+        }
+        pos = end;
+        if (constantCount == constants.length) constants = Arrays.copyOf(constants, constantCount * 2);
+        constants[constantCount] = numbers.getNumber();
+        emit(CompiledExpression.PUSH);
+        emit(constantCount++);
+        stackDepth++;
+        maxStack = Math.max(maxStack, stackDepth);
+        return true;
+    }
+
+    private boolean parseVariable() {
+        int start = pos;
+        while (pos < input.length() && isWordChar(input.charAt(pos))) pos++;
+        String name = input.subSequence(start, pos).toString();
+        if (!variablesAllowed) {
+            pos = start;
+            return fail("Неизвестное имя " + name);
+        }
+
+        int index = variables.indexOf(name);
+        if (index < 0) {
+            index = variables.size();
+            variables.add(name);
+        }
+        emit(CompiledExpression.LOAD);
+        emit(index);
+        stackDepth++;
+        maxStack = Math.max(maxStack, stackDepth);
+        return true;
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+    }
+
+    // Пробел между previous и next меняет смысл выражения
+    private static boolean keepsSpace(char previous, char next) {
+        if (isWordChar(previous)) return isWordChar(next);
+        return (previous == '-' || previous == '+') && ((next >= '0' && next <= '9') || next == '.');
+    }
+
+    private boolean startsNumber(int index) {
+        if (index >= input.length()) return false;
+        char c = input.charAt(index);
+        return (c >= '0' && c <= '9') || c == '.';
+    }
+
+    // Если в текущей позиции оператор с приоритетом precedence - пропускает его и возвращает код, иначе -1
+    private int nextOperator(int precedence) {
+        skipSpaces();
+        int operator = OperatorRegistry.match(input, pos);
+        if (operator < 0 || OperatorRegistry.precedence(operator) != precedence) return -1;
+        pos += OperatorRegistry.symbolLength(operator);
+        return operator;
+    }
+
+    // Пропускает пробелы и возвращает текущий символ (0 в конце строки)
+    private char peek() {
+        skipSpaces();
+        return pos < input.length() ? input.charAt(pos) : 0;
+    }
+
+    private void skipSpaces() {
+        while (pos < input.length() && Character.isWhitespace(input.charAt(pos))) pos++;
+    }
+
+    private void emitBinary(int operator) {
+        emit(operator);
+        stackDepth--;
+    }
+
+    private void emit(int value) {
+        if (codeLength == code.length) code = Arrays.copyOf(code, codeLength * 2);
+        code[codeLength++] = value;
+    }
+
+    private boolean fail(String message) {
+        error = message;
+        if (errorPosition < 0) errorPosition = pos;
+        return false;
+    }
+}
+
+// Функция, в которую компилируется формула: значения переменных берутся
+// из bindings[offset], bindings[offset + 1], ... (одна строка матрицы привязок)
+interface FormulaFunction {
+    double evaluate(double[] bindings, int offset);
+}
+
+// Статические обёртки над функциями OperationType, которые вызывает сгенерированный байткод
+// для операций с проверками (деление на 0) или без своей инструкции JVM.
+final class FormulaKernels {
+    private FormulaKernels() {
+    }
+
+    static double divide(double a, double b) {
+        return OperationType.DIVIDE.apply(a, b);
+    }
+
+    static double intDivide(double a, double b) {
+        return OperationType.INT_DIVIDE.apply(a, b);
+    }
+
+    static double power(double a, double b) {
+        return OperationType.POWER.apply(a, b);
+    }
+
+    static double modulo(double a, double b) {
+        return OperationType.MODULO.apply(a, b);
+    }
+
+    // Оператор, подключённый через ServiceLoader, - по коду из OperatorRegistry
+    static double operator(double a, double b, int code) {
+        return OperatorRegistry.apply(code, a, b);
+    }
+}
+
+// Генератор class-файла для скрытого класса, реализующего FormulaFunction.
+// Метод evaluate - прямолинейный байткод без ветвлений (поэтому не нужен StackMapTable):
+// константы через ldc2_w, переменные через daload, +, -, * - инструкциями dadd/dsub/dmul,
+// остальное - вызовом FormulaKernels.
+final class FormulaClassWriter {
+    private static final String KERNELS = "FormulaKernels";
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<Object, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    // Возвращает байты class-файла или null, если метод не укладывается в 64 КБ байткода
+    byte[] write(CompiledExpression expression) throws IOException {
+        int thisClass = classRef("GeneratedFormula");
+        int superClass = classRef("java/lang/Object");
+        int iface = classRef("FormulaFunction");
+        int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+        int codeName = utf8("Code");
+        int initName = utf8("<init>");
+        int initType = utf8("()V");
+        int evaluateName = utf8("evaluate");
+        int evaluateType = utf8("([DI)D");
+
+        byte[] code = evaluateCode(expression);
+        if (code == null) return null;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(61); // Java 17
+        out.writeShort(poolCount);
+        out.write(pool.toByteArray());
+        out.writeShort(0x0010 | 0x0020); // ACC_FINAL | ACC_SUPER
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(iface);
+        out.writeShort(0); // полей нет
+        out.writeShort(2); // <init> и evaluate
+
+        byte[] init = {0x2a, (byte) 0xb7, (byte) (objectInit >> 8), (byte) objectInit, (byte) 0xb1};
+        writeMethod(out, initName, initType, codeName, 1, 1, init);
+        // На стеке: 2 слота на каждое double и ещё массив, смещение и номер переменной при daload
+        writeMethod(out, evaluateName, evaluateType, codeName, 2 * expression.getMaxStack() + 3, 3, code);
+
+        out.writeShort(0); // атрибутов класса нет
+        return bytes.toByteArray();
+    }
+
+    private byte[] evaluateCode(CompiledExpression expression) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream code = new DataOutputStream(bytes);
+        int[] program = expression.getCode();
+        double[] constants = expression.getConstants();
+
+        for (int i = 0; i < program.length; i++) {
+            int op = program[i];
+            if (op == CompiledExpression.PUSH) {
+                double value = constants[program[++i]];
+                if (Double.doubleToRawLongBits(value) == 0) {
+                    code.writeByte(0x0e); // dconst_0
+                } else if (value == 1) {
+                    code.writeByte(0x0f); // dconst_1
+                } else {
+                    code.writeByte(0x14); // ldc2_w
+                    code.writeShort(doubleConstant(value));
+                }
+            } else if (op == CompiledExpression.LOAD) {
+                int index = program[++i];
+                code.writeByte(0x2b); // aload_1
+                code.writeByte(0x1c); // iload_2
+                if (index > 0) {
+                    code.writeByte(0x11); // sipush
+                    code.writeShort(index);
+                    code.writeByte(0x60); // iadd
+                }
+                code.writeByte(0x31); // daload
+            } else if (op == CompiledExpression.NEGATE) {
+                code.writeByte(0x77); // dneg
+            } else if (OperationType.fromCode(op) == null) {
+                code.writeByte(0x11); // sipush
+                code.writeShort(op);
+                code.writeByte(0xb8); // invokestatic
+                code.writeShort(methodRef(KERNELS, "operator", "(DDI)D"));
+            } else {
+                switch (OperationType.fromCode(op)) {
+                    case ADD -> code.writeByte(0x63); // dadd
+                    case SUBTRACT -> code.writeByte(0x67); // dsub
+                    case MULTIPLY -> code.writeByte(0x6b); // dmul
+                    case DIVIDE -> invokeKernel(code, "divide");
+                    case INT_DIVIDE -> invokeKernel(code, "intDivide");
+                    case POWER -> invokeKernel(code, "power");
+                    case MODULO -> invokeKernel(code, "modulo");
+                }
+            }
+        }
+        code.writeByte(0xaf); // dreturn
+        return bytes.size() <= MAX_CODE_LENGTH ? bytes.toByteArray() : null;
+    }
+
+    private void invokeKernel(DataOutputStream code, String name) throws IOException {
+        code.writeByte(0xb8); // invokestatic
+        code.writeShort(methodRef(KERNELS, name, "(DD)D"));
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int type, int codeName,
+                                    int maxStack, int maxLocals, byte[] code) throws IOException {
+        out.writeShort(0x0001); // ACC_PUBLIC
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // таблицы исключений нет
+        out.writeShort(0); // атрибутов у Code нет
+    }
+
+    private int utf8(String value) throws IOException {
+        Integer index = poolIndex.get(value);
+        if (index != null) return index;
+        poolOut.writeByte(1);
+        poolOut.writeUTF(value);
+        return register(value, 1);
+    }
+
+    private int classRef(String name) throws IOException {
+        String key = "class:" + name;
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        int nameIndex = utf8(name);
+        poolOut.writeByte(7);
+        poolOut.writeShort(nameIndex);
+        return register(key, 1);
+    }
+
+    private int methodRef(String owner, String name, String type) throws IOException {
+        String key = "method:" + owner + "." + name + type;
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int typeIndex = utf8(type);
+        poolOut.writeByte(12); // NameAndType
+        poolOut.writeShort(nameIndex);
+        poolOut.writeShort(typeIndex);
+        int nameAndType = register("nat:" + name + type, 1);
+        poolOut.writeByte(10); // Methodref
+        poolOut.writeShort(ownerIndex);
+        poolOut.writeShort(nameAndType);
+        return register(key, 1);
+    }
+
+    private int doubleConstant(double value) throws IOException {
+        Long key = Double.doubleToRawLongBits(value);
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        poolOut.writeByte(6);
+        poolOut.writeDouble(value);
+        return register(key, 2); // double занимает две ячейки пула
+    }
+
+    private int register(Object key, int slots) {
+        int index = poolCount;
+        poolIndex.put(key, index);
+        poolCount += slots;
+        return index;
+    }
+}
+
+// Шаблон формулы с переменными, например "x * 1.2 + y ^ 2".
+// Формула разбирается ExpressionCompiler и переводится в скрытый класс (Lookup.defineHiddenClass),
+// который JIT компилирует как обычный метод - без интерпретации программы на каждой строке.
+// Значения переменных - строка double[] в порядке getVariables(); для многих строк подряд
+// evaluateAll берёт плоскую матрицу строк и считает её параллельно.
+// Интерпретатор CompiledExpression остаётся эталоном (interpret) для проверки результатов.
+final class FormulaTemplate {
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final String formula;
+    private final CompiledExpression expression;
+    private final FormulaFunction function;
+
+    private FormulaTemplate(String formula, CompiledExpression expression, FormulaFunction function) {
+        this.formula = formula;
+        this.expression = expression;
+        this.function = function;
+    }
+
+    public static FormulaTemplate compile(String formula) {
+        ExpressionCompiler compiler = new ExpressionCompiler(1, true);
+        CompiledExpression expression = compiler.compile(formula);
+        if (expression == null) {
+            throw new IllegalArgumentException("Неверная формула: " + compiler.getError().toLowerCase()
+                    + " (позиция " + (compiler.getErrorPosition() + 1) + ")");
+        }
+        return new FormulaTemplate(formula, expression, generate(expression));
+    }
+
+    private static FormulaFunction generate(CompiledExpression expression) {
+        try {
+            byte[] bytes = new FormulaClassWriter().write(expression);
+            if (bytes == null) return interpreter(expression);
+            Class<?> generated = LOOKUP.defineHiddenClass(bytes, true).lookupClass();
+            return (FormulaFunction) generated.getConstructor().newInstance();
+        } catch (IOException | ReflectiveOperationException e) {
+            throw new IllegalStateException("Не удалось сгенерировать класс для формулы", e);
+        }
+    }
+
+    // Слишком длинная формула остаётся на интерпретаторе
+    private static FormulaFunction interpreter(CompiledExpression expression) {
+        ThreadLocal<double[]> stacks = ThreadLocal.withInitial(() -> new double[expression.getMaxStack()]);
+        return (bindings, offset) -> expression.evaluate(bindings, offset, stacks.get());
+    }
+
+    public String getFormula() {
+        return formula;
+    }
+
+    public String[] getVariables() {
+        return expression.getVariables();
+    }
+
+    public double evaluate(double... bindings) throws ArithmeticException {
+        checkBindings(bindings.length, 1);
+        return function.evaluate(bindings, 0);
+    }
+
+    // Эталонное вычисление интерпретатором
+    public double interpret(double[] bindings, int offset) throws ArithmeticException {
+        return expression.evaluate(bindings, offset, new double[expression.getMaxStack()]);
+    }
+
+    // out[row] = формула от строки matrix[row * n .. row * n + n - 1], n = число переменных.
+    // Деление на 0 в любой строке бросает ArithmeticException, как и при вычислении по одной.
+    public void evaluateAll(double[] matrix, double[] out) throws ArithmeticException {
+        int rows = out.length;
+        checkBindings(matrix.length, rows);
+        if (rows < PARALLEL_THRESHOLD) {
+            evaluateRange(matrix, out, 0, rows);
+            return;
+        }
+
+        int parts = Runtime.getRuntime().availableProcessors() * 4;
+        int step = (rows + parts - 1) / parts;
+        IntStream.range(0, parts).parallel()
+                .forEach(part -> evaluateRange(matrix, out, part * step, Math.min(rows, (part + 1) * step)));
+    }
+
+    private void evaluateRange(double[] matrix, double[] out, int from, int to) {
+        int columns = expression.getVariableCount();
+        FormulaFunction f = function;
+        for (int row = from; row < to; row++) {
+            out[row] = f.evaluate(matrix, row * columns);
+        }
+    }
+
+    private void checkBindings(int length, int rows) {
+        if (length < (long) rows * expression.getVariableCount()) {
+            throw new IllegalArgumentException("Нужно " + expression.getVariableCount()
+                    + " значений переменных на строку " + Arrays.toString(expression.getVariables()));
+        }
+    }
+}
+
+// Проверка и замер шаблона формулы: случайная матрица привязок считается
+// интерпретатором и сгенерированным классом, результаты сравниваются побитно.
+class FormulaBenchmark {
+    public static void run(String formula, int rows) {
+        FormulaTemplate template = FormulaTemplate.compile(formula);
+        String[] variables = template.getVariables();
+        System.out.println("Формула: " + formula + ", переменные: " + Arrays.toString(variables));
+
+        Random random = new Random(1);
+        double[] matrix = new double[rows * variables.length];
+        for (int i = 0; i < matrix.length; i++) matrix[i] = random.nextDouble() * 200 - 100;
+        double[] reference = new double[rows];
+        double[] compiled = new double[rows];
+
+        long interpreted = Long.MAX_VALUE;
+        long generated = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int row = 0; row < rows; row++) {
+                reference[row] = template.interpret(matrix, row * variables.length);
+            }
+            interpreted = Math.min(interpreted, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            template.evaluateAll(matrix, compiled);
+            generated = Math.min(generated, System.nanoTime() - start);
+        }
+
+        int mismatches = 0;
+        for (int row = 0; row < rows; row++) {
+            if (Double.doubleToLongBits(reference[row]) != Double.doubleToLongBits(compiled[row])) mismatches++;
+        }
+        System.out.printf("Интерпретатор: %.0f строк/с%n", rows / (interpreted / 1e9));
+        System.out.printf("Скрытый класс: %.0f строк/с%n", rows / (generated / 1e9));
+        System.out.println("Расхождений с интерпретатором: " + mismatches + " из " + rows);
+    }
+}
+
+// Таблица именованных ячеек вида c17 = c3 * c9 на тех же операциях OperationType.
+// Ячейка хранит скомпилированную формулу, ссылки на ячейки-аргументы и обратные ссылки
+// на зависимые ячейки. set/setValue только запоминают изменение, recalculate() пересчитывает
+// изменённые ячейки и всё, что ниже них по графу, волнами в топологическом порядке:
+// в волну попадают ячейки, все аргументы которых уже посчитаны, большие волны
+// считаются параллельно в общем fork-join пуле. Циклические ссылки отклоняются в set.
+// Деление на 0 делает ячейку ошибочной, ошибка переходит на все зависимые от неё ячейки,
+// остальные пересчитываются как обычно. Пустая ячейка, на которую ссылаются, равна 0.
+// Экземпляр не потокобезопасен.
+final class Spreadsheet {
+    private static final int PARALLEL_THRESHOLD = 256;
+    private static final Cell[] NO_CELLS = new Cell[0];
+    private static final double[] NO_VALUES = new double[0];
+
+    private static final class Cell {
+        final String name;
+        final List<Cell> dependents = new ArrayList<>();
+        CompiledExpression formula; // null - значение задано напрямую
+        Cell[] inputs = NO_CELLS;   // в порядке переменных формулы
+        double[] bindings = NO_VALUES;
+        double value;
+        String error;
+        // Состояние обхода графа: номер обхода и число ещё не посчитанных аргументов
+        int mark;
+        int waiting;
+
+        Cell(String name) {
+            this.name = name;
+        }
+    }
+
+    private final Map<String, Cell> cells = new HashMap<>();
+    private final ExpressionCompiler compiler = new ExpressionCompiler(4096, true);
+    private final List<Cell> changed = new ArrayList<>();
+    private final ThreadLocal<double[]> stacks = ThreadLocal.withInitial(() -> new double[16]);
+    private int epoch;
+    private int lastWaves;
+
+    // Формула ячейки: число или выражение над другими ячейками, например "c3 * c9 + 1"
+    public void set(String name, String formula) {
+        checkName(name);
+        CompiledExpression expression = compiler.compile(formula);
+        if (expression == null) {
+            throw new IllegalArgumentException("Неверная формула ячейки " + name + ": "
+                    + compiler.getError().toLowerCase() + " (позиция " + (compiler.getErrorPosition() + 1) + ")");
+        }
+
+        String[] variables = expression.getVariables();
+        Cell cell = cells.get(name);
+        if (cell != null) markDownstream(cell);
+        for (String variable : variables) {
+            Cell input = cells.get(variable);
+            if (variable.equals(name)) {
+                throw new IllegalArgumentException("Циклическая ссылка: " + name + " ссылается на саму себя");
+            }
+            // Аргумент, который сам (через другие ячейки) зависит от этой
+            if (cell != null && input != null && input.mark == epoch) {
+                throw new IllegalArgumentException("Циклическая ссылка: " + name + " зависит от " + variable
+                        + ", а " + variable + " - от " + name);
+            }
+        }
+
+        if (cell == null) cell = cell(name);
+        Cell[] inputs = new Cell[variables.length];
+        for (int i = 0; i < variables.length; i++) inputs[i] = cell(variables[i]);
+        detach(cell);
+        cell.formula = expression;
+        cell.inputs = inputs;
+        cell.bindings = new double[inputs.length];
+        for (Cell input : inputs) input.dependents.add(cell);
+        changed.add(cell);
+    }
+
+    public void setValue(String name, double value) {
+        checkName(name);
+        Cell cell = cell(name);
+        detach(cell);
+        cell.formula = null;
+        cell.inputs = NO_CELLS;
+        cell.bindings = NO_VALUES;
+        cell.value = value;
+        cell.error = null;
+        changed.add(cell);
+    }
+
+    // Значение ячейки на момент последнего recalculate(); у ошибочной ячейки - ArithmeticException
+    public double getValue(String name) throws ArithmeticException {
+        Cell cell = cells.get(name);
+        if (cell == null) return 0;
+        if (cell.error != null) throw new ArithmeticException(cell.error);
+        return cell.value;
+    }
+
+    // Текст ошибки ячейки или null
+    public String getError(String name) {
+        Cell cell = cells.get(name);
+        return cell == null ? null : cell.error;
+    }
+
+    public int size() {
+        return cells.size();
+    }
+
+    // Число волн в последнем пересчёте (длина самой длинной цепочки изменённых ячеек)
+    public int getLastWaveCount() {
+        return lastWaves;
+    }
+
+    // Пересчитывает изменённые ячейки и все зависимые от них; возвращает число пересчитанных
+    public int recalculate() {
+        if (changed.isEmpty()) return 0;
+        List<Cell> dirty = new ArrayList<>();
+        int mark = ++epoch;
+        ArrayDeque<Cell> pending = new ArrayDeque<>();
+        for (Cell cell : changed) {
+            if (cell.mark != mark) {
+                cell.mark = mark;
+                pending.push(cell);
+            }
+        }
+        changed.clear();
+        while (!pending.isEmpty()) {
+            Cell cell = pending.pop();
+            dirty.add(cell);
+            for (Cell dependent : cell.dependents) {
+                if (dependent.mark != mark) {
+                    dependent.mark = mark;
+                    pending.push(dependent);
+                }
+            }
+        }
+
+        List<Cell> wave = new ArrayList<>();
+        for (Cell cell : dirty) {
+            int waiting = 0;
+            for (Cell input : cell.inputs) {
+                if (input.mark == mark) waiting++;
+            }
+            cell.waiting = waiting;
+            if (waiting == 0) wave.add(cell);
+        }
+
+        lastWaves = 0;
+        while (!wave.isEmpty()) {
+            computeWave(wave);
+            lastWaves++;
+            List<Cell> next = new ArrayList<>();
+            for (Cell cell : wave) {
+                for (Cell dependent : cell.dependents) {
+                    if (dependent.mark == mark && --dependent.waiting == 0) next.add(dependent);
+                }
+            }
+            wave = next;
+        }
+        return dirty.size();
+    }
+
+    // Полный пересчёт всех ячеек - для сравнения с инкрементальным
+    public int recalculateAll() {
+        changed.addAll(cells.values());
+        return recalculate();
+    }
+
+    private void computeWave(List<Cell> wave) {
+        if (wave.size() < PARALLEL_THRESHOLD) {
+            for (Cell cell : wave) compute(cell);
+            return;
+        }
+        Cell[] batch = wave.toArray(NO_CELLS);
+        IntStream.range(0, batch.length).parallel().forEach(i -> compute(batch[i]));
+    }
+
+    private void compute(Cell cell) {
+        if (cell.formula == null) return;
+        Cell[] inputs = cell.inputs;
+        for (int i = 0; i < inputs.length; i++) {
+            if (inputs[i].error != null) {
+                cell.value = Double.NaN;
+                cell.error = inputs[i].error;
+                return;
+            }
+            cell.bindings[i] = inputs[i].value;
+        }
+
+        double[] stack = stacks.get();
+        if (stack.length < cell.formula.getMaxStack()) {
+            stack = new double[cell.formula.getMaxStack()];
+            stacks.set(stack);
+        }
+        try {
+            cell.value = cell.formula.evaluate(cell.bindings, 0, stack);
+            cell.error = null;
+        } catch (ArithmeticException e) {
+            cell.value = Double.NaN;
+            cell.error = e.getMessage() + " (ячейка " + cell.name + ")";
+        }
+    }
+
+    // Помечает текущим номером обхода ячейку и всё, что от неё зависит
+    private void markDownstream(Cell from) {
+        int mark = ++epoch;
+        ArrayDeque<Cell> pending = new ArrayDeque<>();
+        from.mark = mark;
+        pending.push(from);
+        while (!pending.isEmpty()) {
+            for (Cell dependent : pending.pop().dependents) {
+                if (dependent.mark != mark) {
+                    dependent.mark = mark;
+                    pending.push(dependent);
+                }
+            }
+        }
+    }
+
+    private void detach(Cell cell) {
+        for (Cell input : cell.inputs) input.dependents.remove(cell);
+    }
+
+    private Cell cell(String name) {
+        return cells.computeIfAbsent(name, Cell::new);
+    }
+
+    private static void checkName(String name) {
+        boolean valid = !name.isEmpty() && (Character.isLetter(name.charAt(0)) || name.charAt(0) == '_');
+        for (int i = 1; valid && i < name.length(); i++) {
+            char c = name.charAt(i);
+            valid = Character.isLetterOrDigit(c) || c == '_';
+        }
+        if (!valid) throw new IllegalArgumentException("Неверное имя ячейки: " + name);
+    }
+}
+
+// Замер пересчёта таблицы: входные ячейки in0..inK и формулы над случайными
+// более ранними ячейками. Сравниваются полный пересчёт и пересчёт после изменения
+// одной входной ячейки; результат инкрементального пересчёта сверяется с полным.
+class SpreadsheetBenchmark {
+    public static void run(int cellCount) {
+        Random random = new Random(1);
+        Spreadsheet sheet = new Spreadsheet();
+        int inputs = Math.max(1, cellCount / 10);
+        String[] names = new String[cellCount];
+        String[] operators = {"+", "-", "*", "/"};
+        for (int i = 0; i < cellCount; i++) {
+            names[i] = i < inputs ? "in" + i : "c" + i;
+            if (i < inputs) {
+                sheet.setValue(names[i], 1 + random.nextInt(100));
+            } else {
+                // Аргументы - из последних 1000 ячеек, чтобы граф был глубоким, а не одним слоем
+                String a = names[Math.max(0, i - 1 - random.nextInt(Math.min(i, 1000)))];
+                String b = names[Math.max(0, i - 1 - random.nextInt(Math.min(i, 1000)))];
+                String op = operators[random.nextInt(random.nextInt(4) == 0 ? 4 : 2)];
+                sheet.set(names[i], a + " " + op + " (" + b + " + 1)");
+            }
+        }
+
+        long start = System.nanoTime();
+        int full = sheet.recalculateAll();
+        long fullTime = System.nanoTime() - start;
+        System.out.printf("Ячеек: %d, полный пересчёт: %d ячеек, %d волн, %.3f мс%n",
+                sheet.size(), full, sheet.getLastWaveCount(), fullTime / 1e6);
+
+        long incrementalTime = 0;
+        int recalculated = 0;
+        int updates = 100;
+        for (int round = 0; round < updates; round++) {
+            sheet.setValue(names[random.nextInt(inputs)], 1 + random.nextInt(100));
+            start = System.nanoTime();
+            recalculated += sheet.recalculate();
+            incrementalTime += System.nanoTime() - start;
+        }
+        System.out.printf("Изменение одной входной ячейки: в среднем %d ячеек, %.3f мс%n",
+                recalculated / updates, incrementalTime / 1e6 / updates);
+
+        // Делитель становится нулём: ошибка у ячейки и у всего, что от неё зависит
+        String last = names[inputs - 1];
+        sheet.set(names[inputs], "1 / (" + last + " + 1)");
+        sheet.setValue(last, -1);
+        sheet.recalculate();
+        int errors = 0;
+        for (String name : names) {
+            if (sheet.getError(name) != null) errors++;
+        }
+        System.out.println("Ячеек с ошибкой после " + last + " = -1: " + errors);
+
+        double[] incremental = new double[cellCount];
+        for (int i = 0; i < cellCount; i++) incremental[i] = value(sheet, names[i]);
+        sheet.recalculateAll();
+        int mismatches = 0;
+        for (int i = 0; i < cellCount; i++) {
+            if (Double.doubleToLongBits(incremental[i]) != Double.doubleToLongBits(value(sheet, names[i]))) {
+                mismatches++;
+            }
+        }
+        System.out.println("Расхождений инкрементального пересчёта с полным: " + mismatches);
+    }
+
+    private static double value(Spreadsheet sheet, String name) {
+        return sheet.getError(name) != null ? Double.NaN : sheet.getValue(name);
+    }
+}
+
+// Класс для валидации выражений
+class Validator {
+    public static boolean isValid(CharSequence input) {
+        return new ExpressionTokenizer().tokenize(input);
+    }
+}
+
+// Гистограмма задержек с корзинами по степеням двойки (1, 2, 4, ... нс).
+// Точность - в пределах одной корзины, зато запись - один LongAdder.increment.
+final class LatencyHistogram {
+    private final LongAdder[] buckets = new LongAdder[64];
+
+    LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+    }
+
+    void record(long nanos) {
+        buckets[63 - Long.numberOfLeadingZeros(Math.max(nanos, 1))].increment();
+    }
+
+    long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) count += bucket.sum();
+        return count;
+    }
+
+    // Верхняя граница корзины, в которую попал квантиль q (0 < q <= 1)
+    long percentile(double q) {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return i == 62 ? Long.MAX_VALUE : (2L << i) - 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    void reset() {
+        for (LongAdder bucket : buckets) bucket.reset();
+    }
+}
+
+// Счётчики по типам операций и ошибкам, гистограммы задержек по этапам.
+// Всё на LongAdder, так что потоки пакетного режима и сервера не спорят за одну ячейку.
+// Отключение: -Dcalculator.metrics=false или setEnabled(false) через JMX - тогда на строку
+// остаётся одно чтение volatile-поля, без вызовов System.nanoTime.
+// Периодический отчёт в stderr: -Dcalculator.metrics.dump=<секунды>.
+final class CalculatorMetrics implements Main.CalculatorMetricsMXBean {
+    // Этапы: PARSE - разбор вместе с проверкой (это один проход токенизатора/компилятора)
+    enum Stage {
+        PARSE,
+        EVALUATE
+    }
+
+    // Индекс для выражений, посчитанных через ExpressionCompiler (в них разные операции)
+    private static final int FORMULA = OperatorRegistry.size();
+
+    static final CalculatorMetrics INSTANCE = create();
+
+    private volatile boolean enabled = !"false".equals(System.getProperty("calculator.metrics"));
+    private final LongAdder[] evaluations = new LongAdder[FORMULA + 1];
+    private final LongAdder[] divisionByZero = new LongAdder[FORMULA + 1];
+    private final LongAdder validationErrors = new LongAdder();
+    private final LatencyHistogram[] latency = new LatencyHistogram[Stage.values().length];
+
+    private CalculatorMetrics() {
+        for (int i = 0; i < evaluations.length; i++) {
+            evaluations[i] = new LongAdder();
+            divisionByZero[i] = new LongAdder();
+        }
+        for (int i = 0; i < latency.length; i++) latency[i] = new LatencyHistogram();
+    }
+
+    private static CalculatorMetrics create() {
+        CalculatorMetrics metrics = new CalculatorMetrics();
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(metrics, new ObjectName("calculator:type=Metrics"));
+        } catch (JMException e) {
+            System.err.println("Метрики не зарегистрированы в JMX: " + e.getMessage());
+        }
+
+        long dumpSeconds = Long.getLong("calculator.metrics.dump", 0);
+        if (dumpSeconds > 0) {
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.scheduleAtFixedRate(() -> System.err.print(metrics.getReport()),
+                    dumpSeconds, dumpSeconds, TimeUnit.SECONDS);
+        }
+        return metrics;
+    }
+
+    // operator - код из OperatorRegistry, -1 - выражение через ExpressionCompiler
+    void recordEvaluation(int operator, long parseNanos, long evaluateNanos) {
+        record(operator < 0 ? FORMULA : operator, parseNanos, evaluateNanos);
+    }
+
+    void recordDivisionByZero(int operator) {
+        divisionByZero[operator < 0 ? FORMULA : operator].increment();
+    }
+
+    void recordValidationError(long parseNanos) {
+        validationErrors.increment();
+        latency[Stage.PARSE.ordinal()].record(parseNanos);
+    }
+
+    private void record(int index, long parseNanos, long evaluateNanos) {
+        evaluations[index].increment();
+        latency[Stage.PARSE.ordinal()].record(parseNanos);
+        latency[Stage.EVALUATE.ordinal()].record(evaluateNanos);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public long getTotalEvaluations() {
+        long total = 0;
+        for (LongAdder adder : evaluations) total += adder.sum();
+        return total;
+    }
+
+    @Override
+    public long getValidationErrors() {
+        return validationErrors.sum();
+    }
+
+    @Override
+    public Map<String, Long> getEvaluationsByOperation() {
+        return byOperation(evaluations);
+    }
+
+    @Override
+    public Map<String, Long> getDivisionByZeroByOperation() {
+        return byOperation(divisionByZero);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyNanos() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = latency[stage.ordinal()];
+            values.put(stage + ".count", histogram.count());
+            values.put(stage + ".p50", histogram.percentile(0.5));
+            values.put(stage + ".p90", histogram.percentile(0.9));
+            values.put(stage + ".p99", histogram.percentile(0.99));
+            values.put(stage + ".max", histogram.percentile(1.0));
+        }
+        return values;
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder("===== Метрики калькулятора =====\n");
+        report.append(String.format("%-12s %14s %14s%n", "Операция", "Вычислений", "Деление на 0"));
+        for (int i = 0; i < evaluations.length; i++) {
+            report.append(String.format("%-12s %14d %14d%n",
+                    i == FORMULA ? "FORMULA" : OperatorRegistry.get(i).name(), evaluations[i].sum(), divisionByZero[i].sum()));
+        }
+        report.append("Неверных выражений: ").append(validationErrors.sum()).append('\n');
+        report.append(String.format("%-12s %12s %10s %10s %10s %10s%n", "Этап", "Замеров", "p50, нс", "p90, нс", "p99, нс", "max, нс"));
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = latency[stage.ordinal()];
+            report.append(String.format("%-12s %12d %10d %10d %10d %10d%n", stage, histogram.count(),
+                    histogram.percentile(0.5), histogram.percentile(0.9), histogram.percentile(0.99),
+                    histogram.percentile(1.0)));
+        }
+        if (!enabled) report.append("(сбор метрик выключен)\n");
+        return report.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < evaluations.length; i++) {
+            evaluations[i].reset();
+            divisionByZero[i].reset();
+        }
+        validationErrors.reset();
+        for (LatencyHistogram histogram : latency) histogram.reset();
+    }
+
+    private static Map<String, Long> byOperation(LongAdder[] counters) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (int i = 0; i < counters.length; i++) {
+            values.put(i == FORMULA ? "FORMULA" : OperatorRegistry.get(i).name(), counters[i].sum());
+        }
+        return values;
+    }
+}
+
+// Строка из ASCII-байт, которую токенизатор читает без копирования в String
+final class AsciiLine implements CharSequence {
+    byte[] bytes = new byte[256];
+    int length;
+
+    void append(byte c) {
+        if (length == bytes.length) bytes = Arrays.copyOf(bytes, length * 2);
+        bytes[length++] = c;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (bytes[index] & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+}
+
+// Журнал вычислений в файле, отображённом в память: заголовок и кольцо записей
+// фиксированной длины. Номер записи n (с 1) растёт и после перезапуска, запись n лежит
+// в ячейке (n - 1) % capacity, поэтому поиск по номеру - O(1), по времени - двоичный поиск.
+// Запись не выделяет памяти: поля пишутся прямо в буфер, номер записи - последним
+// (setRelease), читатель проверяет номер до и после чтения полей (как seqlock),
+// так что недописанная или уже перезаписанная запись не читается.
+// Несколько потоков могут писать одновременно: номер выдаёт AtomicLong.
+// Данные попадают в файл через страничный кэш ОС (переживают завершение процесса),
+// force() при закрытии сбрасывает их на диск.
+// Результат режима точности хранится десятичной записью в конце записи (версия 2), чтобы
+// ans и $n подставляли его без потерь. Место под запись задаётся при создании журнала
+// (-Dcalculator.history.digits, значащих цифр); не поместившийся результат хранится только
+// как double и в выражения не подставляется. Журналы версии 1 (без места под запись) читаются.
+final class HistoryLog implements AutoCloseable {
+    static final int OK = 0;
+    static final int EXACT = 1; // операнды и результат - long
+    static final int DIVISION_BY_ZERO = 2;
+    static final int DECIMAL = 3; // результат режима точности, десятичная запись в TEXT
+    static final int DECIMAL_ROUNDED = 4; // результат режима точности не поместился в TEXT
+    // Код оператора для выражений, посчитанных через ExpressionCompiler (операндов нет)
+    static final int EXPRESSION = -1;
+
+    private static final int MAGIC = 0x43414C48; // "CALH"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int V1_RECORD_SIZE = 48;
+    // Смещения полей в записи
+    private static final int NUMBER = 0;
+    private static final int TIME = 8;
+    private static final int OPERAND1 = 16;
+    private static final int OPERAND2 = 24;
+    private static final int RESULT = 32;
+    private static final int OPERATOR = 40;
+    private static final int STATUS = 44;
+    private static final int TEXT_LENGTH = 48; // short
+    private static final int TEXT = 50;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int recordSize;
+    private final int textCapacity; // байт под десятичную запись, 0 - журнал версии 1
+    private final AtomicLong next;
+
+    // Содержимое одной записи; один объект можно переиспользовать для многих read
+    static final class Entry {
+        long number;
+        long timestamp;
+        int operator;
+        int status;
+        long operand1;
+        long operand2;
+        long result;
+        String text; // десятичная запись результата (DECIMAL)
+
+        double getOperand1() {
+            return status == EXACT ? operand1 : Double.longBitsToDouble(operand1);
+        }
+
+        double getOperand2() {
+            return status == EXACT ? operand2 : Double.longBitsToDouble(operand2);
+        }
+
+        double getResult() {
+            return status == EXACT ? result : Double.longBitsToDouble(result);
+        }
+
+        @Override
+        public String toString() {
+            LocalTime time = LocalTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault())
+                    .truncatedTo(ChronoUnit.SECONDS);
+            StringBuilder text = new StringBuilder().append('$').append(number).append("  ").append(time).append("  ");
+            if (operator == EXPRESSION) {
+                text.append("выражение");
+            } else {
+                String symbol = operator < OperatorRegistry.size()
+                        ? OperatorRegistry.get(operator).getSymbol() : "оператор#" + operator;
+                text.append(format(operand1, getOperand1())).append(' ').append(symbol).append(' ')
+                        .append(format(operand2, getOperand2()));
+            }
+            text.append(" = ");
+            if (status == DIVISION_BY_ZERO) text.append("деление на 0");
+            else if (status == DECIMAL) text.append(PreciseArithmetic.toText(new BigDecimal(this.text)));
+            else if (status == DECIMAL_ROUNDED) text.append(getResult()).append(" (приближённо)");
+            else text.append(format(result, getResult()));
+            return text.toString();
+        }
+
+        private String format(long exact, double value) {
+            return status == EXACT ? Long.toString(exact) : Double.toString(value);
+        }
+    }
+
+    private HistoryLog(MappedByteBuffer buffer, int capacity, int recordSize) {
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.recordSize = recordSize;
+        this.textCapacity = Math.max(0, recordSize - TEXT);
+        // Восстановление после перезапуска: последний номер - наибольший среди записей
+        long last = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            last = Math.max(last, buffer.getLong(HEADER_SIZE + slot * recordSize + NUMBER));
+        }
+        this.next = new AtomicLong(last + 1);
+    }
+
+    // Открывает журнал или создаёт новый на capacity записей с местом под результат режима
+    // точности из digits значащих цифр (у существующего журнала - его размеры)
+    static HistoryLog open(Path file, int capacity, int digits) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        if (directory != null) Files.createDirectories(directory);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Знак, точка, "E+" и показатель, выровнено по 8 байт
+            int recordSize = (TEXT + digits + 16 + 7) & ~7;
+            if (channel.size() >= HEADER_SIZE) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                int version = header.getInt(4);
+                recordSize = header.getInt(12);
+                boolean known = version == 1 ? recordSize == V1_RECORD_SIZE
+                        : version == VERSION && recordSize > TEXT && recordSize % 8 == 0;
+                if (header.getInt(0) != MAGIC || !known) {
+                    throw new IOException("Файл " + file + " - не журнал вычислений этой версии");
+                }
+                capacity = header.getInt(8);
+            } else if (channel.size() > 0) {
+                throw new IOException("Файл " + file + " - не журнал вычислений");
+            }
+
+            long size = HEADER_SIZE + (long) capacity * recordSize;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (buffer.getInt(0) != MAGIC) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, capacity);
+                buffer.putInt(12, recordSize);
+            }
+            return new HistoryLog(buffer, capacity, recordSize);
+        }
+    }
+
+    // Журнал по умолчанию для консоли: в каталоге пользователя, а не в текущем
+    static Path defaultFile() {
+        return Path.of(System.getProperty("user.home"), ".calculator", "history.bin");
+    }
+
+    // Журнал для консоли и сервера: -Dcalculator.history=<файл>, "false" - без журнала.
+    // defaultFile - файл по умолчанию (null - без журнала, если свойство не задано)
+    static HistoryLog openConfigured(Path defaultFile) {
+        String file = System.getProperty("calculator.history");
+        if (file == null && defaultFile == null || "false".equals(file)) return null;
+        try {
+            return open(file != null ? Path.of(file) : defaultFile,
+                    Integer.getInteger("calculator.history.size", 1 << 16),
+                    Integer.getInteger("calculator.history.digits", 64));
+        } catch (IOException e) {
+            System.err.println("Журнал вычислений не открыт: " + e.getMessage());
+            return null;
+        }
+    }
+
+    long appendExact(int operator, long a, long b, long result) {
+        return append(operator, EXACT, a, b, result);
+    }
+
+    long append(int operator, double a, double b, double result) {
+        return append(operator, OK, Double.doubleToRawLongBits(a), Double.doubleToRawLongBits(b),
+                Double.doubleToRawLongBits(result));
+    }
+
+    // Результат режима точности: десятичная запись, если помещается, и double для getResult
+    long appendDecimal(int operator, double a, double b, BigDecimal result) {
+        String text = result.toString();
+        boolean fits = text.length() <= textCapacity;
+        return append(operator, fits ? DECIMAL : DECIMAL_ROUNDED, Double.doubleToRawLongBits(a),
+                Double.doubleToRawLongBits(b), Double.doubleToRawLongBits(result.doubleValue()), fits ? text : null);
+    }
+
+    long appendError(int operator, double a, double b) {
+        return append(operator, DIVISION_BY_ZERO, Double.doubleToRawLongBits(a), Double.doubleToRawLongBits(b),
+                Double.doubleToRawLongBits(Double.NaN));
+    }
+
+    private long append(int operator, int status, long a, long b, long result) {
+        return append(operator, status, a, b, result, null);
+    }
+
+    // Возвращает номер записи
+    private long append(int operator, int status, long a, long b, long result, String text) {
+        long number = next.getAndIncrement();
+        int base = offset(number);
+        // Пока поля пишутся, номер в записи - 0, и читатели её пропускают
+        LONGS.setOpaque(buffer, base + NUMBER, 0L);
+        VarHandle.storeStoreFence();
+        buffer.putLong(base + TIME, System.currentTimeMillis());
+        buffer.putLong(base + OPERAND1, a);
+        buffer.putLong(base + OPERAND2, b);
+        buffer.putLong(base + RESULT, result);
+        buffer.putInt(base + OPERATOR, operator);
+        buffer.putInt(base + STATUS, status);
+        if (text != null) {
+            buffer.putShort(base + TEXT_LENGTH, (short) text.length());
+            for (int i = 0; i < text.length(); i++) buffer.put(base + TEXT + i, (byte) text.charAt(i));
+        }
+        LONGS.setRelease(buffer, base + NUMBER, number);
+        return number;
+    }
+
+    // Номер последней записи (0 - журнал пуст)
+    long last() {
+        return next.get() - 1;
+    }
+
+    // Номер самой старой записи, которая ещё не перезаписана по кругу
+    long first() {
+        return Math.max(1, last() - capacity + 1);
+    }
+
+    // false - записи с таким номером нет (ещё не записана или уже перезаписана)
+    boolean read(long number, Entry entry) {
+        if (number < first() || number > last()) return false;
+        int base = offset(number);
+        if ((long) LONGS.getAcquire(buffer, base + NUMBER) != number) return false;
+        entry.number = number;
+        entry.timestamp = buffer.getLong(base + TIME);
+        entry.operand1 = buffer.getLong(base + OPERAND1);
+        entry.operand2 = buffer.getLong(base + OPERAND2);
+        entry.result = buffer.getLong(base + RESULT);
+        entry.operator = buffer.getInt(base + OPERATOR);
+        entry.status = buffer.getInt(base + STATUS);
+        entry.text = null;
+        if (entry.status == DECIMAL) {
+            int length = Math.min(buffer.getShort(base + TEXT_LENGTH), textCapacity);
+            byte[] text = new byte[Math.max(0, length)];
+            buffer.get(base + TEXT, text);
+            entry.text = new String(text, StandardCharsets.US_ASCII);
+        }
+        VarHandle.loadLoadFence();
+        return (long) LONGS.getOpaque(buffer, base + NUMBER) == number;
+    }
+
+    // Номер первой записи не раньше millis (last() + 1, если таких нет).
+    // Время записей растёт вместе с номером, поэтому - двоичный поиск.
+    long search(long millis) {
+        Entry entry = new Entry();
+        long low = first();
+        long high = last() + 1;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (read(middle, entry) && entry.timestamp >= millis) high = middle;
+            else low = middle + 1;
+        }
+        return low;
+    }
+
+    // Результат записи number для подстановки в выражение
+    double recall(long number) {
+        return resolve(number).getResult();
+    }
+
+    private Entry resolve(long number) {
+        Entry entry = new Entry();
+        if (!read(number, entry)) throw new IllegalArgumentException("Нет записи $" + number + " в журнале");
+        if (entry.status == DIVISION_BY_ZERO) {
+            throw new IllegalArgumentException("Вычисление $" + number + " закончилось ошибкой");
+        }
+        return entry;
+    }
+
+    // Номер последнего успешного вычисления (для ans), 0 - такого нет
+    long lastResult() {
+        Entry entry = new Entry();
+        for (long number = last(); number >= first(); number--) {
+            if (read(number, entry) && entry.status != DIVISION_BY_ZERO) return number;
+        }
+        return 0;
+    }
+
+    // Подставляет в строку результаты вместо ans (последний результат) и $n (результат записи n)
+    String expandReferences(String line) {
+        if (line.indexOf('$') < 0 && !line.contains("ans")) return line;
+        StringBuilder expanded = new StringBuilder(line.length() + 16);
+        int pos = 0;
+        while (pos < line.length()) {
+            char c = line.charAt(pos);
+            long number = -1;
+            int end = pos;
+            if (c == '$' && pos + 1 < line.length() && Character.isDigit(line.charAt(pos + 1))) {
+                end = pos + 1;
+                while (end < line.length() && Character.isDigit(line.charAt(end))) end++;
+                if (end - pos > 18) throw new IllegalArgumentException("Нет записи " + line.substring(pos, end) + " в журнале");
+                number = Long.parseLong(line, pos + 1, end, 10);
+            } else if (line.startsWith("ans", pos) && !isWordChar(line, pos - 1) && !isWordChar(line, pos + 3)) {
+                end = pos + 3;
+                number = lastResult();
+                if (number == 0) throw new IllegalArgumentException("В журнале ещё нет результатов для ans");
+            }
+            if (number < 0) {
+                expanded.append(c);
+                pos++;
+                continue;
+            }
+
+            Entry entry = resolve(number);
+            double value = entry.getResult();
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                throw new IllegalArgumentException("Результат $" + number + " - не число: " + value);
+            }
+            if (entry.status == DECIMAL_ROUNDED) {
+                throw new IllegalArgumentException("Результат $" + number + " длиннее места в журнале и хранится"
+                        + " только приближённо; увеличьте -Dcalculator.history.digits для нового журнала");
+            }
+            String text = entry.status == EXACT ? Long.toString(entry.result)
+                    : entry.status == DECIMAL ? entry.text : Double.toString(value);
+            // Отрицательное значение - в скобках, чтобы после подстановки оно оставалось одним числом
+            if (value < 0) expanded.append('(').append(text).append(')');
+            else expanded.append(text);
+            pos = end;
+        }
+        return expanded.toString();
+    }
+
+    private static boolean isWordChar(String line, int index) {
+        return index >= 0 && index < line.length() && Character.isLetterOrDigit(line.charAt(index));
+    }
+
+    private int offset(long number) {
+        return HEADER_SIZE + (int) ((number - 1) % capacity) * recordSize;
+    }
+
+    @Override
+    public void close() {
+        buffer.force();
+    }
+}
+
+// Вычисление одной строки, общее для консоли, пакетного режима и сервера:
+// "a op b" считается сразу по токенам, остальное компилируется (с кэшем).
+// Экземпляр не потокобезопасен: в каждом потоке свой.
+class LineEvaluator {
+    private final Calculator calculator = new Calculator();
+    private final ExpressionTokenizer tokenizer = new ExpressionTokenizer();
+    private final ExpressionCompiler compiler = new ExpressionCompiler();
+    private final ExactArithmetic exact = new ExactArithmetic();
+    private double[] stack = new double[16];
+    private double result;
+    private boolean exactResult;
+    private HistoryLog history;
+    private long historyNumber;
+    private PreciseArithmetic precise;
+    private BigDecimal preciseResult;
+
+    // Журнал, в который пишется каждое вычисление (null - не писать)
+    public void setHistory(HistoryLog history) {
+        this.history = history;
+    }
+
+    // Режим точности: вычисления в BigDecimal с округлением по context (null - обычный режим, double)
+    public void setPrecision(MathContext context) {
+        precise = context == null ? null : new PreciseArithmetic(context);
+    }
+
+    public MathContext getPrecision() {
+        return precise == null ? null : precise.getContext();
+    }
+
+    // false - выражение неверное (см. getError); ArithmeticException - ошибка при вычислении
+    public boolean evaluate(CharSequence line) throws ArithmeticException {
+        CalculatorMetrics metrics = CalculatorMetrics.INSTANCE;
+        boolean measure = metrics.isEnabled();
+        long start = measure ? System.nanoTime() : 0;
+        preciseResult = null;
+
+        if (tokenizer.tokenize(line)) {
+            int operator = tokenizer.getOperator();
+            OperationType type = OperationType.fromCode(operator);
+            long parsed = measure ? System.nanoTime() : 0;
+            try {
+                if (precise != null) {
+                    exactResult = false;
+                    preciseResult = evaluatePrecise(operator, type);
+                    result = preciseResult.doubleValue();
+                } else {
+                    // Целые операнды встроенных операций считаем точно в long, при переполнении - в double
+                    exactResult = type != null && tokenizer.isIntegral()
+                            && exact.apply(type, tokenizer.getLongOperand1(), tokenizer.getLongOperand2());
+                    if (exactResult && exact.getResult() == 0) {
+                        // В long нет -0: знак нуля берём у double (0 * -5 = -0.0, -5 % 5 = -0.0)
+                        exactResult = false;
+                        result = Math.copySign(0.0,
+                                calculator.calculate(operator, tokenizer.getOperand1(), tokenizer.getOperand2()));
+                    } else if (!exactResult) {
+                        result = calculator.calculate(operator, tokenizer.getOperand1(), tokenizer.getOperand2());
+                    }
+                }
+            } catch (ArithmeticException e) {
+                // Функции операций бросают ArithmeticException только при делении на 0
+                if (measure) metrics.recordDivisionByZero(operator);
+                if (history != null) {
+                    historyNumber = history.appendError(operator, tokenizer.getOperand1(), tokenizer.getOperand2());
+                }
+                throw e;
+            }
+            if (measure) metrics.recordEvaluation(operator, parsed - start, System.nanoTime() - parsed);
+            if (history != null) {
+                historyNumber = exactResult
+                        ? history.appendExact(operator, tokenizer.getLongOperand1(), tokenizer.getLongOperand2(), exact.getResult())
+                        : preciseResult != null
+                        ? history.appendDecimal(operator, tokenizer.getOperand1(), tokenizer.getOperand2(), preciseResult)
+                        : history.append(operator, tokenizer.getOperand1(), tokenizer.getOperand2(), result);
+            }
+            return true;
+        }
+
+        CompiledExpression expression = compiler.compile(line);
+        long parsed = measure ? System.nanoTime() : 0;
+        if (expression == null) {
+            if (measure) metrics.recordValidationError(parsed - start);
+            return false;
+        }
+        if (stack.length < expression.getMaxStack()) stack = new double[expression.getMaxStack()];
+        try {
+            if (precise != null) {
+                preciseResult = precise.evaluate(expression);
+                result = preciseResult.doubleValue();
+            } else {
+                result = expression.evaluate(stack);
+            }
+        } catch (ArithmeticException e) {
+            if (measure) metrics.recordDivisionByZero(-1);
+            if (history != null) historyNumber = history.appendError(HistoryLog.EXPRESSION, Double.NaN, Double.NaN);
+            throw e;
+        }
+        exactResult = false;
+        if (measure) metrics.recordEvaluation(-1, parsed - start, System.nanoTime() - parsed);
+        if (history != null) {
+            historyNumber = preciseResult != null
+                    ? history.appendDecimal(HistoryLog.EXPRESSION, Double.NaN, Double.NaN, preciseResult)
+                    : history.append(HistoryLog.EXPRESSION, Double.NaN, Double.NaN, result);
+        }
+        return true;
+    }
+
+    // "a op b" в режиме точности: масштабированные long, если операнды и результат в них помещаются
+    private BigDecimal evaluatePrecise(int operator, OperationType type) {
+        if (type != null && tokenizer.isScaled() && precise.apply(type,
+                tokenizer.getUnscaledOperand1(), tokenizer.getScale1(),
+                tokenizer.getUnscaledOperand2(), tokenizer.getScale2())) {
+            return precise.getResult();
+        }
+        return precise.apply(operator, tokenizer.getDecimalOperand1(), tokenizer.getDecimalOperand2());
+    }
+
+    // Результат в режиме точности (null - последнее вычисление было в double)
+    public BigDecimal getPreciseResult() {
+        return preciseResult;
+    }
+
+    // Номер записи последнего вычисления в журнале ($n)
+    public long getHistoryNumber() {
+        return historyNumber;
+    }
+
+    public double getResult() {
+        return exactResult ? exact.getResult() : result;
+    }
+
+    // Результат посчитан точно в long (целые операнды) - печатается со всеми цифрами в виде double
+    public boolean isExactResult() {
+        return exactResult;
+    }
+
+    public long getLongResult() {
+        return exact.getResult();
+    }
+
+    // Пишет результат в buffer (нужно DoubleFormatter.MAX_LENGTH свободных байт), возвращает новую позицию.
+    // Результат режима точности может быть длиннее - он печатается из getPreciseResult()
+    public int formatResult(byte[] buffer, int position) {
+        return exactResult
+                ? DoubleFormatter.formatExact(exact.getResult(), buffer, position)
+                : DoubleFormatter.format(result, buffer, position);
+    }
+
+    public String getError() {
+        return compiler.getError();
+    }
+
+    public int getErrorPosition() {
+        return compiler.getErrorPosition();
+    }
+}
+
+// Серверный режим: один прогретый JVM обслуживает много клиентов по TCP (только loopback).
+// Протокол: выражения по одному на строку, на каждое - строка с результатом или "ERROR: ...".
+// Клиент может слать строки, не дожидаясь ответов (конвейер). Ответы копятся в буфере
+// и уходят пачкой, когда прочитанные строки закончились или буфер заполнился.
+// Каждое соединение обслуживается в своём виртуальном потоке (JDK 21+), на старых JDK - в обычном.
+// Обратное давление: если клиент не читает ответы, запись блокируется, и сервер перестаёт
+// читать его запросы, так что память на соединение ограничена размером буферов.
+// С -Dcalculator.history=<файл> все соединения пишут вычисления в общий журнал.
+class CalculatorServer {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE = 64 * 1024;
+    private static final int IDLE_TIMEOUT_MS = 60_000;
+    private static final byte[] BUSY = "ERROR: Сервер перегружен\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TOO_LONG = "ERROR: Слишком длинная строка\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ERROR = "ERROR: ".getBytes(StandardCharsets.UTF_8);
+
+    private final int port;
+    private final Semaphore connections;
+    private final HistoryLog history = HistoryLog.openConfigured(null);
+
+    public CalculatorServer(int port, int maxConnections) {
+        this.port = port;
+        this.connections = new Semaphore(maxConnections);
+    }
+
+    public void serve() throws IOException {
+        ExecutorService executor = newPerConnectionExecutor();
+        try (ServerSocket server = new ServerSocket(port, 256, InetAddress.getLoopbackAddress())) {
+            System.out.println("Сервер слушает " + server.getLocalSocketAddress());
+            while (true) {
+                Socket socket = server.accept();
+                if (!connections.tryAcquire()) {
+                    reject(socket);
+                    continue;
+                }
+                executor.execute(() -> {
+                    try {
+                        handle(socket);
+                    } finally {
+                        connections.release();
+                    }
+                });
+            }
+        } finally {
+            executor.shutdownNow();
+            if (history != null) history.close();
+        }
+    }
+
+    // Виртуальные потоки, если JDK их поддерживает, иначе обычный пул
+    static ExecutorService newPerConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private static void reject(Socket socket) {
+        try (socket) {
+            socket.getOutputStream().write(BUSY);
+        } catch (IOException ignored) {
+            // клиенту всё равно отказали
+        }
+    }
+
+    private void handle(Socket socket) {
+        LineEvaluator evaluator = new LineEvaluator();
+        evaluator.setHistory(history);
+        AsciiLine line = new AsciiLine();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] number = new byte[DoubleFormatter.MAX_LENGTH];
+        boolean tooLong = false;
+
+        try (socket;
+             InputStream in = socket.getInputStream();
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE)) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(IDLE_TIMEOUT_MS);
+            int position = 0;
+            int limit = 0;
+
+            while (true) {
+                if (position == limit) {
+                    // Всё прочитанное обработано - отправляем накопленные ответы одной пачкой
+                    out.flush();
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit < 0) {
+                        // Последняя строка без '\n' перед концом потока - тоже запрос (printf '1+1' | nc)
+                        if (tooLong) out.write(TOO_LONG);
+                        else if (line.length > 0) respond(evaluator, line, out, number);
+                        break;
+                    }
+                }
+
+                byte c = buffer[position++];
+                if (c != '\n') {
+                    if (line.length < MAX_LINE) line.append(c);
+                    else tooLong = true;
+                    continue;
+                }
+
+                if (tooLong) out.write(TOO_LONG);
+                else respond(evaluator, line, out, number);
+                line.length = 0;
+                tooLong = false;
+            }
+        } catch (IOException e) {
+            // клиент отключился или долго молчал - просто закрываем соединение
+        }
+    }
+
+    private static void respond(LineEvaluator evaluator, AsciiLine line, OutputStream out, byte[] number)
+            throws IOException {
+        try {
+            if (evaluator.evaluate(line)) {
+                out.write(number, 0, evaluator.formatResult(number, 0));
+            } else {
+                out.write(ERROR);
+                out.write(("Неверное выражение: " + evaluator.getError().toLowerCase()
+                        + " (позиция " + (evaluator.getErrorPosition() + 1) + ")").getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (ArithmeticException e) {
+            out.write(ERROR);
+            out.write(e.getMessage().getBytes(StandardCharsets.UTF_8));
+        }
+        out.write('\n');
+    }
+}
+
+// Нагрузочный клиент для сервера: clients соединений, каждое конвейером шлёт lines выражений.
+// Запись и чтение у каждого соединения в отдельных потоках, иначе конвейер упрётся в буферы TCP.
+class LoadGenerator {
+    public static void run(int port, int clients, int lines) throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(clients * 2);
+        AtomicLong responses = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(clients);
+        String[] expressions = {"2 + 3", "10 / 4", "7 // 2", "2 ^ 10", "(1 + 2) * -3", "5 % 0"};
+
+        long start = System.nanoTime();
+        for (int client = 0; client < clients; client++) {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            pool.execute(() -> {
+                try {
+                    // Поток не закрываем: это закрыло бы сокет, а ответы ещё читаются
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+                    for (int i = 0; i < lines; i++) {
+                        out.write(expressions[i % expressions.length].getBytes(StandardCharsets.US_ASCII));
+                        out.write('\n');
+                    }
+                    out.flush();
+                    socket.shutdownOutput();
+                } catch (IOException e) {
+                    System.out.println("Ошибка отправки: " + e.getMessage());
+                }
+            });
+            pool.execute(() -> {
+                try (socket; InputStream in = socket.getInputStream()) {
+                    byte[] buffer = new byte[1 << 16];
+                    boolean lineStart = true;
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        for (int i = 0; i < n; i++) {
+                            if (lineStart && buffer[i] == 'E') errors.incrementAndGet();
+                            lineStart = buffer[i] == '\n';
+                            if (lineStart) responses.incrementAndGet();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("Ошибка чтения: " + e.getMessage());
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        done.await();
+        pool.shutdown();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Клиентов: %d, ответов: %d (ошибок: %d) за %.3f с, %.0f строк/с%n",
+                clients, responses.get(), errors.get(), seconds, responses.get() / seconds);
+    }
+}
+
+// Пакетный режим: файл с выражениями "a op b" по одному на строку.
+// Файл отображается в память, режется на куски по границам строк,
+// куски считаются параллельно, а результаты пишутся в исходном порядке.
+class BatchProcessor {
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final byte[] INVALID = "ERROR: Неверное выражение\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ERROR = "ERROR: ".getBytes(StandardCharsets.UTF_8);
+
+    private final int threads;
+
+    public BatchProcessor(int threads) {
+        this.threads = threads;
+    }
+
+    // Результат обработки одного куска
+    private record ChunkResult(byte[] output, long lines) {
+    }
+
+    public void process(Path input, Path output) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long lines = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(output), 1 << 16)) {
+            long size = in.size();
+            long position = 0;
+            // Ограничиваем число кусков "в полёте", чтобы память не росла вместе с размером файла
+            ArrayDeque<Future<ChunkResult>> pending = new ArrayDeque<>();
+
+            while (position < size) {
+                long end = chunkEnd(in, position, size);
+                MappedByteBuffer chunk = in.map(FileChannel.MapMode.READ_ONLY, position, end - position);
+                pending.add(pool.submit(() -> evaluateChunk(chunk)));
+                position = end;
+
+                if (pending.size() >= threads * 2) {
+                    lines += writeResult(pending.poll(), out);
+                }
+            }
+            while (!pending.isEmpty()) {
+                lines += writeResult(pending.poll(), out);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Обработано строк: %d за %.3f с (%.0f строк/с)%n", lines, seconds, lines / seconds);
+    }
+
+    // Конец куска: первая граница строки после CHUNK_SIZE байт (или конец файла)
+    private static long chunkEnd(FileChannel in, long start, long size) throws IOException {
+        long end = Math.min(start + CHUNK_SIZE, size);
+        if (end == size) return end;
+
+        MappedByteBuffer tail = in.map(FileChannel.MapMode.READ_ONLY, end, Math.min(size - end, 4096));
+        while (true) {
+            while (tail.hasRemaining()) {
+                end++;
+                if (tail.get() == '\n') return end;
+            }
+            if (end >= size) return size;
+            tail = in.map(FileChannel.MapMode.READ_ONLY, end, Math.min(size - end, 4096));
+        }
+    }
+
+    private static long writeResult(Future<ChunkResult> future, OutputStream out) throws IOException, InterruptedException {
+        try {
+            ChunkResult result = future.get();
+            out.write(result.output());
+            return result.lines();
+        } catch (ExecutionException e) {
+            throw new IOException("Ошибка при обработке куска", e.getCause());
+        }
+    }
+
+    private static ChunkResult evaluateChunk(MappedByteBuffer chunk) {
+        LineEvaluator evaluator = new LineEvaluator();
+        byte[] number = new byte[DoubleFormatter.MAX_LENGTH];
+        ByteArrayOutputStream out = new ByteArrayOutputStream(chunk.remaining() / 2);
+        AsciiLine line = new AsciiLine();
+        long lines = 0;
+
+        while (chunk.hasRemaining()) {
+            line.length = 0;
+            while (chunk.hasRemaining()) {
+                byte c = chunk.get();
+                if (c == '\n') break;
+                line.append(c);
+            }
+            lines++;
+
+            try {
+                if (!evaluator.evaluate(line)) {
+                    out.writeBytes(INVALID);
+                    continue;
+                }
+                out.write(number, 0, evaluator.formatResult(number, 0));
+            } catch (ArithmeticException e) {
+                out.writeBytes(ERROR);
+                out.writeBytes(e.getMessage().getBytes(StandardCharsets.UTF_8));
+            }
+            out.write('\n');
+        }
+        return new ChunkResult(out.toByteArray(), lines);
+    }
+}
+
+// Накопитель статистики потока чисел: сумма с компенсацией Ноймайера (ошибка не растёт
+// с длиной потока, как у наивной суммы), среднее и дисперсия по Уэлфорду, min, max.
+// Накопители частей потока объединяются через merge (дисперсия - по формуле Чана),
+// поэтому куски можно считать в разных потоках. Память - несколько полей на накопитель.
+final class StreamStatistics {
+    private long count;
+    private double sum;
+    private double compensation;
+    private double mean;
+    private double m2;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public void add(double x) {
+        count++;
+        addToSum(x);
+        double delta = x - mean;
+        mean += delta / count;
+        m2 += delta * (x - mean);
+        if (x < min) min = x;
+        if (x > max) max = x;
+    }
+
+    public void merge(StreamStatistics other) {
+        if (other.count == 0) return;
+        if (count == 0) {
+            count = other.count;
+            sum = other.sum;
+            compensation = other.compensation;
+            mean = other.mean;
+            m2 = other.m2;
+            min = other.min;
+            max = other.max;
+            return;
+        }
+        long total = count + other.count;
+        double delta = other.mean - mean;
+        mean += delta * other.count / total;
+        m2 += other.m2 + delta * delta * ((double) count * other.count / total);
+        count = total;
+        addToSum(other.sum);
+        compensation += other.compensation;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    // Суммирование Ноймайера: потерянные при округлении младшие разряды копятся отдельно
+    private void addToSum(double x) {
+        double t = sum + x;
+        if (Math.abs(sum) >= Math.abs(x)) compensation += (sum - t) + x;
+        else compensation += (x - t) + sum;
+        sum = t;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum + compensation;
+    }
+
+    // Через компенсированную сумму: бегущее среднее Уэлфорда точно для дисперсии,
+    // но теряет младшие разряды, когда в потоке есть и очень большие, и малые числа
+    public double getMean() {
+        return count == 0 ? Double.NaN : getSum() / count;
+    }
+
+    public double getMin() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    public double getMax() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    // Выборочная дисперсия (делитель n - 1)
+    public double getVariance() {
+        return count < 2 ? Double.NaN : m2 / (count - 1);
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+}
+
+// Байты ByteBuffer (отображённого файла или блока stdin) как CharSequence для токенизатора
+final class ByteChars implements CharSequence {
+    private final ByteBuffer buffer;
+
+    ByteChars(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int length() {
+        return buffer.limit();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (buffer.get(index) & 0xFF);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
+
+// Режим агрегатов: sum, mean, min, max и дисперсия потока чисел из файла или stdin.
+// Числа разделяются пробелами, переводами строк, запятыми или точками с запятой;
+// остальное считается нечисловыми токенами и пропускается (с подсчётом).
+// Файл делится пополам задачами fork-join до кусков по 8 МБ (граница сдвигается
+// на ближайший разделитель), каждый кусок отображается в память и сворачивается в свой
+// StreamStatistics, результаты объединяются при join. stdin читается блоками по 1 МБ,
+// не больше 2 блоков на поток в обработке. Память не зависит от размера входа.
+class AggregateProcessor {
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    private final int threads;
+    private final LongAdder skipped = new LongAdder();
+
+    public AggregateProcessor(int threads) {
+        this.threads = threads;
+    }
+
+    public void process(Path input) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        StreamStatistics statistics;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            if (input == null) {
+                statistics = aggregate(System.in, pool);
+            } else {
+                try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+                    statistics = pool.invoke(new FileTask(this, channel, 0, channel.size()));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        print(statistics, seconds);
+    }
+
+    private void print(StreamStatistics statistics, double seconds) {
+        if (statistics.getCount() == 0) {
+            System.out.println("Чисел не найдено (нечисловых токенов: " + skipped.sum() + ")");
+            return;
+        }
+        System.out.println("Количество: " + statistics.getCount());
+        System.out.println("Сумма: " + statistics.getSum());
+        System.out.println("Среднее: " + statistics.getMean());
+        System.out.println("Минимум: " + statistics.getMin());
+        System.out.println("Максимум: " + statistics.getMax());
+        System.out.println("Дисперсия: " + statistics.getVariance());
+        System.out.println("Стандартное отклонение: " + statistics.getStandardDeviation());
+        if (skipped.sum() > 0) System.out.println("Пропущено нечисловых токенов: " + skipped.sum());
+        System.out.printf("Время: %.3f с (%.0f чисел/с)%n", seconds, statistics.getCount() / seconds);
+    }
+
+    // Кусок файла [from, to): делится пополам, пока больше CHUNK_SIZE
+    private static final class FileTask extends RecursiveTask<StreamStatistics> {
+        private static final long serialVersionUID = 1L;
+
+        private final AggregateProcessor processor;
+        private final FileChannel channel;
+        private final long from;
+        private final long to;
+
+        FileTask(AggregateProcessor processor, FileChannel channel, long from, long to) {
+            this.processor = processor;
+            this.channel = channel;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected StreamStatistics compute() {
+            try {
+                if (to - from <= CHUNK_SIZE) return single();
+                long half = from + (to - from) / 2;
+                long middle = nextSeparator(channel, half, to);
+                // Во второй половине нет разделителя - режем по последнему в первой
+                if (middle == to) middle = previousSeparator(channel, from, half);
+                if (middle == from) return single(); // разделителей нет вовсе: весь диапазон - одно слово
+                FileTask right = new FileTask(processor, channel, middle, to);
+                right.fork();
+                StreamStatistics left = new FileTask(processor, channel, from, middle).compute();
+                left.merge(right.join());
+                return left;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private StreamStatistics single() throws IOException {
+            StreamStatistics statistics = new StreamStatistics();
+            if (to - from > Integer.MAX_VALUE) {
+                // Слово длиннее 2 ГБ числом быть не может и в отображение не помещается
+                processor.skipped.add(1);
+                return statistics;
+            }
+            MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+            processor.accumulate(chunk, statistics);
+            return statistics;
+        }
+    }
+
+    // Позиция первого разделителя не раньше position (или to), чтобы число не разрезалось
+    private static long nextSeparator(FileChannel channel, long position, long to) throws IOException {
+        ByteBuffer window = ByteBuffer.allocate(4096);
+        while (position < to) {
+            window.clear();
+            int read = channel.read(window, position);
+            if (read <= 0) return to;
+            for (int i = 0; i < read; i++) {
+                if (isSeparator(window.get(i))) return Math.min(position + i, to);
+            }
+            position += read;
+        }
+        return to;
+    }
+
+    // Позиция последнего разделителя в (from, position) или from, если его там нет
+    private static long previousSeparator(FileChannel channel, long from, long position) throws IOException {
+        ByteBuffer window = ByteBuffer.allocate(4096);
+        while (position > from + 1) {
+            long start = Math.max(from + 1, position - window.capacity());
+            window.clear().limit((int) (position - start));
+            int read = 0;
+            while (window.hasRemaining()) {
+                int n = channel.read(window, start + read);
+                if (n <= 0) return from;
+                read += n;
+            }
+            for (int i = read - 1; i >= 0; i--) {
+                if (isSeparator(window.get(i))) return start + i;
+            }
+            position = start;
+        }
+        return from;
+    }
+
+    private StreamStatistics aggregate(InputStream in, ForkJoinPool pool) throws IOException, InterruptedException {
+        StreamStatistics statistics = new StreamStatistics();
+        ArrayDeque<Future<StreamStatistics>> pending = new ArrayDeque<>();
+        byte[] block = new byte[BLOCK_SIZE];
+        int length = 0;
+        while (true) {
+            int read = in.read(block, length, block.length - length);
+            if (read > 0) length += read;
+            if (read > 0 && length < block.length) continue;
+
+            // Блок обрабатывается до последнего разделителя, хвост переносится в следующий
+            int cut = length;
+            if (read > 0) {
+                while (cut > 0 && !isSeparator(block[cut - 1])) cut--;
+                if (cut == 0) cut = length; // разделителей нет во всём блоке - это уже не число
+            }
+            ByteBuffer part = ByteBuffer.wrap(Arrays.copyOf(block, cut));
+            pending.add(pool.submit(() -> {
+                StreamStatistics partial = new StreamStatistics();
+                accumulate(part, partial);
+                return partial;
+            }));
+            System.arraycopy(block, cut, block, 0, length - cut);
+            length -= cut;
+
+            if (pending.size() >= threads * 2 || read < 0) statistics.merge(take(pending.poll()));
+            if (read < 0) break;
+        }
+        while (!pending.isEmpty()) statistics.merge(take(pending.poll()));
+        return statistics;
+    }
+
+    private static StreamStatistics take(Future<StreamStatistics> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Ошибка при обработке блока", e.getCause());
+        }
+    }
+
+    private void accumulate(ByteBuffer buffer, StreamStatistics statistics) {
+        ExpressionTokenizer tokenizer = new ExpressionTokenizer();
+        ByteChars text = new ByteChars(buffer);
+        int length = text.length();
+        long invalid = 0;
+        int pos = 0;
+        while (pos < length) {
+            if (isSeparator(buffer.get(pos))) {
+                pos++;
+                continue;
+            }
+            int end = tokenizer.scanNumber(text, pos);
+            if (end < 0 || (end < length && !isSeparator(buffer.get(end)))) {
+                invalid++;
+                while (pos < length && !isSeparator(buffer.get(pos))) pos++;
+                continue;
+            }
+            statistics.add(tokenizer.getNumber());
+            pos = end;
+        }
+        if (invalid > 0) skipped.add(invalid);
+    }
+
+    private static boolean isSeparator(byte c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == ',' || c == ';';
+    }
+}
+
+// Поэлементные операции над столбцами double[]: out[i] = a[i] op b[i].
+// Циклы для +, -, *, / простые и без ветвлений, их векторизует JIT (SuperWord).
+// Деление на 0 не бросает исключение: в out[i] пишется NaN, а номер строки
+// попадает в возвращаемый BitSet.
+class ColumnOperations {
+
+    public static BitSet apply(OperationType type, double[] a, double[] b, double[] out) {
+        checkLength(a.length, b.length, out.length);
+        BitSet errors = new BitSet();
+        int n = a.length;
+
+        switch (type) {
+            case ADD -> {
+                for (int i = 0; i < n; i++) out[i] = a[i] + b[i];
+            }
+            case SUBTRACT -> {
+                for (int i = 0; i < n; i++) out[i] = a[i] - b[i];
+            }
+            case MULTIPLY -> {
+                for (int i = 0; i < n; i++) out[i] = a[i] * b[i];
+            }
+            case DIVIDE -> {
+                for (int i = 0; i < n; i++) out[i] = a[i] / b[i];
+                markZeroDivisors(b, out, errors);
+            }
+            default -> {
+                for (int i = 0; i < n; i++) {
+                    if (isZeroDivisor(type, b[i])) {
+                        out[i] = Double.NaN;
+                        errors.set(i);
+                    } else {
+                        out[i] = type.apply(a[i], b[i]);
+                    }
+                }
+            }
+        }
+        return errors;
+    }
+
+    // Вариант "столбец op число": out[i] = a[i] op b
+    public static BitSet apply(OperationType type, double[] a, double b, double[] out) {
+        checkLength(a.length, a.length, out.length);
+        BitSet errors = new BitSet();
+        int n = a.length;
+
+        if (isZeroDivisor(type, b)) {
+            Arrays.fill(out, 0, n, Double.NaN);
+            errors.set(0, n);
+            return errors;
+        }
+        switch (type) {
+            case ADD -> {
+                for (int i = 0; i < n; i++) out[i] = a[i] + b;
+            }
+            case SUBTRACT -> {
+                for (int i = 0; i < n; i++) out[i] = a[i] - b;
+            }
+            case MULTIPLY -> {
+                for (int i = 0; i < n; i++) out[i] = a[i] * b;
+            }
+            case DIVIDE -> {
+                for (int i = 0; i < n; i++) out[i] = a[i] / b;
+            }
+            default -> {
+                for (int i = 0; i < n; i++) out[i] = type.apply(a[i], b);
+            }
+        }
+        return errors;
+    }
+
+    private static boolean isZeroDivisor(OperationType type, double b) {
+        return switch (type) {
+            case DIVIDE, MODULO -> b == 0;
+            case INT_DIVIDE -> OperationType.isIntegerZero(b);
+            default -> false;
+        };
+    }
+
+    // Отдельный проход по делителям, чтобы основной цикл деления оставался без ветвлений
+    private static void markZeroDivisors(double[] b, double[] out, BitSet errors) {
+        for (int i = 0; i < b.length; i++) {
+            if (b[i] == 0) {
+                out[i] = Double.NaN;
+                errors.set(i);
+            }
+        }
+    }
+
+    private static void checkLength(int a, int b, int out) {
+        if (a != b || out < a) {
+            throw new IllegalArgumentException("Разная длина столбцов: " + a + ", " + b + ", " + out);
+        }
+    }
+}
+
+// Сравнение поэлементного счёта через объекты Operation и через ColumnOperations
+class ColumnBenchmark {
+    private static final int SIZE = 4_000_000;
+
+    public static void run() {
+        double[] a = new double[SIZE];
+        double[] b = new double[SIZE];
+        double[] out = new double[SIZE];
+        Random random = new Random(42);
+        for (int i = 0; i < SIZE; i++) {
+            a[i] = random.nextDouble() * 1000;
+            b[i] = random.nextInt(100);
+        }
+
+        for (OperationType type : OperationType.values()) {
+            long objects = Long.MAX_VALUE;
+            long columns = Long.MAX_VALUE;
+            int errors = 0;
+            // Берём лучшее из нескольких прогонов, первые уходят на прогрев JIT
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < SIZE; i++) {
+                    try {
+                        out[i] = new Calculator().calculate(OperationFactory.create(type, a[i], b[i]));
+                    } catch (ArithmeticException e) {
+                        out[i] = Double.NaN;
+                    }
+                }
+                objects = Math.min(objects, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                errors = ColumnOperations.apply(type, a, b, out).cardinality();
+                columns = Math.min(columns, System.nanoTime() - start);
+            }
+            System.out.printf("%-10s Operation: %6.2f нс/строка, столбцы: %6.2f нс/строка, делений на 0: %d%n",
+                    type, (double) objects / SIZE, (double) columns / SIZE, errors);
+        }
+    }
+}
+
+// Проверка граничных случаев арифметики: java Main check.
+// При расхождении печатает случай и завершается с ошибкой
+class ArithmeticCheck {
+    private int failures;
+
+    public static void run() {
+        ArithmeticCheck check = new ArithmeticCheck();
+        check.intDivision();
+        check.resultText();
+        check.unarySign();
+        if (check.failures > 0) {
+            System.out.println("Ошибок: " + check.failures);
+            System.exit(1);
+        }
+        System.out.println("Все проверки пройдены.");
+    }
+
+    // Целочисленное деление около 2^63: long насыщается, дальше - double без дробной части
+    private void intDivision() {
+        OperationType type = OperationType.INT_DIVIDE;
+        expect("1e20 // 3", type.apply(1e20, 3), Math.floor(1e20 / 3));
+        expect("2^63 // 2", type.apply(0x1p63, 2), 0x1p62);
+        expect("-2^63 // 3", type.apply(-0x1p63, 3), Math.ceil(-0x1p63 / 3));
+        expect("-2^63 // -1", type.apply(-0x1p63, -1), 0x1p63);
+        expect("(2^63 - 1024) // 1", type.apply(0x1p63 - 1024, 1), 0x1p63 - 1024);
+        expect("7 // 2^64", type.apply(7, 0x1p64), 0.0);
+        expect("-7 // 2^64", type.apply(-7, 0x1p64), 0.0);
+        expect("2^64 // 2.5", type.apply(0x1p64, 2.5), 0x1p63);
+
+        double[] a = {1e20, 0x1p63, 5, 5, 1e20};
+        double[] b = {3, 2, 0.5, 0x1p64, 0};
+        double[] out = new double[a.length];
+        BitSet errors = ColumnOperations.apply(type, a, b, out);
+        for (int i = 0; i < a.length; i++) {
+            boolean zero = OperationType.isIntegerZero(b[i]);
+            expect("столбец: ошибка " + a[i] + " // " + b[i], errors.get(i) ? 1 : 0, zero ? 1 : 0);
+            if (!zero) expect("столбец: " + a[i] + " // " + b[i], out[i], type.apply(a[i], b[i]));
+        }
+    }
+
+    // Вид результата не зависит от того, считалось выражение в long или в double
+    private void resultText() {
+        expectText("2 + 3", "5.0");
+        expectText("2.5 + 2.5", "5.0");
+        expectText("-7 // 2", "-3.0");
+        expectText("12345678 * 1000", "1.2345678E10");
+        expectText("12345678.0 * 1000", "1.2345678E10");
+        expectText("900000000000000000 + 1", "9.00000000000000001E17");
+        expectText("100000000000000000000 // 3", "3.333333333333333E19");
+        expectText("0 * -5", "-0.0");
+        expectText("-5 % 5", "-0.0");
+        expectText("5 % 5", "0.0");
+        expectText("9007199254740993 % 3", "0.0");
+    }
+
+    // Знак вплотную к числу - часть литерала, через пробел - унарный минус с приоритетом ниже '^'.
+    // Оба варианта считаются одним компилятором подряд: кэш не должен их смешивать
+    private void unarySign() {
+        ExpressionCompiler compiler = new ExpressionCompiler();
+        expect("-2^2", compiler.compile("-2^2").evaluate(), 4);
+        expect("- 2^2", compiler.compile("- 2^2").evaluate(), -4);
+
+        LineEvaluator evaluator = new LineEvaluator();
+        String[][] pairs = {
+                {"1 + -2 ^ 2", "5.0"}, {"1 + - 2 ^ 2", "-3.0"},
+                {"2 ^ -2 ^ 2", "16.0"}, {"2 ^ - 2 ^ 2", "0.0625"}
+        };
+        for (String[] pair : pairs) expectText(evaluator, pair[0], pair[1]);
+    }
+
+    private void expect(String name, double actual, double expected) {
+        if (Double.compare(actual, expected) != 0) fail(name, Double.toString(actual), Double.toString(expected));
+    }
+
+    private void expectText(String expression, String expected) {
+        expectText(new LineEvaluator(), expression, expected);
+    }
+
+    private void expectText(LineEvaluator evaluator, String expression, String expected) {
+        byte[] buffer = new byte[DoubleFormatter.MAX_LENGTH];
+        evaluator.evaluate(expression);
+        String actual = new String(buffer, 0, evaluator.formatResult(buffer, 0), StandardCharsets.US_ASCII);
+        if (!actual.equals(expected)) fail(expression, actual, expected);
+    }
+
+    private void fail(String name, String actual, String expected) {
+        failures++;
+        System.out.println(name + ": получено " + actual + ", ожидалось " + expected);
+    }
+}
+
+// Замер выделения памяти на одно вычисление:
+// через объекты Operation и через функции OperationType.
+class AllocationBenchmark {
+    private static final int ITERATIONS = 10_000_000;
+
+    public static void run() {
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        Calculator calculator = new Calculator();
+        OperationType[] types = {OperationType.ADD, OperationType.SUBTRACT, OperationType.MULTIPLY, OperationType.POWER};
+
+        // Прогрев, чтобы JIT успел скомпилировать оба пути
+        for (int i = 0; i < 3; i++) {
+            measureObjects(calculator, types);
+            measureKernels(calculator, types);
+        }
+
+        long tid = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        double sink = measureObjects(calculator, types);
+        long objectsTime = System.nanoTime() - start;
+        long objectsBytes = mx.getThreadAllocatedBytes(tid) - before;
+
+        before = mx.getThreadAllocatedBytes(tid);
+        start = System.nanoTime();
+        sink += measureKernels(calculator, types);
+        long kernelsTime = System.nanoTime() - start;
+        long kernelsBytes = mx.getThreadAllocatedBytes(tid) - before;
+
+        System.out.printf("Operation:     %.2f байт/вызов, %.2f нс/вызов%n",
+                (double) objectsBytes / ITERATIONS, (double) objectsTime / ITERATIONS);
+        System.out.printf("OperationType: %.2f байт/вызов, %.2f нс/вызов%n",
+                (double) kernelsBytes / ITERATIONS, (double) kernelsTime / ITERATIONS);
+        System.out.println("(контрольная сумма " + sink + ")");
+    }
+
+    private static double measureObjects(Calculator calculator, OperationType[] types) {
+        double sum = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            sum += calculator.calculate(OperationFactory.create(types[i & 3], i, 3));
+        }
+        return sum;
+    }
+
+    private static double measureKernels(Calculator calculator, OperationType[] types) {
+        double sum = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            sum += calculator.calculate(types[i & 3], i, 3);
+        }
+        return sum;
+    }
+}
+
+// Цена режима точности по операциям: double, масштабированные long (быстрый путь
+// PreciseArithmetic вместе с созданием BigDecimal результата) и BigDecimal (DECIMAL128).
+// Операнды - денежные суммы с двумя знаками после запятой, показатель степени - от 0 до 4.
+class PreciseBenchmark {
+    private static final int SIZE = 4096;
+    private static final int MASK = SIZE - 1;
+    private static final int ITERATIONS = 500_000;
+
+    public static void run() {
+        Random random = new Random(1);
+        PreciseArithmetic precise = new PreciseArithmetic(MathContext.DECIMAL128);
+        System.out.printf("%-12s %12s %12s %14s %10s%n", "Операция", "double, нс", "long, нс", "BigDecimal, нс", "через long");
+
+        for (OperationType type : OperationType.values()) {
+            long[] a = new long[SIZE];
+            long[] b = new long[SIZE];
+            int scaleB = type == OperationType.POWER ? 0 : 2;
+            for (int i = 0; i < SIZE; i++) {
+                a[i] = 1 + random.nextInt(10_000_000);
+                b[i] = type == OperationType.POWER ? random.nextInt(5) : 1 + random.nextInt(10_000_000);
+            }
+            double[] da = new double[SIZE];
+            double[] db = new double[SIZE];
+            BigDecimal[] ba = new BigDecimal[SIZE];
+            BigDecimal[] bb = new BigDecimal[SIZE];
+            for (int i = 0; i < SIZE; i++) {
+                ba[i] = BigDecimal.valueOf(a[i], 2);
+                bb[i] = BigDecimal.valueOf(b[i], scaleB);
+                da[i] = ba[i].doubleValue();
+                db[i] = bb[i].doubleValue();
+            }
+
+            long doubleTime = Long.MAX_VALUE;
+            long scaledTime = Long.MAX_VALUE;
+            long bigTime = Long.MAX_VALUE;
+            int fast = 0;
+            double sink = 0;
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) sink += type.apply(da[i & MASK], db[i & MASK]);
+                doubleTime = Math.min(doubleTime, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                fast = 0;
+                for (int i = 0; i < ITERATIONS; i++) {
+                    int j = i & MASK;
+                    BigDecimal result;
+                    if (precise.apply(type, a[j], 2, b[j], scaleB)) {
+                        result = precise.getResult();
+                        fast++;
+                    } else {
+                        result = precise.apply(type, ba[j], bb[j]);
+                    }
+                    sink += result.signum();
+                }
+                scaledTime = Math.min(scaledTime, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) sink += precise.apply(type, ba[i & MASK], bb[i & MASK]).signum();
+                bigTime = Math.min(bigTime, System.nanoTime() - start);
+            }
+
+            System.out.printf("%-12s %12.1f %12.1f %14.1f %9.0f%%%n", type, (double) doubleTime / ITERATIONS,
+                    (double) scaledTime / ITERATIONS, (double) bigTime / ITERATIONS, 100.0 * fast / ITERATIONS);
+            if (sink == 42) System.out.println();
+        }
+    }
+}
+
+// Функции процедурного калькулятора из 1.java (копия: оба калькулятора запускаются
+// отдельными файлами и не видят классы друг друга), нужны для сравнения в EngineBenchmark.
+class ProceduralEngine {
+    static double sum(double a, double b) {
+        return a + b;
+    }
+
+    static double subtract(double a, double b) {
+        return a - b;
+    }
+
+    static double multiply(double a, double b) {
+        return a * b;
+    }
+
+    static double divide(double a, double b) {
+        if (b == 0) {
+            throw new ArithmeticException("Ошибка - деление на 0.");
+        }
+        return a / b;
+    }
+
+    static int intDivide(int a, int b) {
+        if (b == 0) {
+            throw new ArithmeticException("Ошибка - деление на 0.");
+        }
+        return a / b;
+    }
+
+    static double power(double a, double b) {
+        return Math.pow(a, b);
+    }
+
+    static double mod(double a, double b) {
+        if (b == 0) {
+            throw new ArithmeticException("Ошибка - деление на 0.");
+        }
+        return a % b;
+    }
+
+    // Выбор функции по знаку, как в main из 1.java
+    static double evaluate(String op, double a, double b) {
+        return switch (op) {
+            case "+" -> sum(a, b);
+            case "-" -> subtract(a, b);
+            case "*" -> multiply(a, b);
+            case "/" -> divide(a, b);
+            case "//" -> intDivide((int) a, (int) b);
+            case "^" -> power(a, b);
+            case "%" -> mod(a, b);
+            default -> throw new IllegalArgumentException("Неизвестная операция: " + op);
+        };
+    }
+}
+
+// Набор замеров процедурного (1.java) и объектного (2.java) вычислителей.
+// Схема как у JMH: прогрев, несколько измерений, среднее и погрешность в нс/оп,
+// байты на операцию (аналог -prof gc). Результаты пишутся в JSON в формате JMH,
+// чтобы сравнивать версии тем же инструментарием.
+// Замеры идут в одном JVM, поэтому формы вызова Calculator.calculate меряются
+// по порядку mono -> bi -> mega: профиль типов в calculate общий на всё приложение.
+class EngineBenchmark {
+    private static final int OPS = 2_000_000;
+    private static final int WARMUP = 5;
+    private static final int MEASUREMENTS = 10;
+    private static final int MASK = 1023;
+
+    private record Result(String name, double score, double error, double bytesPerOp) {
+    }
+
+    @FunctionalInterface
+    private interface Workload {
+        double run(int ops);
+    }
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+    private final List<Result> results = new ArrayList<>();
+    private final double[] left = new double[MASK + 1];
+    private final double[] right = new double[MASK + 1];
+    private final long[] longLeft = new long[MASK + 1];
+    private final long[] longRight = new long[MASK + 1];
+    private double sink;
+
+    public static void run(Path output) throws IOException {
+        EngineBenchmark benchmark = new EngineBenchmark();
+        benchmark.runAll();
+        benchmark.writeJson(output);
+        System.out.println("Результаты записаны в " + output.toAbsolutePath());
+    }
+
+    private void runAll() {
+        Random random = new Random(7);
+        for (int i = 0; i <= MASK; i++) {
+            left[i] = random.nextInt(2000) - 1000 + random.nextDouble();
+            right[i] = random.nextInt(20) + 1 + random.nextDouble();
+            longLeft[i] = random.nextInt(2000) - 1000;
+            longRight[i] = random.nextInt(6) + 1;
+        }
+        Calculator calculator = new Calculator();
+
+        for (OperationType type : OperationType.values()) {
+            String name = type.name().toLowerCase();
+            String symbol = type.getSymbol();
+            measure("procedural." + name, ops -> {
+                double s = 0;
+                for (int i = 0; i < ops; i++) s += ProceduralEngine.evaluate(symbol, left[i & MASK], right[i & MASK]);
+                return s;
+            });
+            measure("oop." + name, ops -> {
+                double s = 0;
+                for (int i = 0; i < ops; i++) {
+                    s += calculator.calculate(OperationFactory.create(type, left[i & MASK], right[i & MASK]));
+                }
+                return s;
+            });
+            measure("kernel." + name, ops -> {
+                double s = 0;
+                for (int i = 0; i < ops; i++) s += calculator.calculate(type, left[i & MASK], right[i & MASK]);
+                return s;
+            });
+            // Целые операнды: точный long-путь против double-функции на тех же значениях
+            ExactArithmetic exact = new ExactArithmetic();
+            measure("integral.exact." + name, ops -> {
+                double s = 0;
+                for (int i = 0; i < ops; i++) {
+                    long a = longLeft[i & MASK];
+                    long b = longRight[i & MASK];
+                    s += exact.apply(type, a, b) ? exact.getResult() : type.apply(a, b);
+                }
+                return s;
+            });
+            measure("integral.kernel." + name, ops -> {
+                double s = 0;
+                for (int i = 0; i < ops; i++) s += type.apply(longLeft[i & MASK], longRight[i & MASK]);
+                return s;
+            });
+        }
+
+        measureCallSite("callsite.monomorphic", calculator, OperationType.ADD);
+        measureCallSite("callsite.bimorphic", calculator, OperationType.ADD, OperationType.MULTIPLY);
+        measureCallSite("callsite.megamorphic", calculator, OperationType.values());
+
+        String[] lines = new String[MASK + 1];
+        for (int i = 0; i <= MASK; i++) {
+            OperationType type = OperationType.fromCode(i % OperationType.values().length);
+            lines[i] = left[i] + " " + type.getSymbol() + " " + right[i];
+        }
+        ExpressionTokenizer tokenizer = new ExpressionTokenizer();
+        measure("line.procedural", ops -> {
+            double s = 0;
+            for (int i = 0; i < ops; i++) {
+                if (tokenizer.tokenize(lines[i & MASK])) {
+                    String op = OperatorRegistry.get(tokenizer.getOperator()).getSymbol();
+                    s += ProceduralEngine.evaluate(op, tokenizer.getOperand1(), tokenizer.getOperand2());
+                }
+            }
+            return s;
+        });
+        measure("line.oop", ops -> {
+            double s = 0;
+            for (int i = 0; i < ops; i++) {
+                if (tokenizer.tokenize(lines[i & MASK])) {
+                    OperationType type = OperationType.fromCode(tokenizer.getOperator());
+                    s += calculator.calculate(OperationFactory.create(type, tokenizer.getOperand1(), tokenizer.getOperand2()));
+                }
+            }
+            return s;
+        });
+        measure("line.kernel", ops -> {
+            double s = 0;
+            for (int i = 0; i < ops; i++) {
+                if (tokenizer.tokenize(lines[i & MASK])) {
+                    OperationType type = OperationType.fromCode(tokenizer.getOperator());
+                    s += calculator.calculate(type, tokenizer.getOperand1(), tokenizer.getOperand2());
+                }
+            }
+            return s;
+        });
+    }
+
+    // Вызовы Calculator.calculate(Operation) с заранее созданными объектами 1, 2 или 7 классов
+    private void measureCallSite(String name, Calculator calculator, OperationType... types) {
+        Operation[] operations = new Operation[MASK + 1];
+        for (int i = 0; i <= MASK; i++) {
+            operations[i] = OperationFactory.create(types[i % types.length], left[i], right[i]);
+        }
+        measure(name, ops -> {
+            double s = 0;
+            for (int i = 0; i < ops; i++) s += calculator.calculate(operations[i & MASK]);
+            return s;
+        });
+    }
+
+    private void measure(String name, Workload workload) {
+        for (int i = 0; i < WARMUP; i++) sink += workload.run(OPS);
+
+        long tid = Thread.currentThread().getId();
+        double[] scores = new double[MEASUREMENTS];
+        long bytes = 0;
+        for (int i = 0; i < MEASUREMENTS; i++) {
+            long allocated = threads.getThreadAllocatedBytes(tid);
+            long start = System.nanoTime();
+            sink += workload.run(OPS);
+            scores[i] = (double) (System.nanoTime() - start) / OPS;
+            bytes += threads.getThreadAllocatedBytes(tid) - allocated;
+        }
+
+        double mean = 0;
+        for (double score : scores) mean += score;
+        mean /= MEASUREMENTS;
+        double variance = 0;
+        for (double score : scores) variance += (score - mean) * (score - mean);
+        // Полуширина 99.9% доверительного интервала, как scoreError у JMH (t ~ 4.78 при 9 степенях свободы)
+        double error = 4.781 * Math.sqrt(variance / (MEASUREMENTS - 1)) / Math.sqrt(MEASUREMENTS);
+        double bytesPerOp = (double) bytes / ((long) OPS * MEASUREMENTS);
+
+        results.add(new Result(name, mean, error, bytesPerOp));
+        System.out.printf(Locale.ROOT, "%-28s %8.3f ± %6.3f нс/оп %8.2f Б/оп%n", name, mean, error, bytesPerOp);
+    }
+
+    private void writeJson(Path output) throws IOException {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            json.append(String.format(Locale.ROOT, """
+                      {
+                        "benchmark" : "calculator.%s",
+                        "mode" : "avgt",
+                        "warmupIterations" : %d,
+                        "measurementIterations" : %d,
+                        "primaryMetric" : { "score" : %.6f, "scoreError" : %.6f, "scoreUnit" : "ns/op" },
+                        "secondaryMetrics" : {
+                          "gc.alloc.rate.norm" : { "score" : %.6f, "scoreUnit" : "B/op" }
+                        }
+                      }""", r.name(), WARMUP, MEASUREMENTS, r.score(), r.error(), r.bytesPerOp()));
+            json.append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        json.append("]\n");
+        Files.writeString(output, json.toString());
+        if (sink == 42) System.out.println(); // не даём JIT выбросить вычисления
+    }
+}
+
+// Главный класс с консольным интерфейсом
+public class Main {
+    // Метрики калькулятора, доступные через JMX (calculator:type=Metrics).
+    // Интерфейс вложен в Main, потому что JMX принимает только public-интерфейсы,
+    // а public-класс верхнего уровня в файле может быть один.
+    public interface CalculatorMetricsMXBean {
+        boolean isEnabled();
+
+        void setEnabled(boolean enabled);
+
+        long getTotalEvaluations();
+
+        long getValidationErrors();
+
+        Map<String, Long> getEvaluationsByOperation();
+
+        Map<String, Long> getDivisionByZeroByOperation();
+
+        // Ключи вида "PARSE.p99", значения в наносекундах
+        Map<String, Long> getLatencyNanos();
+
+        String getReport();
+
+        void reset();
+    }
+
+    // Оператор калькулятора. Дополнительные операторы подключаются через ServiceLoader:
+    // public-класс с public конструктором без параметров, указанный в файле
+    // META-INF/services/Main$CalculatorOperator на classpath (пример - каталог operators).
+    // Интерфейс вложен в Main по той же причине, что и CalculatorMetricsMXBean.
+    public interface CalculatorOperator {
+        // Приоритеты: как у + и -, как у * и /, как у ^ (правоассоциативный)
+        int ADDITIVE = 1;
+        int MULTIPLICATIVE = 2;
+        int EXPONENT = 3;
+
+        // 1-4 знака ("+", "//") или 1-4 буквы ("min"); "a op b" в выражении
+        String getSymbol();
+
+        // Имя в метриках
+        String name();
+
+        int getPrecedence();
+
+        // Ошибку вычисления (деление на 0) сообщает ArithmeticException
+        double apply(double a, double b) throws ArithmeticException;
+    }
+
+    // Число потоков из args[index] (нет аргумента - по числу процессоров).
+    // Не число или меньше 1 - печатает использование и возвращает 0
+    private static int threadsArgument(String[] args, int index, String usage) {
+        if (args.length <= index) return Runtime.getRuntime().availableProcessors();
+        try {
+            int threads = Integer.parseInt(args[index]);
+            if (threads >= 1) return threads;
+        } catch (NumberFormatException e) {
+            // ниже - то же сообщение, что и для нуля
+        }
+        System.err.println("Число потоков должно быть целым от 1, получено: " + args[index]);
+        System.err.println("Использование: java Main " + usage);
+        return 0;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // Пакетный режим: batch <входной файл> <выходной файл> [потоков]
+        if (args.length >= 3 && args[0].equals("batch")) {
+            int threads = threadsArgument(args, 3, "batch <входной файл> <выходной файл> [потоков]");
+            if (threads == 0) System.exit(1);
+            new BatchProcessor(threads).process(Path.of(args[1]), Path.of(args[2]));
+            return;
+        }
+        // Агрегаты потока чисел: aggregate [файл | -] [потоков], без файла или "-" - stdin
+        if (args.length >= 1 && args[0].equals("aggregate")) {
+            Path input = args.length > 1 && !args[1].equals("-") ? Path.of(args[1]) : null;
+            int threads = threadsArgument(args, 2, "aggregate [файл | -] [потоков]");
+            if (threads == 0) System.exit(1);
+            new AggregateProcessor(threads).process(input);
+            return;
+        }
+        // Сервер: server [порт] [макс. соединений]
+        if (args.length >= 1 && args[0].equals("server")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 7070;
+            int maxConnections = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+            new CalculatorServer(port, maxConnections).serve();
+            return;
+        }
+        // Нагрузка на сервер: loadgen <порт> <клиентов> <строк на клиента>
+        if (args.length >= 4 && args[0].equals("loadgen")) {
+            LoadGenerator.run(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+        // Шаблон формулы с переменными: formula "<формула>" [строк]
+        if (args.length >= 2 && args[0].equals("formula")) {
+            FormulaBenchmark.run(args[1], args.length > 2 ? Integer.parseInt(args[2]) : 1_000_000);
+            return;
+        }
+        // Пересчёт таблицы ячеек: sheet [ячеек]
+        if (args.length >= 1 && args[0].equals("sheet")) {
+            SpreadsheetBenchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 100_000);
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("check")) {
+            ArithmeticCheck.run();
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("bench-alloc")) {
+            AllocationBenchmark.run();
+            return;
+        }
+        // Полный набор замеров: bench [файл.json]
+        if (args.length >= 1 && args[0].equals("bench")) {
+            EngineBenchmark.run(Path.of(args.length > 1 ? args[1] : "bench-result.json"));
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("bench-precise")) {
+            PreciseBenchmark.run();
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("bench-columns")) {
+            ColumnBenchmark.run();
+            return;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        ConsoleOutput out = new ConsoleOutput();
+        LineEvaluator evaluator = new LineEvaluator();
+        byte[] resultPrefix = ConsoleOutput.encode("Результат: ");
+        HistoryLog history = HistoryLog.openConfigured(HistoryLog.defaultFile());
+        evaluator.setHistory(history);
+        // Режим точности с самого начала: -Dcalculator.precision=<значащих цифр>
+        Integer digits = Integer.getInteger("calculator.precision");
+        if (digits != null && digits > 0) evaluator.setPrecision(new MathContext(digits, RoundingMode.HALF_EVEN));
+
+        out.println("Вас приветствует простой консольный калькулятор.");
+        out.println("Поддерживаемые операции: " + OperatorRegistry.symbols());
+        out.println("Можно использовать скобки и унарный минус, например: (2 + 3) * -4 ^ 2");
+        out.println("Статистика вычислений: stats");
+        out.println("Десятичная точность: precision <цифр> (например, precision 34), обычный режим: precision off");
+        if (history != null) {
+            out.println("Прошлые результаты: ans (последний), $n (номер n); журнал: history [n | от-до | 10m]");
+        }
+        out.println("Для выхода введите: exit");
+
+        while (true) { //бесконечный цикл, в котором запрашиваем выражение и обрабатываем его.
+            out.newLine();
+            out.print("Введите выражение: ");
+            // Пока во входе есть готовые строки (файл или вставка), вывод копится в буфере;
+            // перед ожиданием ввода пользователя - сбрасывается
+            if (!reader.ready()) out.flush();
+            String line = reader.readLine();
+            if (line == null) break; // ввод закончился
+            String input = line.trim();
+
+            if (input.equalsIgnoreCase("exit") || input.equalsIgnoreCase("учше")) { //сравниваем строку игнорируя регистр
+                out.println("Выход...");
+                break;
+            }
+            if (input.equalsIgnoreCase("stats")) {
+                out.print(CalculatorMetrics.INSTANCE.getReport());
+                continue;
+            }
+            if (input.startsWith("precision")) {
+                setPrecision(evaluator, input.substring("precision".length()).trim(), out);
+                continue;
+            }
+            if (history != null && input.startsWith("history")) {
+                printHistory(history, input.substring("history".length()).trim(), out);
+                continue;
+            }
+
+            try {
+                String expression = history != null ? history.expandReferences(input) : input;
+                // Простое "a op b" считаем сразу по токенам, остальное компилируем (с кэшем)
+                if (!evaluator.evaluate(expression)) {
+                    out.println("Неверное выражение: " + evaluator.getError().toLowerCase()
+                            + " (позиция " + (evaluator.getErrorPosition() + 1) + "). Введите еще раз.");
+                    continue;
+                }
+                out.write(resultPrefix);
+                if (evaluator.getPreciseResult() != null) out.print(PreciseArithmetic.toText(evaluator.getPreciseResult()));
+                else if (evaluator.isExactResult()) out.printExact(evaluator.getLongResult());
+                else out.print(evaluator.getResult());
+                if (history != null) {
+                    out.print("  ($");
+                    out.print(evaluator.getHistoryNumber());
+                    out.print(")");
+                }
+                out.newLine();
+
+            } catch (ArithmeticException | IllegalArgumentException e) {
+                out.println(e.getMessage());
+            }
+        }
+
+        if (history != null) history.close();
+        out.flush();
+    }
+
+    // precision 34 - десятичная арифметика с 34 значащими цифрами, precision off - снова double
+    private static void setPrecision(LineEvaluator evaluator, String argument, ConsoleOutput out) {
+        if (argument.isEmpty()) {
+            MathContext context = evaluator.getPrecision();
+            out.println(context == null ? "Режим: double" : "Режим точности: " + context.getPrecision() + " значащих цифр");
+            return;
+        }
+        if (argument.equalsIgnoreCase("off")) {
+            evaluator.setPrecision(null);
+            out.println("Режим: double");
+            return;
+        }
+        try {
+            int digits = Integer.parseInt(argument);
+            if (digits <= 0) throw new NumberFormatException();
+            evaluator.setPrecision(new MathContext(digits, RoundingMode.HALF_EVEN));
+            out.println("Режим точности: " + digits + " значащих цифр");
+        } catch (NumberFormatException e) {
+            out.println("Точность - целое число значащих цифр больше 0, например: precision 34");
+        }
+    }
+
+    // history - последние 10 записей, history 25 - последние 25,
+    // history 100-120 - записи с 100 по 120, history 15m - за последние 15 минут (s, m, h)
+    private static void printHistory(HistoryLog history, String query, ConsoleOutput out) {
+        long last = history.last();
+        long from;
+        long to = last;
+        try {
+            int dash = query.indexOf('-');
+            if (query.isEmpty()) {
+                from = last - 9;
+            } else if (dash > 0) {
+                from = Long.parseLong(query.substring(0, dash).trim());
+                to = Math.min(last, Long.parseLong(query.substring(dash + 1).trim()));
+            } else if (query.endsWith("s") || query.endsWith("m") || query.endsWith("h")) {
+                long amount = Long.parseLong(query.substring(0, query.length() - 1).trim());
+                TimeUnit unit = query.endsWith("s") ? TimeUnit.SECONDS : query.endsWith("m") ? TimeUnit.MINUTES : TimeUnit.HOURS;
+                from = history.search(System.currentTimeMillis() - unit.toMillis(amount));
+            } else {
+                from = last - Long.parseLong(query) + 1;
+            }
+        } catch (NumberFormatException e) {
+            out.println("Запрос к журналу: history, history 25, history 100-120 или history 15m");
+            return;
+        }
+
+        from = Math.max(from, history.first());
+        if (from > to) {
+            out.println("В журнале нет таких записей.");
+            return;
+        }
+        HistoryLog.Entry entry = new HistoryLog.Entry();
+        for (long number = from; number <= to; number++) {
+            if (history.read(number, entry)) out.println(entry.toString());
+        }
     }
 }
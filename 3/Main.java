@@ -1,6 +1,68 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.InputMismatchException;
+import java.util.IntSummaryStatistics;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.RandomAccess;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 enum OilType {
     БЕНЗИН,
@@ -18,76 +80,170 @@ enum EngineType {
     НЕТ
 }
 
+// Сочетание топлива и двигателя (null - не задано). Сочетаний всего 35, все экземпляры
+// создаются заранее, и транспорт ссылается на общий вместо двух полей.
+record Powertrain(OilType oilType, EngineType engineType) {
+    private static final int ENGINES = EngineType.values().length + 1;
+    private static final Powertrain[] TABLE = new Powertrain[(OilType.values().length + 1) * ENGINES];
+
+    static {
+        for (int oil = 0; oil <= OilType.values().length; oil++) {
+            for (int engine = 0; engine < ENGINES; engine++) {
+                TABLE[oil * ENGINES + engine] = new Powertrain(oil == 0 ? null : OilType.values()[oil - 1],
+                        engine == 0 ? null : EngineType.values()[engine - 1]);
+            }
+        }
+    }
+
+    static final Powertrain NONE = of(null, null);
+
+    static Powertrain of(OilType oilType, EngineType engineType) {
+        return TABLE[(oilType == null ? 0 : oilType.ordinal() + 1) * ENGINES
+                + (engineType == null ? 0 : engineType.ordinal() + 1)];
+    }
+
+    Powertrain withOilType(OilType oilType) {
+        return of(oilType, engineType);
+    }
+
+    Powertrain withEngineType(EngineType engineType) {
+        return of(oilType, engineType);
+    }
+}
+
+// Действия пишут в переданный поток: в сеансе сервера это сокет клиента
 interface Flyable {
-    void fly();
+    void fly(PrintStream out);
+
+    default void fly() {
+        fly(System.out);
+    }
 }
 
 interface Drivable {
-    void drive();
+    void drive(PrintStream out);
+
+    default void drive() {
+        drive(System.out);
+    }
 }
 
 interface Floatable {
-    void floatOnWater();
+    void floatOnWater(PrintStream out);
+
+    default void floatOnWater() {
+        floatOnWater(System.out);
+    }
 }
 
-abstract sealed class Vehicles permits Flying, GroundBased, WaterBased {
-    private String name;
-    private OilType oilType;
-    private EngineType engineType;
-    private Integer maxSpeed;
+// Общие характеристики транспорта: их читают и сам Vehicles, и строки FleetStore
+interface VehicleInfo {
+    // Скорость не задана
+    int NO_SPEED = Integer.MIN_VALUE;
+
+    String getName();
+
+    OilType getOilType();
+
+    EngineType getEngineType();
+
+    Integer getMaxSpeed();
+
+    // Скорость без упаковки в Integer, NO_SPEED - не задана
+    default int getSpeed() {
+        Integer speed = getMaxSpeed();
+        return speed == null ? NO_SPEED : speed;
+    }
+
+    Class<? extends Vehicles> getType();
+}
+
+abstract sealed class Vehicles implements VehicleInfo permits Flying, GroundBased, WaterBased {
+    // Название интернируется: одинаковые названия (а их в большом парке тысячи) - одна строка
+    private final String name;
+    // Сеттеры синхронизированы: изменение поля, индекса реестра и запись в журнал идут
+    // одним шагом. Читатели видят значения без блокировки
+    private volatile Powertrain powertrain = Powertrain.NONE;
+    private volatile int maxSpeed = NO_SPEED;
+
+    // Реестр, в индексах которого состоит транспорт, и номер в нём
+    volatile VehicleRegistry registry;
+    int id = -1;
 
     public Vehicles(String name) {
-        this.name = name;
+        this.name = name == null ? null : name.intern();
     }
 
     public String getName() {
         return name;
     }
 
-    public void setOilType(OilType oilType) {
-        this.oilType = oilType;
+    public synchronized void setOilType(OilType oilType) {
+        Powertrain powertrain = this.powertrain;
+        if (registry != null) registry.oilTypeChanged(this, powertrain.oilType(), oilType);
+        this.powertrain = powertrain.withOilType(oilType);
     }
 
     public OilType getOilType() {
-        return oilType;
+        return powertrain.oilType();
     }
 
-    public void setEngineType(EngineType engineType) {
-        this.engineType = engineType;
+    public synchronized void setEngineType(EngineType engineType) {
+        Powertrain powertrain = this.powertrain;
+        if (registry != null) registry.engineTypeChanged(this, powertrain.engineType(), engineType);
+        this.powertrain = powertrain.withEngineType(engineType);
     }
 
     public EngineType getEngineType() {
-        return engineType;
+        return powertrain.engineType();
     }
 
-    public void setMaxSpeed(Integer maxSpeed) {
-        this.maxSpeed = maxSpeed;
+    // null - скорость не задана
+    public synchronized void setMaxSpeed(Integer maxSpeed) {
+        int speed = maxSpeed == null ? NO_SPEED : maxSpeed;
+        if (registry != null) registry.maxSpeedChanged(this, this.maxSpeed, speed);
+        this.maxSpeed = speed;
     }
 
     public Integer getMaxSpeed() {
+        int speed = maxSpeed;
+        return speed == NO_SPEED ? null : speed;
+    }
+
+    @Override
+    public int getSpeed() {
         return maxSpeed;
     }
 
-    protected void printSpecificInfo() {
+    @Override
+    public Class<? extends Vehicles> getType() {
+        return getClass();
+    }
+
+    // Уникальные характеристики вида, по строке на характеристику
+    protected void appendSpecificInfo(StringBuilder sb) {
     }
 
     public void printInfo() {
-        System.out.println("\nТип: " + getClass().getSimpleName());
-        System.out.println("Название: " + name);
-        if (engineType != null) System.out.println("Двигатель: " + engineType);
-        if (oilType != null) System.out.println("Тип топлива: " + oilType);
-        if (maxSpeed != null) System.out.println("Макс. скорость: " + maxSpeed + " км/ч");
-        printSpecificInfo();
-        System.out.println("----------------------------");
+        printInfo(System.out);
+    }
+
+    // Карточка собирается в буфере и выводится одним вызовом
+    public void printInfo(PrintStream out) {
+        out.print(VehicleRenderer.appendCard(new StringBuilder(192), this));
     }
 
     @Override
     public String toString() {
+        Powertrain powertrain = this.powertrain;
+        OilType oilType = powertrain.oilType();
+        EngineType engineType = powertrain.engineType();
+        int maxSpeed = this.maxSpeed;
         return getClass().getSimpleName() + "{" +
                 "name='" + name + '\'' +
                 (oilType != null ? ", oilType='" + oilType + '\'' : "") +
                 (engineType != null ? ", engineType='" + engineType + '\'' : "") +
-                (maxSpeed != null ? ", maxSpeed=" + maxSpeed : "") +
+                (maxSpeed != NO_SPEED ? ", maxSpeed=" + maxSpeed : "") +
                 '}';
     }
 }
@@ -107,14 +263,18 @@ final class Plane extends Flying {
         this.passengerCapacity = passengerCapacity;
     }
 
+    public int getPassengerCapacity() {
+        return passengerCapacity;
+    }
+
     @Override
-    protected void printSpecificInfo() {
-        System.out.println("Вместимость пассажиров: " + passengerCapacity);
+    protected void appendSpecificInfo(StringBuilder sb) {
+        sb.append("Вместимость пассажиров: ").append(passengerCapacity).append('\n');
     }
 
     @Override
-    public void fly() {
-        System.out.println(getName() + " летит!");
+    public void fly(PrintStream out) {
+        out.println(getName() + " летит!");
     }
 }
 
@@ -126,14 +286,18 @@ final class Helicopter extends Flying {
         this.blades = blades;
     }
 
+    public int getBlades() {
+        return blades;
+    }
+
     @Override
-    protected void printSpecificInfo() {
-        System.out.println("Количество лопастей: " + blades);
+    protected void appendSpecificInfo(StringBuilder sb) {
+        sb.append("Количество лопастей: ").append(blades).append('\n');
     }
 
     @Override
-    public void fly() {
-        System.out.println(getName() + " поднимается в воздух!");
+    public void fly(PrintStream out) {
+        out.println(getName() + " поднимается в воздух!");
     }
 }
 
@@ -152,14 +316,18 @@ final class Car extends GroundBased {
         this.doors = doors;
     }
 
+    public int getDoors() {
+        return doors;
+    }
+
     @Override
-    protected void printSpecificInfo() {
-        System.out.println("Количество дверей: " + doors);
+    protected void appendSpecificInfo(StringBuilder sb) {
+        sb.append("Количество дверей: ").append(doors).append('\n');
     }
 
     @Override
-    public void drive() {
-        System.out.println(getName() + " едет по дороге!");
+    public void drive(PrintStream out) {
+        out.println(getName() + " едет по дороге!");
     }
 }
 
@@ -171,14 +339,18 @@ final class Bike extends GroundBased {
         this.hasElectricEngine = hasElectricEngine;
     }
 
+    public boolean hasElectricEngine() {
+        return hasElectricEngine;
+    }
+
     @Override
-    protected void printSpecificInfo() {
-        System.out.println("Электродвигатель: " + (hasElectricEngine ? "Да" : "Нет"));
+    protected void appendSpecificInfo(StringBuilder sb) {
+        sb.append("Электродвигатель: ").append(hasElectricEngine ? "Да" : "Нет").append('\n');
     }
 
     @Override
-    public void drive() {
-        System.out.println(getName() + " едет по дороге!");
+    public void drive(PrintStream out) {
+        out.println(getName() + " едет по дороге!");
     }
 }
 
@@ -190,14 +362,18 @@ final class Bicycle extends GroundBased {
         this.hasGears = hasGears;
     }
 
+    public boolean hasGears() {
+        return hasGears;
+    }
+
     @Override
-    protected void printSpecificInfo() {
-        System.out.println("Есть передачи: " + (hasGears ? "Да" : "Нет"));
+    protected void appendSpecificInfo(StringBuilder sb) {
+        sb.append("Есть передачи: ").append(hasGears ? "Да" : "Нет").append('\n');
     }
 
     @Override
-    public void drive() {
-        System.out.println(getName() + " едет по лесу!");
+    public void drive(PrintStream out) {
+        out.println(getName() + " едет по лесу!");
     }
 }
 
@@ -216,14 +392,18 @@ final class Train extends RailsBased {
         this.wagons = wagons;
     }
 
+    public int getWagons() {
+        return wagons;
+    }
+
     @Override
-    protected void printSpecificInfo() {
-        System.out.println("Количество вагонов: " + wagons);
+    protected void appendSpecificInfo(StringBuilder sb) {
+        sb.append("Количество вагонов: ").append(wagons).append('\n');
     }
 
     @Override
-    public void drive() {
-        System.out.println(getName() + " едет по рельсам!");
+    public void drive(PrintStream out) {
+        out.println(getName() + " едет по рельсам!");
     }
 }
 
@@ -235,14 +415,18 @@ final class Subway extends RailsBased {
         this.stations = stations;
     }
 
+    public int getStations() {
+        return stations;
+    }
+
     @Override
-    protected void printSpecificInfo() {
-        System.out.println("Станций на маршруте: " + stations);
+    protected void appendSpecificInfo(StringBuilder sb) {
+        sb.append("Станций на маршруте: ").append(stations).append('\n');
     }
 
     @Override
-    public void drive() {
-        System.out.println(getName() + " едет по рельсам под землей!");
+    public void drive(PrintStream out) {
+        out.println(getName() + " едет по рельсам под землей!");
     }
 }
 
@@ -261,14 +445,18 @@ final class Boat extends WaterBased {
         this.displacement = displacement;
     }
 
+    public double getDisplacement() {
+        return displacement;
+    }
+
     @Override
-    protected void printSpecificInfo() {
-        System.out.println("Водоизмещение: " + displacement + " т");
+    protected void appendSpecificInfo(StringBuilder sb) {
+        sb.append("Водоизмещение: ").append(displacement).append(" т\n");
     }
 
     @Override
-    public void floatOnWater() {
-        System.out.println(getName() + " рассекает волны!");
+    public void floatOnWater(PrintStream out) {
+        out.println(getName() + " рассекает волны!");
     }
 }
 
@@ -280,203 +468,3336 @@ final class Ship extends WaterBased {
         this.tonnage = tonnage;
     }
 
+    public double getTonnage() {
+        return tonnage;
+    }
+
     @Override
-    protected void printSpecificInfo() {
-        System.out.println("Масса: " + tonnage + " т");
+    protected void appendSpecificInfo(StringBuilder sb) {
+        sb.append("Масса: ").append(tonnage).append(" т\n");
     }
 
     @Override
-    public void floatOnWater() {
-        System.out.println(getName() + " плывет по воде!");
+    public void floatOnWater(PrintStream out) {
+        out.println(getName() + " плывет по воде!");
     }
 }
 
-public class Main {
-    private static final List<Vehicles> vehicles = new ArrayList<>();
-    private static final Scanner scanner = new Scanner(System.in);
+// Реестр транспорта с индексами: по названию, по топливу, двигателю и конкретному классу
+// (битовые множества номеров), по скорости (отсортированное множество).
+// Индексы обновляются сеттерами Vehicles, поэтому транспорт состоит максимум в одном реестре.
+// Реестр потокобезопасен. Список - сегменты по 1024 ссылки, которые только дописываются;
+// размер публикуется volatile-записью последним, так что get и обход идут без блокировок,
+// а итератор и snapshot() видят состав реестра на момент создания. Индексы топлива,
+// двигателя и вида защищены каждый своим ReadWriteLock (изменение топлива не мешает
+// поиску по виду), названия - ConcurrentHashMap списков (список читается под своим
+// монитором), скорость - ConcurrentSkipListSet.
+// Добавления идут по одному под addLock, чтобы номера совпадали с порядком в журнале.
+class VehicleRegistry implements Iterable<Vehicles> {
+    private static final int SEGMENT_BITS = 10;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+
+    private volatile Vehicles[][] segments = new Vehicles[16][];
+    private volatile int size;
+    private final Object addLock = new Object();
+
+    private final Map<String, List<Vehicles>> byName = new ConcurrentHashMap<>();
+    private final BitSetIndex<OilType> byOilType = new BitSetIndex<>(new EnumMap<>(OilType.class));
+    private final BitSetIndex<EngineType> byEngineType = new BitSetIndex<>(new EnumMap<>(EngineType.class));
+    private final BitSetIndex<Class<? extends Vehicles>> byType = new BitSetIndex<>(new HashMap<>());
+    // Ключ - скорость в старших 32 битах и номер в младших: порядок по скорости, затем по номеру
+    private final NavigableSet<Long> bySpeed = new ConcurrentSkipListSet<>();
+    private volatile FleetJournal journal;
+
+    public void add(Vehicles vehicle) {
+        synchronized (addLock) {
+            append(vehicle);
+        }
+    }
 
-    private static boolean checkIsEmptyList() {
-        if (vehicles.isEmpty()) {
-            System.out.println("\nСписок пуст.");
-            return true;
+    // Пачка добавляется подряд, без чужих добавлений между транспортом пачки:
+    // ключи скорости вставляются в индекс отсортированными, журнал пишет всю пачку
+    // под одной блокировкой, размер публикуется один раз. Транспорт пачки до возврата
+    // не должен меняться другими потоками (импорт и восстановление создают его сами)
+    public void addAll(Collection<? extends Vehicles> batch) {
+        synchronized (addLock) {
+            for (Vehicles vehicle : batch) checkNotRegistered(vehicle);
+            int first = size;
+            if (batch.size() > Integer.MAX_VALUE - first) throw new IllegalStateException("Реестр переполнен");
+            long[] speeds = new long[batch.size()];
+            int withSpeed = 0;
+            int id = first;
+            for (Vehicles vehicle : batch) {
+                synchronized (vehicle) {
+                    index(vehicle, id++);
+                    int speed = vehicle.getSpeed();
+                    if (speed != VehicleInfo.NO_SPEED) speeds[withSpeed++] = speedKey(speed, vehicle.id);
+                }
+            }
+            Arrays.sort(speeds, 0, withSpeed);
+            for (int i = 0; i < withSpeed; i++) bySpeed.add(speeds[i]);
+            FleetJournal journal = this.journal;
+            if (journal != null) journal.logAdds(batch);
+            size = id;
         }
-        return false;
     }
 
-    public static void main(String[] args) {
-        while (true) {
-            System.out.println("\n===== Меню =====");
-            System.out.println("1. Добавить транспорт");
-            System.out.println("2. Показать все созданные транспорты");
-            System.out.println("3. Выполнить действие с транспортом");
-            System.out.println("4. Выход");
-            System.out.print("Выберите пункт: ");
+    // Под addLock. Монитор транспорта не даёт сеттеру вклиниться между индексами и журналом
+    private void append(Vehicles vehicle) {
+        synchronized (vehicle) {
+            checkNotRegistered(vehicle);
+            int id = size;
+            if (id == Integer.MAX_VALUE) throw new IllegalStateException("Реестр переполнен");
+            index(vehicle, id);
+            if (vehicle.getSpeed() != VehicleInfo.NO_SPEED) bySpeed.add(speedKey(vehicle.getSpeed(), id));
+            FleetJournal journal = this.journal;
+            if (journal != null) journal.logAdd(vehicle);
+            size = id + 1;
+        }
+    }
 
-            int variant = scanner.nextInt();
-            scanner.nextLine();
+    private static void checkNotRegistered(Vehicles vehicle) {
+        if (vehicle.registry != null) {
+            throw new IllegalArgumentException(vehicle.getName() + " уже состоит в реестре");
+        }
+    }
 
-            switch (variant) {
-                case 1 -> addVehicle();
-                case 2 -> showVehicles();
-                case 3 -> doAction();
-                case 4 -> {
-                    System.out.println("Выход из программы...");
-                    return;
-                }
-                default -> System.out.println("Неизвестный вариант выбора, попробуйте еще раз.");
-            }
+    // Место в таблице и все индексы, кроме скорости; размер не публикуется
+    private void index(Vehicles vehicle, int id) {
+        Vehicles[][] table = segments;
+        int segment = id >>> SEGMENT_BITS;
+        if (segment == table.length) segments = table = Arrays.copyOf(table, table.length * 2);
+        if (table[segment] == null) table[segment] = new Vehicles[SEGMENT_SIZE];
+        table[segment][id & (SEGMENT_SIZE - 1)] = vehicle;
+
+        vehicle.id = id;
+        vehicle.registry = this;
+        List<Vehicles> sameName = byName.computeIfAbsent(vehicle.getName(), name -> new ArrayList<>(1));
+        synchronized (sameName) {
+            sameName.add(vehicle);
         }
+        byType.set(vehicle.getClass(), id);
+        if (vehicle.getOilType() != null) byOilType.set(vehicle.getOilType(), id);
+        if (vehicle.getEngineType() != null) byEngineType.set(vehicle.getEngineType(), id);
     }
 
-    private static OilType chooseOilType() {
-        System.out.println("Выберите тип топлива:");
-        OilType[] values = OilType.values();
-        for (int i = 0; i < values.length; i++) {
-            System.out.println((i + 1) + ". " + values[i]);
+    // Журнал, в который записываются добавления и изменения
+    void setJournal(FleetJournal journal) {
+        this.journal = journal;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Транспорт в порядке добавления, index от 0
+    public Vehicles get(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Нет транспорта " + index);
+        return at(index);
+    }
+
+    // Без проверки размера: номер из индекса может опережать опубликованный размер
+    Vehicles at(int id) {
+        return segments[id >>> SEGMENT_BITS][id & (SEGMENT_SIZE - 1)];
+    }
+
+    @Override
+    public Iterator<Vehicles> iterator() {
+        return snapshot().iterator();
+    }
+
+    // Неизменяемый список транспорта, добавленного к этому моменту; памяти не копирует
+    public List<Vehicles> snapshot() {
+        int count = size;
+        Vehicles[][] table = segments;
+        return new Snapshot(table, count);
+    }
+
+    // Первый добавленный транспорт с таким названием или null
+    public Vehicles find(String name) {
+        List<Vehicles> found = byName.get(name);
+        if (found == null) return null;
+        synchronized (found) {
+            return found.isEmpty() ? null : found.get(0);
         }
-        int oilVariant = scanner.nextInt();
-        scanner.nextLine();
-        if (oilVariant >= 1 && oilVariant <= values.length) {
-            return values[oilVariant - 1];
-        } else {
-            System.out.println("Неверный ввод, выбрано НЕТ");
-            return OilType.НЕТ;
+    }
+
+    public List<Vehicles> findAll(String name) {
+        List<Vehicles> found = byName.get(name);
+        if (found == null) return List.of();
+        synchronized (found) {
+            return List.copyOf(found);
         }
     }
 
-    private static EngineType chooseEngineType() {
-        System.out.println("Выберите тип двигателя:");
-        EngineType[] values = EngineType.values();
-        for (int i = 0; i < values.length; i++) {
-            System.out.println((i + 1) + ". " + values[i]);
+    public List<Vehicles> withOilType(OilType oilType) {
+        return select(byOilType.copy(oilType));
+    }
+
+    public List<Vehicles> withEngineType(EngineType engineType) {
+        return select(byEngineType.copy(engineType));
+    }
+
+    // type может быть и абстрактным (Flying, RailsBased) - тогда объединяются все его подклассы
+    public List<Vehicles> ofType(Class<? extends Vehicles> type) {
+        return select(typeIds(type));
+    }
+
+    // Транспорт со скоростью от from до to включительно, по возрастанию скорости
+    public List<Vehicles> withSpeedBetween(int from, int to) {
+        List<Vehicles> result = new ArrayList<>();
+        if (from > to) return result;
+        for (long key : bySpeed.subSet(speedKey(from, 0), true, speedKey(to, Integer.MAX_VALUE), true)) {
+            result.add(at((int) key));
         }
-        int engineVariant = scanner.nextInt();
-        scanner.nextLine();
-        if (engineVariant >= 1 && engineVariant <= values.length) {
-            return values[engineVariant - 1];
-        } else {
-            System.out.println("Неверный ввод, выбрано НЕТ");
-            return EngineType.НЕТ;
+        return result;
+    }
+
+    // Пересечение индексов; null означает любое значение
+    public List<Vehicles> find(Class<? extends Vehicles> type, OilType oilType, EngineType engineType) {
+        BitSet result = candidates(type, oilType, engineType);
+        if (result == null) return List.copyOf(snapshot());
+        return select(result);
+    }
+
+    // Номера транспорта по индексам, null - фильтров нет. type может быть и интерфейсом (Flyable)
+    BitSet candidates(Class<?> type, OilType oilType, EngineType engineType) {
+        BitSet result = null;
+        if (type != null) result = typeIds(type);
+        if (oilType != null) result = intersect(result, byOilType.copy(oilType));
+        if (engineType != null) result = intersect(result, byEngineType.copy(engineType));
+        return result;
+    }
+
+    // Номера транспорта со скоростью от from до to включительно
+    BitSet speedIds(int from, int to) {
+        BitSet result = new BitSet();
+        if (from > to) return result;
+        for (long key : bySpeed.subSet(speedKey(from, 0), true, speedKey(to, Integer.MAX_VALUE), true)) {
+            result.set((int) key);
         }
+        return result;
     }
 
+    // Вызываются из синхронизированных сеттеров Vehicles
+    void oilTypeChanged(Vehicles vehicle, OilType from, OilType to) {
+        if (from == to) return;
+        byOilType.move(from, to, vehicle.id);
+        FleetJournal journal = this.journal;
+        if (journal != null) journal.logOilType(vehicle.id, to);
+    }
 
-    private static void addVehicle() {
-        System.out.println("\nКакой транспорт добавить?");
-        System.out.println("1. Машина");
-        System.out.println("2. Самолет");
-        System.out.println("3. Мотоцикл");
-        System.out.println("4. Велосипед");
-        System.out.println("5. Поезд");
-        System.out.println("6. Метро");
-        System.out.println("7. Лодка");
-        System.out.println("8. Корабль");
-        System.out.print("Введите номер: ");
-        int type = scanner.nextInt();
-        scanner.nextLine();
+    void engineTypeChanged(Vehicles vehicle, EngineType from, EngineType to) {
+        if (from == to) return;
+        byEngineType.move(from, to, vehicle.id);
+        FleetJournal journal = this.journal;
+        if (journal != null) journal.logEngineType(vehicle.id, to);
+    }
 
-        System.out.print("Введите название: ");
-        String name = scanner.nextLine();
+    void maxSpeedChanged(Vehicles vehicle, int from, int to) {
+        if (from == to) return;
+        if (to != VehicleInfo.NO_SPEED) bySpeed.add(speedKey(to, vehicle.id));
+        if (from != VehicleInfo.NO_SPEED) bySpeed.remove(speedKey(from, vehicle.id));
+        FleetJournal journal = this.journal;
+        if (journal != null) journal.logMaxSpeed(vehicle.id, to);
+    }
 
-        Vehicles vehicle = null;
+    private static long speedKey(int speed, int id) {
+        return (long) speed << 32 | id;
+    }
 
-        switch (type) {
-            case 1 -> {
-                System.out.print("Количество дверей: ");
-                int doors = scanner.nextInt();
-                vehicle = new Car(name, doors);
-            }
-            case 2 -> {
-                System.out.print("Количество посадочных мест: ");
-                int capacity = scanner.nextInt();
-                vehicle = new Plane(name, capacity);
-            }
-            case 3 -> {
-                System.out.print("Есть ли электродвигатель? (true/false): ");
-                boolean electroEngine = scanner.nextBoolean();
-                vehicle = new Bike(name, electroEngine);
-            }
-            case 4 -> {
-                System.out.print("Есть ли переключатель передач? (true/false): ");
-                boolean shifter = scanner.nextBoolean();
-                vehicle = new Bicycle(name, shifter);
-            }
-            case 5 -> {
-                System.out.print("Количество вагонов: ");
-                int wagons = scanner.nextInt();
-                vehicle = new Train(name, wagons);
+    private BitSet typeIds(Class<?> type) {
+        return byType.union(type::isAssignableFrom);
+    }
+
+    private static BitSet intersect(BitSet result, BitSet ids) {
+        if (ids == null) return new BitSet();
+        if (result == null) return ids;
+        result.and(ids);
+        return result;
+    }
+
+    private List<Vehicles> select(BitSet ids) {
+        List<Vehicles> result = new ArrayList<>();
+        if (ids == null) return result;
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            result.add(at(id));
+        }
+        return result;
+    }
+
+    // Битовые множества номеров по ключу под одним ReadWriteLock; наружу отдаются копии
+    private static final class BitSetIndex<K> {
+        private final Map<K, BitSet> sets;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        BitSetIndex(Map<K, BitSet> sets) {
+            this.sets = sets;
+        }
+
+        void set(K key, int id) {
+            lock.writeLock().lock();
+            try {
+                sets.computeIfAbsent(key, k -> new BitSet()).set(id);
+            } finally {
+                lock.writeLock().unlock();
             }
-            case 6 -> {
-                System.out.print("Количество станций: ");
-                int stations = scanner.nextInt();
-                vehicle = new Subway(name, stations);
+        }
+
+        void move(K from, K to, int id) {
+            lock.writeLock().lock();
+            try {
+                if (from != null) sets.get(from).clear(id);
+                if (to != null) sets.computeIfAbsent(to, k -> new BitSet()).set(id);
+            } finally {
+                lock.writeLock().unlock();
             }
-            case 7 -> {
-                System.out.print("Водоизмещение: ");
-                double d = scanner.nextDouble();
-                vehicle = new Boat(name, d);
+        }
+
+        BitSet copy(K key) {
+            lock.readLock().lock();
+            try {
+                BitSet ids = sets.get(key);
+                return ids == null ? null : (BitSet) ids.clone();
+            } finally {
+                lock.readLock().unlock();
             }
-            case 8 -> {
-                System.out.print("Масса: ");
-                double mass = scanner.nextDouble();
-                vehicle = new Ship(name, mass);
+        }
+
+        BitSet union(Predicate<? super K> keys) {
+            lock.readLock().lock();
+            try {
+                BitSet result = new BitSet();
+                sets.forEach((key, ids) -> {
+                    if (keys.test(key)) result.or(ids);
+                });
+                return result;
+            } finally {
+                lock.readLock().unlock();
             }
-            default -> System.out.println("Неизвестный тип транспорта.");
         }
+    }
 
-        if (vehicle != null) {
-            scanner.nextLine();
-            vehicle.setEngineType(chooseEngineType());
-            vehicle.setOilType(chooseOilType());
+    private static final class Snapshot extends AbstractList<Vehicles> implements RandomAccess {
+        private final Vehicles[][] table;
+        private final int size;
 
-            System.out.print("Введите макс. скорость: ");
-            int speed = scanner.nextInt();
-            if (speed > 0) vehicle.setMaxSpeed(speed);
+        Snapshot(Vehicles[][] table, int size) {
+            this.table = table;
+            this.size = size;
+        }
 
-            vehicles.add(vehicle);
-            System.out.println("Транспорт добавлен!");
+        @Override
+        public Vehicles get(int index) {
+            Objects.checkIndex(index, size);
+            return table[index >>> SEGMENT_BITS][index & (SEGMENT_SIZE - 1)];
         }
-    }
 
-    private static void showVehicles() {
-        if (checkIsEmptyList()) return;
-        System.out.println("\n===== Список созданного транспорта =====");
-        System.out.println("\nВсего транспорта в списке " + vehicles.size());
-        System.out.println("\n----------------------------");
-        for (Vehicles v : vehicles) {
-            v.printInfo();
+        @Override
+        public int size() {
+            return size;
         }
     }
+}
 
-    private static void doAction() {
-        if (checkIsEmptyList()) return;
+// Колоночное хранилище транспорта вне кучи: каждая характеристика - отдельный direct ByteBuffer.
+// На строку уходит 18 байт (вид, топливо, двигатель, скорость, номер названия, характеристика вида)
+// вместо объекта Vehicles с Integer и String. Названия хранятся один раз в UTF-8 в арене.
+// MemorySegment в JDK 17 ещё инкубаторный, поэтому буферы - обычные ByteBuffer.allocateDirect.
+class FleetStore {
+    // Порядковый номер вида в колонке types
+    static final List<Class<? extends Vehicles>> TYPES = List.of(
+            Car.class, Plane.class, Helicopter.class, Bike.class, Bicycle.class,
+            Train.class, Subway.class, Boat.class, Ship.class);
+
+    static final int NO_SPEED = VehicleInfo.NO_SPEED;
+    private static final byte NONE = -1;
+
+    private int size;
+    private int capacity;
+    private ByteBuffer types;       // byte: номер вида в TYPES
+    private ByteBuffer oilTypes;    // byte: ordinal или NONE
+    private ByteBuffer engineTypes; // byte: ordinal или NONE
+    private ByteBuffer maxSpeeds;   // int: скорость или NO_SPEED
+    private ByteBuffer nameIds;     // int: номер названия в арене
+    private ByteBuffer attributes;  // long: int, boolean (0/1) или биты double - зависит от вида
+
+    private final NameArena names = new NameArena();
+
+    public FleetStore() {
+        this(1024);
+    }
 
-        System.out.println("\nВыберите транспорт для действия:");
-        for (int i = 0; i < vehicles.size(); i++) {
-            System.out.println((i + 1) + ". " + vehicles.get(i).getName() + " (" + vehicles.get(i).getClass().getSimpleName() + ")");
+    public FleetStore(int initialCapacity) {
+        capacity = Math.max(16, initialCapacity);
+        types = allocate(capacity);
+        oilTypes = allocate(capacity);
+        engineTypes = allocate(capacity);
+        maxSpeeds = allocate(capacity * 4);
+        nameIds = allocate(capacity * 4);
+        attributes = allocate(capacity * 8);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Память вне кучи, занятая колонками и ареной
+    public long byteSize() {
+        return (long) capacity * 18 + names.byteSize();
+    }
+
+    // Номер добавленной строки
+    public int add(Vehicles vehicle) {
+        if (size == capacity) grow();
+        int row = size++;
+        types.put(row, (byte) TYPES.indexOf(vehicle.getClass()));
+        nameIds.putInt(row * 4, names.intern(vehicle.getName()));
+        attributes.putLong(row * 8, attributeOf(vehicle));
+        setOilType(row, vehicle.getOilType());
+        setEngineType(row, vehicle.getEngineType());
+        setMaxSpeed(row, vehicle.getMaxSpeed());
+        return row;
+    }
+
+    public void addAll(Iterable<? extends Vehicles> vehicles) {
+        for (Vehicles vehicle : vehicles) add(vehicle);
+    }
+
+    public Class<? extends Vehicles> getType(int row) {
+        return TYPES.get(getTypeIndex(row));
+    }
+
+    public int getTypeIndex(int row) {
+        return types.get(checkRow(row));
+    }
+
+    public String getName(int row) {
+        return names.get(nameIds.getInt(checkRow(row) * 4));
+    }
+
+    public OilType getOilType(int row) {
+        byte ordinal = oilTypes.get(checkRow(row));
+        return ordinal == NONE ? null : OIL_TYPES[ordinal];
+    }
+
+    public EngineType getEngineType(int row) {
+        byte ordinal = engineTypes.get(checkRow(row));
+        return ordinal == NONE ? null : ENGINE_TYPES[ordinal];
+    }
+
+    // Скорость без упаковки в Integer, NO_SPEED - не задана
+    public int getSpeed(int row) {
+        return maxSpeeds.getInt(checkRow(row) * 4);
+    }
+
+    public Integer getMaxSpeed(int row) {
+        int speed = getSpeed(row);
+        return speed == NO_SPEED ? null : speed;
+    }
+
+    public long getAttribute(int row) {
+        return attributes.getLong(checkRow(row) * 8);
+    }
+
+    public void setOilType(int row, OilType oilType) {
+        oilTypes.put(checkRow(row), oilType == null ? NONE : (byte) oilType.ordinal());
+    }
+
+    public void setEngineType(int row, EngineType engineType) {
+        engineTypes.put(checkRow(row), engineType == null ? NONE : (byte) engineType.ordinal());
+    }
+
+    public void setMaxSpeed(int row, Integer maxSpeed) {
+        maxSpeeds.putInt(checkRow(row) * 4, maxSpeed == null ? NO_SPEED : maxSpeed);
+    }
+
+    public View view(int row) {
+        return new View(checkRow(row));
+    }
+
+    // Обычный объект Vehicles из строки
+    public Vehicles toVehicle(int row) {
+        String name = getName(row);
+        long attribute = getAttribute(row);
+        Vehicles vehicle = create(types.get(row), name, attribute);
+        vehicle.setOilType(getOilType(row));
+        vehicle.setEngineType(getEngineType(row));
+        vehicle.setMaxSpeed(getMaxSpeed(row));
+        return vehicle;
+    }
+
+    // Vehicles вида TYPES.get(type) с характеристикой в кодировке колонки attributes
+    static Vehicles create(int type, String name, long attribute) {
+        return switch (type) {
+            case 0 -> new Car(name, (int) attribute);
+            case 1 -> new Plane(name, (int) attribute);
+            case 2 -> new Helicopter(name, (int) attribute);
+            case 3 -> new Bike(name, attribute != 0);
+            case 4 -> new Bicycle(name, attribute != 0);
+            case 5 -> new Train(name, (int) attribute);
+            case 6 -> new Subway(name, (int) attribute);
+            case 7 -> new Boat(name, Double.longBitsToDouble(attribute));
+            default -> new Ship(name, Double.longBitsToDouble(attribute));
+        };
+    }
+
+    // Строка хранилища с геттерами Vehicles. Объект - только номер строки; moveTo позволяет
+    // пройти всё хранилище одним курсором
+    class View implements VehicleInfo {
+        private int row;
+
+        private View(int row) {
+            this.row = row;
         }
 
-        int index = scanner.nextInt() - 1;
-        scanner.nextLine();
-        if (index < 0 || index >= vehicles.size()) {
-            System.out.println("Неверный выбор.");
-            return;
+        public View moveTo(int row) {
+            this.row = checkRow(row);
+            return this;
         }
 
-        Vehicles v = vehicles.get(index);
+        public int getRow() {
+            return row;
+        }
 
-        System.out.println("\nВыберите действие:");
-        if (v instanceof Flyable) System.out.println("1. Летать");
-        if (v instanceof Drivable) System.out.println("2. Ехать");
-        if (v instanceof Floatable) System.out.println("3. Плыть");
+        @Override
+        public Class<? extends Vehicles> getType() {
+            return FleetStore.this.getType(row);
+        }
 
-        int action = scanner.nextInt();
-        scanner.nextLine();
+        @Override
+        public String getName() {
+            return FleetStore.this.getName(row);
+        }
+
+        @Override
+        public OilType getOilType() {
+            return FleetStore.this.getOilType(row);
+        }
 
-        if (v instanceof Flyable f && action == 1) f.fly();
-        else if (v instanceof Drivable d && action == 2) d.drive();
-        else if (v instanceof Floatable fl && action == 3) fl.floatOnWater();
-        else System.out.println("Неверное действие для выбранного транспорта.");
+        @Override
+        public EngineType getEngineType() {
+            return FleetStore.this.getEngineType(row);
+        }
+
+        @Override
+        public Integer getMaxSpeed() {
+            return FleetStore.this.getMaxSpeed(row);
+        }
+
+        @Override
+        public int getSpeed() {
+            return FleetStore.this.getSpeed(row);
+        }
+
+        public Vehicles toVehicle() {
+            return FleetStore.this.toVehicle(row);
+        }
+
+        @Override
+        public String toString() {
+            return toVehicle().toString();
+        }
+    }
+
+    static final OilType[] OIL_TYPES = OilType.values();
+    static final EngineType[] ENGINE_TYPES = EngineType.values();
+
+    static long attributeOf(Vehicles vehicle) {
+        if (vehicle instanceof Car car) return car.getDoors();
+        if (vehicle instanceof Plane plane) return plane.getPassengerCapacity();
+        if (vehicle instanceof Helicopter helicopter) return helicopter.getBlades();
+        if (vehicle instanceof Bike bike) return bike.hasElectricEngine() ? 1 : 0;
+        if (vehicle instanceof Bicycle bicycle) return bicycle.hasGears() ? 1 : 0;
+        if (vehicle instanceof Train train) return train.getWagons();
+        if (vehicle instanceof Subway subway) return subway.getStations();
+        if (vehicle instanceof Boat boat) return Double.doubleToRawLongBits(boat.getDisplacement());
+        return Double.doubleToRawLongBits(((Ship) vehicle).getTonnage());
+    }
+
+    private int checkRow(int row) {
+        if (row < 0 || row >= size) throw new IndexOutOfBoundsException("Нет строки " + row);
+        return row;
+    }
+
+    private void grow() {
+        if (capacity > Integer.MAX_VALUE / 16) throw new IllegalStateException("Хранилище переполнено");
+        capacity *= 2;
+        types = copy(types, capacity);
+        oilTypes = copy(oilTypes, capacity);
+        engineTypes = copy(engineTypes, capacity);
+        maxSpeeds = copy(maxSpeeds, capacity * 4);
+        nameIds = copy(nameIds, capacity * 4);
+        attributes = copy(attributes, capacity * 8);
     }
 
+    static ByteBuffer allocate(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    static ByteBuffer copy(ByteBuffer buffer, int bytes) {
+        ByteBuffer result = allocate(bytes);
+        result.put(buffer.duplicate().clear());
+        return result.clear();
+    }
+
+    // Арена названий: байты UTF-8 подряд, смещения в отдельном буфере, открытая адресация
+    // по хэшу байтов для поиска уже записанного названия - строки в куче не хранятся
+    private static final class NameArena {
+        private ByteBuffer bytes = allocate(1 << 16);
+        private ByteBuffer offsets = allocate(1024 * 4); // начало i-го названия, конец - начало (i + 1)-го
+        private int[] table = new int[1024];             // номер названия + 1, 0 - пусто
+        private int count;
+        private int end;
+
+        int intern(String name) {
+            byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+            int hash = hash(utf8);
+            int mask = table.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                int id = table[slot] - 1;
+                if (id < 0) {
+                    id = append(utf8);
+                    table[slot] = id + 1;
+                    if (count * 2 > table.length) rehash();
+                    return id;
+                }
+                if (matches(id, utf8)) return id;
+            }
+        }
+
+        String get(int id) {
+            int from = start(id);
+            byte[] utf8 = new byte[start(id + 1) - from];
+            bytes.get(from, utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        long byteSize() {
+            return bytes.capacity() + offsets.capacity() + table.length * 4L;
+        }
+
+        private int start(int id) {
+            return offsets.getInt(id * 4);
+        }
+
+        private int append(byte[] utf8) {
+            if (end + utf8.length > bytes.capacity()) {
+                bytes = copy(bytes, Math.max(bytes.capacity() * 2, end + utf8.length));
+            }
+            if ((count + 2) * 4 > offsets.capacity()) offsets = copy(offsets, offsets.capacity() * 2);
+            bytes.put(end, utf8);
+            end += utf8.length;
+            offsets.putInt(++count * 4, end);
+            return count - 1;
+        }
+
+        private boolean matches(int id, byte[] utf8) {
+            int from = start(id);
+            if (start(id + 1) - from != utf8.length) return false;
+            for (int i = 0; i < utf8.length; i++) {
+                if (bytes.get(from + i) != utf8[i]) return false;
+            }
+            return true;
+        }
+
+        private void rehash() {
+            int[] old = table;
+            table = new int[old.length * 2];
+            int mask = table.length - 1;
+            for (int entry : old) {
+                if (entry == 0) continue;
+                int id = entry - 1;
+                int from = start(id);
+                int hash = 1;
+                for (int i = from, to = start(id + 1); i < to; i++) hash = 31 * hash + bytes.get(i);
+                int slot = mix(hash) & mask;
+                while (table[slot] != 0) slot = (slot + 1) & mask;
+                table[slot] = entry;
+            }
+        }
+
+        private static int hash(byte[] utf8) {
+            int hash = 1;
+            for (byte b : utf8) hash = 31 * hash + b;
+            return mix(hash);
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
+
+// Случайный парк транспорта для замеров: названия повторяются, как в настоящих выгрузках
+class FleetGenerator {
+    private static final String[][] MODELS = {
+            {"Lada Vesta", "Toyota Camry", "Kia Rio", "Volkswagen Polo"},
+            {"Boeing 737", "Airbus A320", "Sukhoi Superjet 100"},
+            {"Mi-8", "Ka-226", "Robinson R44"},
+            {"Yamaha R1", "Honda CBR", "Ural"},
+            {"Stels Navigator", "Forward Apache", "Merida Big Nine"},
+            {"Lastochka", "Sapsan", "ES2G"},
+            {"Moskva-2020", "81-717", "Rusich"},
+            {"Kazanka", "Progress-4", "Yamaha 242X"},
+            {"Pioneer Moskvy", "Volgo-Balt", "Akademik Lomonosov"}
+    };
+
+    private final Random random;
+
+    FleetGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+    Vehicles next() {
+        int type = random.nextInt(MODELS.length);
+        String name = MODELS[type][random.nextInt(MODELS[type].length)];
+        Vehicles vehicle = switch (type) {
+            case 0 -> new Car(name, 2 + random.nextInt(4));
+            case 1 -> new Plane(name, 50 + random.nextInt(300));
+            case 2 -> new Helicopter(name, 2 + random.nextInt(6));
+            case 3 -> new Bike(name, random.nextBoolean());
+            case 4 -> new Bicycle(name, random.nextBoolean());
+            case 5 -> new Train(name, 4 + random.nextInt(16));
+            case 6 -> new Subway(name, 10 + random.nextInt(30));
+            case 7 -> new Boat(name, 0.5 + random.nextInt(100) / 10.0);
+            default -> new Ship(name, 1000 + random.nextInt(50000));
+        };
+        vehicle.setOilType(OilType.values()[random.nextInt(OilType.values().length)]);
+        vehicle.setEngineType(EngineType.values()[random.nextInt(EngineType.values().length)]);
+        if (random.nextInt(10) != 0) vehicle.setMaxSpeed(20 + random.nextInt(900));
+        return vehicle;
+    }
+}
+
+// Сравнение памяти и скорости прохода: List<Vehicles> в куче против FleetStore вне кучи
+class FleetStoreBenchmark {
+    public static void run(int count) {
+        System.out.println("Транспорта: " + count);
+
+        long before = usedHeap();
+        List<Vehicles> list = new ArrayList<>(count);
+        FleetGenerator generator = new FleetGenerator(1);
+        for (int i = 0; i < count; i++) list.add(generator.next());
+        long listBytes = usedHeap() - before;
+
+        before = usedHeap();
+        FleetStore store = new FleetStore(count);
+        store.addAll(list);
+        long storeHeap = usedHeap() - before;
+
+        System.out.printf("List<Vehicles>: %,d байт в куче, %.1f байт на транспорт%n",
+                listBytes, (double) listBytes / count);
+        System.out.printf("FleetStore:     %,d байт вне кучи + %,d в куче, %.1f байт на транспорт%n",
+                store.byteSize(), storeHeap, (double) (store.byteSize() + Math.max(0, storeHeap)) / count);
+
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            long sum = 0;
+            int known = 0;
+            for (Vehicles vehicle : list) {
+                Integer speed = vehicle.getMaxSpeed();
+                if (speed != null) {
+                    sum += speed;
+                    known++;
+                }
+            }
+            long listNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long storeSum = 0;
+            int storeKnown = 0;
+            for (int row = 0; row < store.size(); row++) {
+                int speed = store.getSpeed(row);
+                if (speed != FleetStore.NO_SPEED) {
+                    storeSum += speed;
+                    storeKnown++;
+                }
+            }
+            long storeNanos = System.nanoTime() - start;
+            if (sum != storeSum || known != storeKnown) throw new IllegalStateException("Суммы не совпали");
+
+            System.out.printf("Средняя скорость %.2f: список %.1f мс, хранилище %.1f мс%n",
+                    (double) sum / known, listNanos / 1e6, storeNanos / 1e6);
+        }
+        if (list.size() != store.size()) throw new IllegalStateException();
+    }
+
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+
+// Память парка в куче: транспорт загружается из CSV, как при импорте (каждое название
+// приходит новой строкой из разбора), затем печатаются занятая куча и строки гистограммы
+// классов (то же, что jcmd <pid> GC.class_histogram) для транспорта, строк и Integer
+class VehiclesHeapBenchmark {
+    private static final Set<String> CLASSES = Set.of("Car", "Plane", "Helicopter", "Bike", "Bicycle", "Train",
+            "Subway", "Boat", "Ship", "Powertrain", "java.lang.Integer", "java.lang.String", "[B");
+
+    public static void run(int count) throws IOException {
+        Path file = Files.createTempFile("fleet", ".csv");
+        try {
+            generate(count, file);
+            long before = FleetStoreBenchmark.usedHeap();
+            VehicleRegistry registry = new VehicleRegistry();
+            FleetExchange.importFile(file, registry);
+            long bytes = FleetStoreBenchmark.usedHeap() - before;
+            System.out.printf("Транспорта: %,d, в куче вместе с индексами реестра: %,d байт, %.1f байт на транспорт%n",
+                    registry.size(), bytes, (double) bytes / registry.size());
+            printHistogram();
+            Reference.reachabilityFence(registry);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void generate(int count, Path file) throws IOException {
+        List<Vehicles> fleet = new ArrayList<>(count);
+        FleetGenerator generator = new FleetGenerator(1);
+        for (int i = 0; i < count; i++) fleet.add(generator.next());
+        FleetExchange.exportFile(fleet, file);
+    }
+
+    private static void printHistogram() {
+        String histogram;
+        try {
+            histogram = (String) ManagementFactory.getPlatformMBeanServer().invoke(
+                    new ObjectName("com.sun.management:type=DiagnosticCommand"), "gcClassHistogram",
+                    new Object[]{null}, new String[]{String[].class.getName()});
+        } catch (JMException e) {
+            System.out.println("Гистограмма классов недоступна: " + e.getMessage());
+            return;
+        }
+        System.out.printf("%12s %14s  %s%n", "объектов", "байт", "класс");
+        for (String line : histogram.split("\n")) {
+            String[] columns = line.trim().split("\\s+");
+            if (columns.length >= 4 && CLASSES.contains(columns[3])) {
+                System.out.printf("%,12d %,14d  %s%n", Long.parseLong(columns[1]), Long.parseLong(columns[2]), columns[3]);
+            }
+        }
+    }
+}
+
+// Сохранение реестра на диск: снимок (fleet.snapshot) и журнал упреждающей записи (fleet.wal).
+// Каждое добавление и изменение реестра - запись журнала [длина, CRC32C, операция, данные].
+// Записи копятся в буфере, отдельный поток пишет их в файл и вызывает force() сразу для всех
+// накопившихся (групповая фиксация): add() не ждёт диска, sync() ждёт только свою запись.
+// Без ожидающих поток сбрасывает буфер раз в FLUSH_INTERVAL_MS или при заполнении на WAKE_BYTES.
+// checkpoint() пишет снимок во временный файл и атомарно заменяет старый. У снимка и журнала
+// одно поколение: журнал другого поколения уже вошёл в снимок и при восстановлении пропускается.
+// Восстановление отображает оба файла в память, журнал читается до первой битой записи.
+final class FleetJournal implements AutoCloseable {
+    private static final int SNAPSHOT_MAGIC = 0x464C5453; // "FLTS"
+    private static final int WAL_MAGIC = 0x464C5457;      // "FLTW"
+    private static final int VERSION = 1;
+    private static final int SNAPSHOT_HEADER = 20;        // magic, version, поколение, количество
+    private static final int WAL_HEADER = 16;             // magic, version, поколение
+    private static final int RECORD_HEADER = 8;           // длина данных, CRC32C данных
+    private static final int BUFFER_LIMIT = 4 << 20;
+    private static final int WAKE_BYTES = 256 << 10;
+    private static final long FLUSH_INTERVAL_MS = 10;
+
+    private static final byte ADD = 1;
+    private static final byte SET_OIL_TYPE = 2;
+    private static final byte SET_ENGINE_TYPE = 3;
+    private static final byte SET_MAX_SPEED = 4;
+
+    private final Path snapshotFile;
+    private final Path walFile;
+    private FileChannel wal;
+    private long generation;
+
+    // Групповая фиксация: всё под lock
+    private final Object lock = new Object();
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer writing = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    private long appended; // байт отдано в журнал
+    private long durable;  // из них сброшено на диск
+    private long syncs;
+    private IOException failure;
+    private boolean closed;
+    private long requested;  // наибольшая позиция, которую ждут в awaitDurable
+    private final Thread flusher;
+
+    private final CRC32C crc = new CRC32C(); // под lock и при восстановлении
+    private int recovered;
+    private int replayed;
+
+    private FleetJournal(Path directory) {
+        snapshotFile = directory.resolve("fleet.snapshot");
+        walFile = directory.resolve("fleet.wal");
+        flusher = new Thread(this::flushLoop, "fleet-journal");
+        flusher.setDaemon(true);
+    }
+
+    // Восстанавливает registry (он должен быть пуст) и подключает к нему журнал
+    static FleetJournal open(Path directory, VehicleRegistry registry) throws IOException {
+        Files.createDirectories(directory);
+        FleetJournal journal = new FleetJournal(directory);
+        journal.recover(registry);
+        registry.setJournal(journal);
+        journal.flusher.start();
+        return journal;
+    }
+
+    // -Dfleet.data=<каталог> (по умолчанию ~/.fleet), false - без сохранения.
+    // При ошибке registry может остаться восстановленным частично
+    static FleetJournal openConfigured(VehicleRegistry registry) throws IOException {
+        String directory = System.getProperty("fleet.data");
+        if ("false".equals(directory)) return null;
+        return open(directory != null ? Path.of(directory) : Path.of(System.getProperty("user.home"), ".fleet"), registry);
+    }
+
+    // Транспорта из снимка и записей журнала, применённых при открытии
+    int getRecovered() {
+        return recovered;
+    }
+
+    int getReplayed() {
+        return replayed;
+    }
+
+    long getSyncs() {
+        synchronized (lock) {
+            return syncs;
+        }
+    }
+
+    long getWalSize() {
+        synchronized (lock) {
+            return appended;
+        }
+    }
+
+    // Возвращают позицию записи для awaitDurable
+    long logAdd(Vehicles vehicle) {
+        byte[] name = vehicle.getName().getBytes(StandardCharsets.UTF_8);
+        if (name.length > Short.MAX_VALUE) throw new IllegalArgumentException("Слишком длинное название");
+        synchronized (lock) {
+            ByteBuffer buffer = begin(21 + name.length);
+            buffer.put(ADD);
+            encode(buffer, vehicle, name);
+            return end(buffer);
+        }
+    }
+
+    long logAdds(Collection<? extends Vehicles> vehicles) {
+        synchronized (lock) {
+            for (Vehicles vehicle : vehicles) logAdd(vehicle);
+            return appended;
+        }
+    }
+
+    long logOilType(int id, OilType oilType) {
+        return logByte(SET_OIL_TYPE, id, oilType == null ? -1 : oilType.ordinal());
+    }
+
+    long logEngineType(int id, EngineType engineType) {
+        return logByte(SET_ENGINE_TYPE, id, engineType == null ? -1 : engineType.ordinal());
+    }
+
+    long logMaxSpeed(int id, int maxSpeed) {
+        synchronized (lock) {
+            ByteBuffer buffer = begin(9);
+            buffer.put(SET_MAX_SPEED).putInt(id).putInt(maxSpeed);
+            return end(buffer);
+        }
+    }
+
+    // Ждёт, пока запись с позицией position (и все до неё) окажется на диске
+    void awaitDurable(long position) {
+        synchronized (lock) {
+            while (durable < position) {
+                if (failure != null) throw new UncheckedIOException(failure);
+                if (closed) throw new IllegalStateException("Журнал закрыт");
+                if (requested < position) {
+                    requested = position;
+                    lock.notifyAll(); // будит поток сброса
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Ожидание журнала прервано", e);
+                }
+            }
+        }
+    }
+
+    void sync() {
+        long position;
+        synchronized (lock) {
+            position = appended;
+        }
+        awaitDurable(position);
+    }
+
+    // Снимок всего реестра; журнал начинается заново. Реестр в это время не должен меняться
+    void checkpoint(VehicleRegistry registry) throws IOException {
+        sync();
+        Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        long next = generation + 1;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            CRC32C checksum = new CRC32C(); // снимок пишется без lock, общий crc занят записью журнала
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(VERSION).putLong(next).putInt(registry.size());
+            for (Vehicles vehicle : registry) {
+                byte[] name = vehicle.getName().getBytes(StandardCharsets.UTF_8);
+                if (buffer.remaining() < RECORD_HEADER + 20 + name.length) {
+                    writeFully(channel, buffer.flip());
+                    buffer.clear();
+                }
+                int start = buffer.position();
+                buffer.position(start + RECORD_HEADER);
+                encode(buffer, vehicle, name);
+                seal(buffer, start, checksum);
+            }
+            writeFully(channel, buffer.flip());
+            channel.force(true);
+        }
+        Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (lock) {
+            generation = next;
+            wal.truncate(0);
+            writeFully(wal, walHeader(), 0);
+            wal.position(WAL_HEADER);
+            wal.force(true);
+            appended = durable = requested = WAL_HEADER;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        wal.close();
+        if (failure != null) throw failure;
+    }
+
+    private long logByte(byte operation, int id, int value) {
+        synchronized (lock) {
+            ByteBuffer buffer = begin(6);
+            buffer.put(operation).putInt(id).put((byte) value);
+            return end(buffer);
+        }
+    }
+
+    // Место под запись длиной length в буфере; при переполнении ждёт поток сброса
+    private ByteBuffer begin(int length) {
+        if (failure != null) throw new UncheckedIOException(failure);
+        if (closed) throw new IllegalStateException("Журнал закрыт");
+        int needed = RECORD_HEADER + length;
+        while (pending.position() > 0 && pending.remaining() < needed && pending.position() >= BUFFER_LIMIT) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Ожидание журнала прервано", e);
+            }
+            if (failure != null) throw new UncheckedIOException(failure);
+        }
+        if (pending.remaining() < needed) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + needed))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            pending = larger.put(pending.flip());
+        }
+        int start = pending.position();
+        pending.position(start + RECORD_HEADER);
+        pending.mark();
+        return pending;
+    }
+
+    private long end(ByteBuffer buffer) {
+        int end = buffer.position();
+        buffer.reset();
+        int start = buffer.position() - RECORD_HEADER;
+        buffer.position(end);
+        seal(buffer, start, crc);
+        appended += end - start;
+        if (buffer.position() >= WAKE_BYTES) lock.notifyAll();
+        return appended;
+    }
+
+    // Заполняет заголовок записи, начатой в start и оканчивающейся в текущей позиции
+    private static void seal(ByteBuffer buffer, int start, CRC32C crc) {
+        int length = buffer.position() - start - RECORD_HEADER;
+        crc.reset();
+        crc.update(buffer.duplicate().position(start + RECORD_HEADER).limit(start + RECORD_HEADER + length));
+        buffer.putInt(start, length).putInt(start + 4, (int) crc.getValue());
+    }
+
+    private static void encode(ByteBuffer buffer, Vehicles vehicle, byte[] name) {
+        buffer.put((byte) FleetStore.TYPES.indexOf(vehicle.getClass()))
+                .put(vehicle.getOilType() == null ? -1 : (byte) vehicle.getOilType().ordinal())
+                .put(vehicle.getEngineType() == null ? -1 : (byte) vehicle.getEngineType().ordinal())
+                .putInt(vehicle.getSpeed())
+                .putLong(FleetStore.attributeOf(vehicle))
+                .putShort((short) name.length)
+                .put(name);
+    }
+
+    private static Vehicles decode(ByteBuffer buffer) {
+        int type = buffer.get();
+        int oilType = buffer.get();
+        int engineType = buffer.get();
+        int maxSpeed = buffer.getInt();
+        long attribute = buffer.getLong();
+        byte[] name = new byte[buffer.getShort()];
+        buffer.get(name);
+        Vehicles vehicle = FleetStore.create(type, new String(name, StandardCharsets.UTF_8), attribute);
+        if (oilType >= 0) vehicle.setOilType(FleetStore.OIL_TYPES[oilType]);
+        if (engineType >= 0) vehicle.setEngineType(FleetStore.ENGINE_TYPES[engineType]);
+        if (maxSpeed != FleetStore.NO_SPEED) vehicle.setMaxSpeed(maxSpeed);
+        return vehicle;
+    }
+
+    private void flushLoop() {
+        while (true) {
+            long target;
+            synchronized (lock) {
+                while (!closed && (pending.position() == 0 || requested <= durable && pending.position() < WAKE_BYTES)) {
+                    try {
+                        long before = System.nanoTime();
+                        lock.wait(FLUSH_INTERVAL_MS);
+                        if (pending.position() > 0 && System.nanoTime() - before >= FLUSH_INTERVAL_MS * 1_000_000) {
+                            break;
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.position() == 0) return;
+                ByteBuffer full = pending;
+                pending = writing;
+                writing = full;
+                target = appended;
+                lock.notifyAll();
+            }
+            try {
+                writeFully(wal, writing.flip());
+                wal.force(false);
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+            writing.clear();
+            synchronized (lock) {
+                durable = target;
+                syncs++;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void recover(VehicleRegistry registry) throws IOException {
+        if (!registry.isEmpty()) throw new IllegalArgumentException("Восстанавливать можно только в пустой реестр");
+        if (Files.exists(snapshotFile)) {
+            try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+                ByteBuffer snapshot = map(channel);
+                if (snapshot.remaining() < SNAPSHOT_HEADER || snapshot.getInt() != SNAPSHOT_MAGIC
+                        || snapshot.getInt() != VERSION) {
+                    throw new IOException(snapshotFile + " - не снимок реестра");
+                }
+                generation = snapshot.getLong();
+                int count = snapshot.getInt();
+                for (int i = 0; i < count; i++) {
+                    ByteBuffer record = nextRecord(snapshot);
+                    if (record == null) throw new IOException(snapshotFile + " повреждён на записи " + i);
+                    registry.add(decode(record));
+                }
+                recovered = count;
+            }
+        }
+
+        wal = FileChannel.open(walFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = WAL_HEADER;
+        ByteBuffer log = map(wal);
+        if (log.remaining() >= WAL_HEADER && log.getInt() == WAL_MAGIC && log.getInt() == VERSION
+                && log.getLong() == generation) {
+            for (ByteBuffer record; (record = nextRecord(log)) != null; end = log.position()) {
+                replay(registry, record);
+                replayed++;
+            }
+        } else {
+            // Новый журнал или журнал прошлого поколения, уже вошедший в снимок
+            writeFully(wal, walHeader(), 0);
+        }
+        // Хвост после последней целой записи - недописанная при сбое запись
+        wal.truncate(end);
+        wal.position(end);
+        wal.force(true);
+        appended = durable = requested = end;
+    }
+
+    private void replay(VehicleRegistry registry, ByteBuffer record) throws IOException {
+        byte operation = record.get();
+        if (operation == ADD) {
+            registry.add(decode(record));
+            return;
+        }
+        int id = record.getInt();
+        if (id < 0 || id >= registry.size()) throw new IOException(walFile + ": нет транспорта " + id);
+        Vehicles vehicle = registry.get(id);
+        switch (operation) {
+            case SET_OIL_TYPE -> {
+                int ordinal = record.get();
+                vehicle.setOilType(ordinal < 0 ? null : FleetStore.OIL_TYPES[ordinal]);
+            }
+            case SET_ENGINE_TYPE -> {
+                int ordinal = record.get();
+                vehicle.setEngineType(ordinal < 0 ? null : FleetStore.ENGINE_TYPES[ordinal]);
+            }
+            case SET_MAX_SPEED -> {
+                int speed = record.getInt();
+                vehicle.setMaxSpeed(speed == FleetStore.NO_SPEED ? null : speed);
+            }
+            default -> throw new IOException(walFile + ": неизвестная операция " + operation);
+        }
+    }
+
+    // Данные следующей записи с верной контрольной суммой или null
+    private ByteBuffer nextRecord(ByteBuffer file) {
+        if (file.remaining() < RECORD_HEADER) return null;
+        int start = file.position();
+        int length = file.getInt(start);
+        int checksum = file.getInt(start + 4);
+        if (length <= 0 || length > file.remaining() - RECORD_HEADER) return null;
+        ByteBuffer record = file.slice(start + RECORD_HEADER, length).order(ByteOrder.LITTLE_ENDIAN);
+        crc.reset();
+        crc.update(record.duplicate());
+        if ((int) crc.getValue() != checksum) return null;
+        file.position(start + RECORD_HEADER + length);
+        return record;
+    }
+
+    private ByteBuffer walHeader() {
+        return ByteBuffer.allocate(WAL_HEADER).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(WAL_MAGIC).putInt(VERSION).putLong(generation).flip();
+    }
+
+    private static ByteBuffer map(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) throw new IOException("Файл больше 2 ГБ");
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+    }
+}
+
+// Замер сохранения: добавление в реестр с журналом, восстановление из журнала и из снимка,
+// групповая фиксация при нескольких потоках, ждущих своей записи на диске
+class FleetJournalBenchmark {
+    public static void run(int count) throws IOException {
+        Path directory = Files.createTempDirectory("fleet");
+        try {
+            List<Vehicles> fleet = new ArrayList<>(count);
+            FleetGenerator generator = new FleetGenerator(1);
+            for (int i = 0; i < count; i++) fleet.add(generator.next());
+
+            VehicleRegistry registry = new VehicleRegistry();
+            FleetJournal journal = FleetJournal.open(directory, registry);
+            long start = System.nanoTime();
+            for (Vehicles vehicle : fleet) registry.add(vehicle);
+            for (int i = 0; i < count; i += 10) registry.get(i).setMaxSpeed(100 + i % 500);
+            journal.sync();
+            long nanos = System.nanoTime() - start;
+            System.out.printf("Добавление %,d и %,d изменений: %.0f мс, %,.0f записей/с, журнал %,d байт, force() %,d раз%n",
+                    count, (count + 9) / 10, nanos / 1e6, (count + count / 10) * 1e9 / nanos,
+                    journal.getWalSize(), journal.getSyncs());
+            journal.close();
+
+            start = System.nanoTime();
+            VehicleRegistry restored = new VehicleRegistry();
+            journal = FleetJournal.open(directory, restored);
+            nanos = System.nanoTime() - start;
+            System.out.printf("Восстановление из журнала: %,d записей за %.0f мс%n", journal.getReplayed(), nanos / 1e6);
+            check(registry, restored);
+
+            start = System.nanoTime();
+            journal.checkpoint(restored);
+            nanos = System.nanoTime() - start;
+            System.out.printf("Снимок: %,d байт за %.0f мс%n", Files.size(directory.resolve("fleet.snapshot")), nanos / 1e6);
+            journal.close();
+
+            start = System.nanoTime();
+            restored = new VehicleRegistry();
+            journal = FleetJournal.open(directory, restored);
+            nanos = System.nanoTime() - start;
+            System.out.printf("Восстановление из снимка: %,d транспорта за %.0f мс%n", journal.getRecovered(), nanos / 1e6);
+            check(registry, restored);
+
+            for (int threads : new int[]{1, 4, 16}) {
+                commitRound(journal, fleet, threads);
+            }
+            journal.close();
+        } finally {
+            try (var files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    // Каждый поток пишет запись и ждёт её сброса на диск, как интерактивное добавление
+    private static void commitRound(FleetJournal journal, List<Vehicles> fleet, int threads) {
+        int perThread = 2000 / threads;
+        long syncs = journal.getSyncs();
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int first = t * perThread;
+            workers[t] = new Thread(() -> {
+                for (int i = first; i < first + perThread; i++) {
+                    journal.awaitDurable(journal.logAdd(fleet.get(i % fleet.size())));
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        int records = perThread * threads;
+        long rounds = journal.getSyncs() - syncs;
+        System.out.printf("Надёжная запись, потоков %2d: %,.0f записей/с, %.1f записей на force()%n",
+                threads, records * 1e9 / nanos, (double) records / Math.max(1, rounds));
+    }
+
+    private static void check(VehicleRegistry expected, VehicleRegistry actual) {
+        if (expected.size() != actual.size()) throw new IllegalStateException("Восстановлено не всё");
+        for (int i = 0; i < expected.size(); i++) {
+            if (!expected.get(i).toString().equals(actual.get(i).toString())) {
+                throw new IllegalStateException("Не совпал транспорт " + i);
+            }
+        }
+    }
+}
+
+// Запрос по парку: фильтры по виду (класс или интерфейс возможности), топливу, двигателю,
+// диапазону скорости и произвольный where. По реестру фильтры вида, топлива и двигателя
+// идут через индексы, скорость - через индекс скорости, если других индексных фильтров нет.
+// По FleetStore фильтры проверяются прямо по колонкам. Отобранное выдаётся параллельным
+// потоком, к которому применяются count/stats/groupBy/top.
+class FleetQuery {
+    private Class<?> type;
+    private OilType oilType;
+    private EngineType engineType;
+    private int minSpeed = Integer.MIN_VALUE;
+    private int maxSpeed = Integer.MAX_VALUE;
+    private boolean speedFilter;
+    private Predicate<? super VehicleInfo> where = vehicle -> true;
+
+    // Класс транспорта (Plane, RailsBased) или интерфейс возможности (Flyable)
+    public FleetQuery type(Class<?> type) {
+        this.type = type;
+        return this;
+    }
+
+    public FleetQuery oilType(OilType oilType) {
+        this.oilType = oilType;
+        return this;
+    }
+
+    public FleetQuery engineType(EngineType engineType) {
+        this.engineType = engineType;
+        return this;
+    }
+
+    // Транспорт без скорости под этот фильтр не попадает
+    public FleetQuery speedBetween(int from, int to) {
+        minSpeed = from;
+        maxSpeed = to;
+        speedFilter = true;
+        return this;
+    }
+
+    public FleetQuery where(Predicate<? super VehicleInfo> predicate) {
+        Predicate<? super VehicleInfo> previous = where;
+        where = vehicle -> previous.test(vehicle) && predicate.test(vehicle);
+        return this;
+    }
+
+    public Stream<Vehicles> stream(VehicleRegistry registry) {
+        BitSet ids = registry.candidates(type, oilType, engineType);
+        boolean checkSpeed = speedFilter;
+        if (ids == null && speedFilter) {
+            ids = registry.speedIds(minSpeed, maxSpeed);
+            checkSpeed = false;
+        }
+        IntStream rows = ids == null ? IntStream.range(0, registry.size()) : Arrays.stream(ids.stream().toArray());
+        Stream<Vehicles> result = rows.parallel().mapToObj(registry::at);
+        if (checkSpeed) result = result.filter(this::speedMatches);
+        return result.filter(where);
+    }
+
+    public Stream<FleetStore.View> stream(FleetStore store) {
+        boolean[] types = new boolean[FleetStore.TYPES.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = type == null || type.isAssignableFrom(FleetStore.TYPES.get(i));
+        }
+        return IntStream.range(0, store.size()).parallel()
+                .filter(row -> types[store.getTypeIndex(row)]
+                        && (oilType == null || store.getOilType(row) == oilType)
+                        && (engineType == null || store.getEngineType(row) == engineType)
+                        && (!speedFilter || speedMatches(store.getSpeed(row))))
+                .mapToObj(store::view)
+                .filter(where);
+    }
+
+    private boolean speedMatches(VehicleInfo vehicle) {
+        return speedMatches(vehicle.getSpeed());
+    }
+
+    private boolean speedMatches(int speed) {
+        return speed != FleetStore.NO_SPEED && speed >= minSpeed && speed <= maxSpeed;
+    }
+
+    public static Stats stats(Stream<? extends VehicleInfo> vehicles) {
+        return vehicles.collect(Stats::new, Stats::accept, Stats::combine);
+    }
+
+    public static <K> Map<K, Stats> groupBy(Stream<? extends VehicleInfo> vehicles,
+                                            Function<? super VehicleInfo, ? extends K> key) {
+        return vehicles.collect(HashMap::new,
+                (groups, vehicle) -> groups.computeIfAbsent(key.apply(vehicle), k -> new Stats()).accept(vehicle),
+                (groups, other) -> other.forEach((k, stats) -> groups.merge(k, stats, Stats::combine)));
+    }
+
+    // k самых быстрых по убыванию скорости; транспорт без скорости не участвует
+    public static <V extends VehicleInfo> List<V> top(Stream<V> vehicles, int k) {
+        Comparator<V> bySpeed = Comparator.comparingInt(VehicleInfo::getSpeed);
+        PriorityQueue<V> best = vehicles.filter(vehicle -> vehicle.getSpeed() != VehicleInfo.NO_SPEED).collect(
+                () -> new PriorityQueue<>(bySpeed),
+                (queue, vehicle) -> offer(queue, vehicle, k),
+                (queue, other) -> other.forEach(vehicle -> offer(queue, vehicle, k)));
+        List<V> result = new ArrayList<>(best);
+        result.sort(bySpeed.reversed());
+        return result;
+    }
+
+    private static <V extends VehicleInfo> void offer(PriorityQueue<V> queue, V vehicle, int k) {
+        if (queue.size() < k) {
+            queue.add(vehicle);
+        } else if (k > 0 && vehicle.getSpeed() > queue.peek().getSpeed()) {
+            queue.poll();
+            queue.add(vehicle);
+        }
+    }
+
+    // Количество и скорость (по транспорту, у которого она задана)
+    static final class Stats {
+        private long count;
+        private final IntSummaryStatistics speed = new IntSummaryStatistics();
+
+        void accept(VehicleInfo vehicle) {
+            count++;
+            int maxSpeed = vehicle.getSpeed();
+            if (maxSpeed != VehicleInfo.NO_SPEED) speed.accept(maxSpeed);
+        }
+
+        Stats combine(Stats other) {
+            count += other.count;
+            speed.combine(other.speed);
+            return this;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public IntSummaryStatistics getSpeed() {
+            return speed;
+        }
+
+        @Override
+        public String toString() {
+            if (speed.getCount() == 0) return "количество " + count;
+            return String.format("количество %d, скорость: средняя %.1f, мин. %d, макс. %d км/ч",
+                    count, speed.getAverage(), speed.getMin(), speed.getMax());
+        }
+    }
+}
+
+// Один и тот же запрос: последовательный проход по списку, реестр с индексами, FleetStore
+class FleetQueryBenchmark {
+    public static void run(int count) {
+        List<Vehicles> list = new ArrayList<>(count);
+        VehicleRegistry registry = new VehicleRegistry();
+        FleetGenerator generator = new FleetGenerator(1);
+        for (int i = 0; i < count; i++) {
+            Vehicles vehicle = generator.next();
+            list.add(vehicle);
+            registry.add(vehicle);
+        }
+        FleetStore store = new FleetStore(count);
+        store.addAll(list);
+        System.out.println("Транспорта: " + count);
+
+        // Средняя скорость электрического наземного транспорта по видам
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            Map<Class<?>, FleetQuery.Stats> sequential = new HashMap<>();
+            for (Vehicles vehicle : list) {
+                if (vehicle instanceof GroundBased && vehicle.getOilType() == OilType.ЭЛЕКТРИЧЕСКИЙ) {
+                    sequential.computeIfAbsent(vehicle.getClass(), k -> new FleetQuery.Stats()).accept(vehicle);
+                }
+            }
+            long listNanos = System.nanoTime() - start;
+
+            FleetQuery query = new FleetQuery().type(GroundBased.class).oilType(OilType.ЭЛЕКТРИЧЕСКИЙ);
+            start = System.nanoTime();
+            Map<Class<?>, FleetQuery.Stats> indexed = FleetQuery.groupBy(query.stream(registry), VehicleInfo::getType);
+            long registryNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Map<Class<?>, FleetQuery.Stats> columns = FleetQuery.groupBy(query.stream(store), VehicleInfo::getType);
+            long storeNanos = System.nanoTime() - start;
+
+            check(sequential, indexed);
+            check(sequential, columns);
+            System.out.printf("Группировка: список %.1f мс, реестр %.1f мс, хранилище %.1f мс%n",
+                    listNanos / 1e6, registryNanos / 1e6, storeNanos / 1e6);
+        }
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            List<Vehicles> fastest = FleetQuery.top(new FleetQuery().type(Flyable.class).stream(registry), 10);
+            long nanos = System.nanoTime() - start;
+            System.out.printf("10 самых быстрых Flyable: %.1f мс, первый %s%n", nanos / 1e6, fastest.get(0));
+        }
+    }
+
+    private static void check(Map<Class<?>, FleetQuery.Stats> expected, Map<Class<?>, FleetQuery.Stats> actual) {
+        if (!expected.keySet().equals(actual.keySet())) throw new IllegalStateException("Группы разошлись");
+        expected.forEach((type, stats) -> {
+            if (!stats.toString().equals(actual.get(type).toString())) {
+                throw new IllegalStateException("Разошлись итоги для " + type.getSimpleName());
+            }
+        });
+    }
+}
+
+// Потоковый импорт и экспорт транспорта в CSV и JSON.
+// CSV: заголовок type,name,oilType,engineType,maxSpeed,attribute; пустое поле - null,
+// attribute - характеристика вида (двери, лопасти, водоизмещение, ...). Название в кавычках,
+// если в нём есть запятая или кавычка; перевод строки внутри названия не поддерживается.
+// JSON: массив объектов (как пишет экспорт - по объекту на строку; скобки и несколько
+// объектов на одной строке тоже разбираются, объект не переносится) или JSON Lines;
+// характеристика вида - под своим ключом (doors, blades, ...) или attribute.
+// Импорт: файл режется на куски по 8 МБ по границе строки, куски отображаются в память
+// и разбираются параллельно прямо из байтов (строки создаются только для названий,
+// одинаковые названия - один объект). Готовые куски по порядку добавляются в реестр
+// через addAll, в работе не больше двух кусков на поток.
+// Экспорт пишет по строке через буферизованный Writer, весь файл в памяти не собирается.
+final class FleetExchange {
+    static final String CSV_HEADER = "type,name,oilType,engineType,maxSpeed,attribute";
+    // Ключ характеристики в JSON, по номерам FleetStore.TYPES
+    private static final String[] ATTRIBUTES = {
+            "doors", "passengerCapacity", "blades", "hasElectricEngine", "hasGears",
+            "wagons", "stations", "displacement", "tonnage"};
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private static final byte[][] TYPE_NAMES = utf8(FleetStore.TYPES.stream().map(Class::getSimpleName).toArray());
+    private static final byte[][] OIL_NAMES = utf8(FleetStore.OIL_TYPES);
+    private static final byte[][] ENGINE_NAMES = utf8(FleetStore.ENGINE_TYPES);
+    private static final byte[][] ATTRIBUTE_NAMES = utf8(ATTRIBUTES);
+
+    private FleetExchange() {
+    }
+
+    static boolean isJson(Path file) {
+        String name = file.getFileName().toString().toLowerCase();
+        return name.endsWith(".json") || name.endsWith(".jsonl");
+    }
+
+    // Возвращает количество выгруженного транспорта
+    static long exportFile(Iterable<? extends Vehicles> vehicles, Path file) throws IOException {
+        boolean json = isJson(file);
+        long count = 0;
+        StringBuilder line = new StringBuilder(128);
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write(json ? "[\n" : CSV_HEADER + "\n");
+            for (Vehicles vehicle : vehicles) {
+                line.setLength(0);
+                if (json) {
+                    if (count > 0) line.append(",\n");
+                    appendJson(line, vehicle);
+                } else {
+                    appendCsv(line, vehicle);
+                    line.append('\n');
+                }
+                out.append(line);
+                count++;
+            }
+            if (json) out.write(count > 0 ? "\n]\n" : "]\n");
+        }
+        return count;
+    }
+
+    // Добавляет транспорт из файла в registry, возвращает количество
+    static long importFile(Path file, VehicleRegistry registry) throws IOException {
+        boolean json = isJson(file);
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int maxInFlight = 2 * pool.getParallelism();
+        Deque<ForkJoinTask<List<Vehicles>>> inFlight = new ArrayDeque<>();
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size || !inFlight.isEmpty()) {
+                while (position < size && inFlight.size() < maxInFlight) {
+                    long end = chunkEnd(channel, position, size);
+                    ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, end - position);
+                    long offset = position;
+                    inFlight.add(pool.submit(() -> new Parser(chunk, offset, json).parse()));
+                    position = end;
+                }
+                List<Vehicles> batch;
+                try {
+                    batch = inFlight.poll().join();
+                } catch (IllegalArgumentException e) {
+                    // join() бросает копию исключения из другого потока, сообщение - у причины
+                    throw e.getCause() instanceof IllegalArgumentException cause ? cause : e;
+                }
+                registry.addAll(batch);
+                count += batch.size();
+            }
+        } finally {
+            for (ForkJoinTask<?> task : inFlight) task.cancel(true);
+        }
+        return count;
+    }
+
+    // Конец куска, начатого в from: первый перевод строки после from + CHUNK_SIZE
+    private static long chunkEnd(FileChannel channel, long from, long size) throws IOException {
+        long position = from + CHUNK_SIZE;
+        if (position >= size) return size;
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) break;
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') return position + i + 1;
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    static void appendCsv(StringBuilder line, Vehicles vehicle) {
+        line.append(vehicle.getClass().getSimpleName()).append(',');
+        String name = vehicle.getName();
+        if (name.indexOf(',') >= 0 || name.indexOf('"') >= 0) {
+            line.append('"').append(name.replace("\"", "\"\"")).append('"');
+        } else {
+            line.append(name);
+        }
+        line.append(',');
+        if (vehicle.getOilType() != null) line.append(vehicle.getOilType());
+        line.append(',');
+        if (vehicle.getEngineType() != null) line.append(vehicle.getEngineType());
+        line.append(',');
+        if (vehicle.getSpeed() != VehicleInfo.NO_SPEED) line.append(vehicle.getSpeed());
+        line.append(',');
+        appendAttribute(line, vehicle);
+    }
+
+    static void appendJson(StringBuilder line, Vehicles vehicle) {
+        int type = FleetStore.TYPES.indexOf(vehicle.getClass());
+        line.append("{\"type\":\"").append(vehicle.getClass().getSimpleName()).append("\",\"name\":\"");
+        String name = vehicle.getName();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            switch (c) {
+                case '"' -> line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                case '\n' -> line.append("\\n");
+                case '\r' -> line.append("\\r");
+                case '\t' -> line.append("\\t");
+                default -> {
+                    if (c < 0x20) line.append(String.format("\\u%04x", (int) c));
+                    else line.append(c);
+                }
+            }
+        }
+        line.append('"');
+        if (vehicle.getOilType() != null) line.append(",\"oilType\":\"").append(vehicle.getOilType()).append('"');
+        if (vehicle.getEngineType() != null) line.append(",\"engineType\":\"").append(vehicle.getEngineType()).append('"');
+        if (vehicle.getSpeed() != VehicleInfo.NO_SPEED) line.append(",\"maxSpeed\":").append(vehicle.getSpeed());
+        line.append(",\"").append(ATTRIBUTES[type]).append("\":");
+        appendAttribute(line, vehicle);
+        line.append('}');
+    }
+
+    private static void appendAttribute(StringBuilder line, Vehicles vehicle) {
+        long attribute = FleetStore.attributeOf(vehicle);
+        switch (attributeKind(FleetStore.TYPES.indexOf(vehicle.getClass()))) {
+            case 'i' -> line.append((int) attribute);
+            case 'b' -> line.append(attribute != 0);
+            default -> line.append(Double.longBitsToDouble(attribute));
+        }
+    }
+
+    // 'i' - целое, 'b' - да/нет, 'd' - дробное
+    private static char attributeKind(int type) {
+        return switch (type) {
+            case 3, 4 -> 'b';
+            case 7, 8 -> 'd';
+            default -> 'i';
+        };
+    }
+
+    private static byte[][] utf8(Object[] values) {
+        byte[][] result = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) result[i] = values[i].toString().getBytes(StandardCharsets.UTF_8);
+        return result;
+    }
+
+    // Разбор одного куска. Ошибка - IllegalArgumentException с позицией в файле
+    private static final class Parser {
+        private final ByteBuffer chunk;
+        private final long offset;
+        private final boolean json;
+        private final int limit;
+        private int position;
+
+        // Байты текущего названия (после разбора экранирования) и кэш уже созданных строк
+        private byte[] scratch = new byte[64];
+        private final byte[][] cachedBytes = new byte[1024][];
+        private final String[] cachedNames = new String[1024];
+
+        // Поля текущей строки
+        private int type;
+        private String name;
+        private int oilType;
+        private int engineType;
+        private int maxSpeed;
+        private int attributeStart;
+        private int attributeEnd;
+
+        Parser(ByteBuffer chunk, long offset, boolean json) {
+            this.chunk = chunk;
+            this.offset = offset;
+            this.json = json;
+            this.limit = chunk.limit();
+        }
+
+        List<Vehicles> parse() {
+            List<Vehicles> result = new ArrayList<>(limit / 48 + 1);
+            while (position < limit) {
+                int lineStart = position;
+                skipSpaces();
+                if (position >= limit) break;
+                byte first = chunk.get(position);
+                if (first == '\n' || first == '\r') {
+                    position++;
+                    continue;
+                }
+                if (json && (first == '[' || first == ']')) {
+                    position++; // скобка массива, объекты могут идти на той же строке
+                    continue;
+                }
+                if (!json && offset + lineStart == 0 && startsWith("type,")) {
+                    skipLine();
+                    continue;
+                }
+                type = -1;
+                name = null;
+                oilType = -1;
+                engineType = -1;
+                maxSpeed = FleetStore.NO_SPEED;
+                attributeStart = -1;
+                if (json) parseJson();
+                else parseCsv();
+                result.add(build(lineStart));
+            }
+            return result;
+        }
+
+        private Vehicles build(int lineStart) {
+            if (type < 0) throw error(lineStart, "не указан вид транспорта");
+            if (name == null) throw error(lineStart, "не указано название");
+            if (attributeStart < 0) throw error(lineStart, "не указана характеристика " + ATTRIBUTES[type]);
+            long attribute = parseAttribute(attributeStart, attributeEnd);
+            Vehicles vehicle = FleetStore.create(type, name, attribute);
+            if (oilType >= 0) vehicle.setOilType(FleetStore.OIL_TYPES[oilType]);
+            if (engineType >= 0) vehicle.setEngineType(FleetStore.ENGINE_TYPES[engineType]);
+            if (maxSpeed != FleetStore.NO_SPEED) vehicle.setMaxSpeed(maxSpeed);
+            return vehicle;
+        }
+
+        private void parseCsv() {
+            int end = fieldEnd();
+            type = match(TYPE_NAMES, position, end, "вид транспорта");
+            position = end;
+            expectComma();
+            if (position < limit && chunk.get(position) == '"') {
+                name = quotedCsv();
+            } else {
+                end = fieldEnd();
+                name = name(position, end);
+                position = end;
+            }
+            expectComma();
+            end = fieldEnd();
+            if (end > position) oilType = match(OIL_NAMES, position, end, "тип топлива");
+            position = end;
+            expectComma();
+            end = fieldEnd();
+            if (end > position) engineType = match(ENGINE_NAMES, position, end, "тип двигателя");
+            position = end;
+            expectComma();
+            end = fieldEnd();
+            if (end > position) maxSpeed = parseInt(position, end);
+            position = end;
+            expectComma();
+            attributeStart = position;
+            attributeEnd = fieldEnd();
+            int lineEnd = attributeEnd;
+            if (lineEnd > attributeStart && chunk.get(lineEnd - 1) == '\r') attributeEnd--;
+            position = lineEnd;
+            if (position < limit && chunk.get(position) == ',') throw error(position, "лишнее поле");
+            if (position < limit) position++; // '\n'
+        }
+
+        // Конец поля CSV: запятая, перевод строки или конец куска; позиция не меняется
+        private int fieldEnd() {
+            int end = position;
+            while (end < limit) {
+                byte b = chunk.get(end);
+                if (b == ',' || b == '\n') break;
+                end++;
+            }
+            return end;
+        }
+
+        private void expectComma() {
+            if (position >= limit || chunk.get(position) != ',') throw error(position, "ожидалась запятая");
+            position++;
+        }
+
+        private String quotedCsv() {
+            int start = ++position;
+            int length = 0;
+            boolean escaped = false;
+            while (true) {
+                if (position >= limit || chunk.get(position) == '\n') throw error(start, "не закрыта кавычка");
+                byte b = chunk.get(position++);
+                if (b == '"') {
+                    if (position < limit && chunk.get(position) == '"') {
+                        position++;
+                        escaped = true;
+                    } else {
+                        break;
+                    }
+                }
+                length++;
+            }
+            if (!escaped) return name(start, start + length);
+            // "" внутри названия - одна кавычка
+            ensureScratch(length);
+            int j = 0;
+            for (int i = start; j < length; i++) {
+                byte b = chunk.get(i);
+                scratch[j++] = b;
+                if (b == '"') i++;
+            }
+            return cachedName(length);
+        }
+
+        private void parseJson() {
+            expect('{');
+            skipSpaces();
+            if (peek() == '}') {
+                position++;
+            } else {
+                while (true) {
+                    int keyStart = position;
+                    expect('"');
+                    int keyEnd = position;
+                    while (keyEnd < limit && chunk.get(keyEnd) != '"') keyEnd++;
+                    position = keyEnd + 1;
+                    skipSpaces();
+                    expect(':');
+                    skipSpaces();
+                    value(keyStart + 1, keyEnd);
+                    skipSpaces();
+                    byte b = next();
+                    if (b == '}') break;
+                    if (b != ',') throw error(position - 1, "ожидалась запятая или }");
+                    skipSpaces();
+                }
+            }
+            skipSpaces();
+            if (position < limit && chunk.get(position) == ',') position++;
+            skipSpaces();
+            if (position < limit && chunk.get(position) == '\r') position++;
+            if (position >= limit) return;
+            byte b = chunk.get(position);
+            if (b == '\n') position++;
+            else if (b != '{' && b != ']') throw error(position, "после объекта ожидался перевод строки, { или ]");
+        }
+
+        private void value(int keyStart, int keyEnd) {
+            int start = position;
+            if (keyIs(keyStart, keyEnd, "name")) {
+                name = jsonString();
+                return;
+            }
+            if (peek() == 'n' && startsWith("null")) {
+                position += 4;
+                return;
+            }
+            if (keyIs(keyStart, keyEnd, "type")) {
+                int end = stringEnd();
+                type = match(TYPE_NAMES, start + 1, end, "вид транспорта");
+                position = end + 1;
+            } else if (keyIs(keyStart, keyEnd, "oilType")) {
+                int end = stringEnd();
+                oilType = match(OIL_NAMES, start + 1, end, "тип топлива");
+                position = end + 1;
+            } else if (keyIs(keyStart, keyEnd, "engineType")) {
+                int end = stringEnd();
+                engineType = match(ENGINE_NAMES, start + 1, end, "тип двигателя");
+                position = end + 1;
+            } else if (keyIs(keyStart, keyEnd, "maxSpeed")) {
+                int end = literalEnd();
+                maxSpeed = parseInt(start, end);
+                position = end;
+            } else if (keyIs(keyStart, keyEnd, "attribute") || find(ATTRIBUTE_NAMES, keyStart, keyEnd) >= 0) {
+                attributeStart = start;
+                attributeEnd = attributeEnd(start);
+                position = attributeEnd;
+            } else {
+                throw error(keyStart, "неизвестный ключ");
+            }
+        }
+
+        // Значение характеристики: число, true/false или строка с ними
+        private int attributeEnd(int start) {
+            if (peek() == '"') throw error(start, "характеристика должна быть числом или true/false");
+            return literalEnd();
+        }
+
+        private int literalEnd() {
+            int end = position;
+            while (end < limit) {
+                byte b = chunk.get(end);
+                if (b == ',' || b == '}' || b == ' ' || b == '\t' || b == '\r' || b == '\n') break;
+                end++;
+            }
+            if (end == position) throw error(position, "ожидалось значение");
+            return end;
+        }
+
+        // Позиция закрывающей кавычки строки без экранирования, начатой в position
+        private int stringEnd() {
+            if (peek() != '"') throw error(position, "ожидалась строка");
+            int end = position + 1;
+            while (end < limit && chunk.get(end) != '"') {
+                if (chunk.get(end) == '\\' || chunk.get(end) == '\n') throw error(end, "неверная строка");
+                end++;
+            }
+            if (end >= limit) throw error(position, "не закрыта кавычка");
+            return end;
+        }
+
+        private String jsonString() {
+            expect('"');
+            int start = position;
+            int length = 0;
+            ensureScratch(16);
+            while (true) {
+                if (position >= limit || chunk.get(position) == '\n') throw error(start, "не закрыта кавычка");
+                byte b = chunk.get(position++);
+                if (b == '"') break;
+                if (b == '\\') {
+                    if (position >= limit) throw error(position, "неверное экранирование");
+                    byte escape = chunk.get(position++);
+                    switch (escape) {
+                        case '"', '\\', '/' -> b = escape;
+                        case 'n' -> b = '\n';
+                        case 'r' -> b = '\r';
+                        case 't' -> b = '\t';
+                        case 'b' -> b = '\b';
+                        case 'f' -> b = '\f';
+                        case 'u' -> {
+                            length = appendCodePoint(length, hex4());
+                            continue;
+                        }
+                        default -> throw error(position - 1, "неверное экранирование");
+                    }
+                }
+                ensureScratch(length + 1);
+                scratch[length++] = b;
+            }
+            return cachedName(length);
+        }
+
+        private int hex4() {
+            if (position + 4 > limit) throw error(position, "неверное экранирование");
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                int digit = Character.digit(chunk.get(position++), 16);
+                if (digit < 0) throw error(position - 1, "неверное экранирование");
+                value = value * 16 + digit;
+            }
+            return value;
+        }
+
+        // Символ \\uXXXX в UTF-8; суррогатные пары склеиваются
+        private int appendCodePoint(int length, int c) {
+            if (Character.isHighSurrogate((char) c) && position + 6 <= limit
+                    && chunk.get(position) == '\\' && chunk.get(position + 1) == 'u') {
+                int save = position;
+                position += 2;
+                int low = hex4();
+                if (Character.isLowSurrogate((char) low)) c = Character.toCodePoint((char) c, (char) low);
+                else position = save;
+            }
+            byte[] encoded = new String(Character.toChars(c)).getBytes(StandardCharsets.UTF_8);
+            ensureScratch(length + encoded.length);
+            System.arraycopy(encoded, 0, scratch, length, encoded.length);
+            return length + encoded.length;
+        }
+
+        private long parseAttribute(int start, int end) {
+            return switch (attributeKind(type)) {
+                case 'i' -> parseInt(start, end);
+                case 'b' -> {
+                    if (matches(start, end, "true")) yield 1;
+                    if (matches(start, end, "false")) yield 0;
+                    throw error(start, "ожидалось true или false");
+                }
+                default -> Double.doubleToRawLongBits(parseDouble(start, end));
+            };
+        }
+
+        private int parseInt(int start, int end) {
+            int i = start;
+            boolean negative = i < end && chunk.get(i) == '-';
+            if (negative) i++;
+            if (i == end) throw error(start, "ожидалось целое число");
+            long value = 0;
+            for (; i < end; i++) {
+                int digit = chunk.get(i) - '0';
+                if (digit < 0 || digit > 9) throw error(i, "ожидалось целое число");
+                value = value * 10 + digit;
+                if (value > (long) Integer.MAX_VALUE + 1) throw error(start, "слишком большое число");
+            }
+            value = negative ? -value : value;
+            if (value > Integer.MAX_VALUE) throw error(start, "слишком большое число");
+            return (int) value;
+        }
+
+        // До 15 значащих цифр и показателя до 22 - точно через double; иначе Double.parseDouble
+        private double parseDouble(int start, int end) {
+            int i = start;
+            boolean negative = i < end && chunk.get(i) == '-';
+            if (negative) i++;
+            long mantissa = 0;
+            int digits = 0;
+            int exponent = 0;
+            boolean seenDigit = false;
+            boolean point = false;
+            for (; i < end; i++) {
+                byte b = chunk.get(i);
+                if (b >= '0' && b <= '9') {
+                    seenDigit = true;
+                    if (mantissa == 0 && b == '0') {
+                        if (point) exponent--;
+                        continue;
+                    }
+                    if (digits < 19) {
+                        mantissa = mantissa * 10 + (b - '0');
+                        digits++;
+                        if (point) exponent--;
+                    } else if (!point) {
+                        exponent++;
+                    }
+                } else if (b == '.' && !point) {
+                    point = true;
+                } else {
+                    break;
+                }
+            }
+            if (!seenDigit) throw error(start, "ожидалось число");
+            if (i == end && digits <= 15 && exponent >= -22 && exponent <= 22) {
+                double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+                return negative ? -value : value;
+            }
+            byte[] text = new byte[end - start];
+            chunk.get(start, text);
+            try {
+                return Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw error(start, "ожидалось число");
+            }
+        }
+
+        private static final double[] POWERS_OF_TEN = new double[23];
+
+        static {
+            POWERS_OF_TEN[0] = 1;
+            for (int i = 1; i < POWERS_OF_TEN.length; i++) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+
+        private String name(int start, int end) {
+            int length = end - start;
+            ensureScratch(length);
+            chunk.get(start, scratch, 0, length);
+            return cachedName(length);
+        }
+
+        // Строка из scratch[0, length); повторяющиеся названия берутся из кэша
+        private String cachedName(int length) {
+            int hash = 1;
+            for (int i = 0; i < length; i++) hash = 31 * hash + scratch[i];
+            int slot = (hash ^ hash >>> 16) & (cachedNames.length - 1);
+            byte[] cached = cachedBytes[slot];
+            if (cached != null && Arrays.equals(cached, 0, cached.length, scratch, 0, length)) {
+                return cachedNames[slot];
+            }
+            String result = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            cachedBytes[slot] = Arrays.copyOf(scratch, length);
+            cachedNames[slot] = result;
+            return result;
+        }
+
+        private void ensureScratch(int length) {
+            if (scratch.length < length) scratch = Arrays.copyOf(scratch, Math.max(length, scratch.length * 2));
+        }
+
+        private int match(byte[][] names, int start, int end, String what) {
+            int index = find(names, start, end);
+            if (index < 0) throw error(start, "неизвестный " + what);
+            return index;
+        }
+
+        private int find(byte[][] names, int start, int end) {
+            for (int i = 0; i < names.length; i++) {
+                if (matches(start, end, names[i])) return i;
+            }
+            return -1;
+        }
+
+        private boolean matches(int start, int end, byte[] expected) {
+            if (end - start != expected.length) return false;
+            for (int i = 0; i < expected.length; i++) {
+                if (chunk.get(start + i) != expected[i]) return false;
+            }
+            return true;
+        }
+
+        private boolean matches(int start, int end, String expected) {
+            if (end - start != expected.length()) return false;
+            for (int i = 0; i < expected.length(); i++) {
+                if (chunk.get(start + i) != expected.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        private boolean keyIs(int start, int end, String key) {
+            return matches(start, end, key);
+        }
+
+        private boolean startsWith(String prefix) {
+            return position + prefix.length() <= limit && matches(position, position + prefix.length(), prefix);
+        }
+
+        private void skipSpaces() {
+            while (position < limit) {
+                byte b = chunk.get(position);
+                if (b != ' ' && b != '\t') break;
+                position++;
+            }
+        }
+
+        private void skipLine() {
+            while (position < limit && chunk.get(position) != '\n') position++;
+            position++;
+        }
+
+        private byte peek() {
+            if (position >= limit) throw error(position, "неожиданный конец");
+            return chunk.get(position);
+        }
+
+        private byte next() {
+            byte b = peek();
+            position++;
+            return b;
+        }
+
+        private void expect(char c) {
+            if (next() != c) throw error(position - 1, "ожидалось " + c);
+        }
+
+        private IllegalArgumentException error(int at, String message) {
+            return new IllegalArgumentException("Байт " + (offset + at) + ": " + message);
+        }
+    }
+}
+
+// Замер импорта и экспорта: парк выгружается в CSV и JSON и загружается обратно
+class FleetExchangeBenchmark {
+    public static void run(int count) throws IOException {
+        VehicleRegistry registry = new VehicleRegistry();
+        FleetGenerator generator = new FleetGenerator(1);
+        List<Vehicles> fleet = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) fleet.add(generator.next());
+        registry.addAll(fleet);
+
+        Path directory = Files.createTempDirectory("fleet");
+        try {
+            for (String name : new String[]{"fleet.csv", "fleet.json"}) {
+                Path file = directory.resolve(name);
+                for (int round = 0; round < 3; round++) {
+                    long start = System.nanoTime();
+                    FleetExchange.exportFile(registry, file);
+                    long exportNanos = System.nanoTime() - start;
+
+                    VehicleRegistry imported = new VehicleRegistry();
+                    start = System.nanoTime();
+                    FleetExchange.importFile(file, imported);
+                    long importNanos = System.nanoTime() - start;
+
+                    check(registry, imported);
+                    System.out.printf("%s (%,d байт): экспорт %,.0f строк/с, импорт %,.0f строк/с%n", name,
+                            Files.size(file), count * 1e9 / exportNanos, count * 1e9 / importNanos);
+                }
+                Files.delete(file);
+            }
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    private static void check(VehicleRegistry expected, VehicleRegistry actual) {
+        if (expected.size() != actual.size()) throw new IllegalStateException("Загружено не всё");
+        StringBuilder a = new StringBuilder();
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < expected.size(); i++) {
+            a.setLength(0);
+            b.setLength(0);
+            FleetExchange.appendCsv(a, expected.get(i));
+            FleetExchange.appendCsv(b, actual.get(i));
+            if (!a.toString().contentEquals(b)) throw new IllegalStateException("Не совпал транспорт " + i);
+        }
+    }
+}
+
+// Движение парка по шагам. Мир - квадрат WORLD x WORLD км: суша западнее берега (x < COAST),
+// море восточнее. Способ движения задаёт интерфейс транспорта: Flyable летит куда угодно и
+// почти не меняет курс, Drivable ездит по суше и петляет, рельсовый транспорт ходит по прямой
+// туда и обратно, Floatable плавает по морю. У границы своей области транспорт разворачивается.
+// За шаг (TICK_HOURS) транспорт проходит maxSpeed * TICK_HOURS км, без скорости - стоит.
+// Положение и курс хранятся колонками (как в FleetStore), номер - позиция в исходном списке.
+// Шаг делит транспорт на отрезки по ядрам: каждый отрезок двигает свой транспорт и считает
+// его по клеткам сетки, затем равномерная сетка (клетка CELL км) собирается сортировкой
+// подсчётом - у каждого отрезка свои счётчики, поэтому без блокировок. Сетка отвечает на
+// запросы "кто в радиусе R от точки" и "пары ближе R", просматривая только соседние клетки.
+// Курс хранится единичным вектором, поворот на случайный угол - умножение на поворот из
+// заранее посчитанной таблицы (TURNS углов на вид), без тригонометрии на каждом шаге.
+// Случайные повороты зависят только от seed, номера и шага, а не от деления на отрезки.
+final class FleetSimulation {
+    static final double WORLD = 1000;
+    static final double COAST = 700;
+    static final double CELL = 2;
+    static final double TICK_HOURS = 1.0 / 60;
+    private static final int GRID = (int) (WORLD / CELL);
+    private static final byte FLYING = 0, GROUND = 1, RAIL = 2, WATER = 3;
+    private static final int TURNS = 256;
+    // Наибольший поворот за шаг по видам, радианы; рельсовый транспорт не поворачивает
+    private static final double[] MAX_TURN = {0.05, 0.3, 0, 0.1};
+    private static final double[][] TURN_COS = new double[MAX_TURN.length][TURNS];
+    private static final double[][] TURN_SIN = new double[MAX_TURN.length][TURNS];
+
+    static {
+        for (int kind = 0; kind < MAX_TURN.length; kind++) {
+            for (int k = 0; k < TURNS; k++) {
+                double angle = MAX_TURN[kind] * (2.0 * k / (TURNS - 1) - 1);
+                TURN_COS[kind][k] = Math.cos(angle);
+                TURN_SIN[kind][k] = Math.sin(angle);
+            }
+        }
+    }
+
+    private final int size;
+    private final byte[] kinds;
+    private final double[] steps;     // км за шаг
+    private final double[] x;
+    private final double[] y;
+    private final double[] hx;        // курс: единичный вектор, (1, 0) - на восток
+    private final double[] hy;
+    private final int[] cells;        // клетка сетки
+    private final int[] cellStart = new int[GRID * GRID + 1];
+    private final int[] cellItems;    // номера транспорта, по клеткам подряд
+    private final int partitions;
+    private final int[][] counts;     // [отрезок][клетка]: счётчики, затем позиции записи
+    private final long seed;
+    private long tick;
+
+    FleetSimulation(List<? extends Vehicles> vehicles, long seed) {
+        this.size = vehicles.size();
+        this.seed = seed;
+        kinds = new byte[size];
+        steps = new double[size];
+        x = new double[size];
+        y = new double[size];
+        hx = new double[size];
+        hy = new double[size];
+        cells = new int[size];
+        cellItems = new int[size];
+        partitions = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), size / 4096));
+        counts = new int[partitions][GRID * GRID];
+
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < size; i++) {
+            Vehicles vehicle = vehicles.get(i);
+            byte kind = vehicle instanceof RailsBased ? RAIL
+                    : vehicle instanceof Flyable ? FLYING
+                    : vehicle instanceof Floatable ? WATER : GROUND;
+            kinds[i] = kind;
+            int speed = vehicle.getSpeed();
+            steps[i] = speed == VehicleInfo.NO_SPEED ? 0 : speed * TICK_HOURS;
+            x[i] = switch (kind) {
+                case FLYING -> random.nextDouble(WORLD);
+                case WATER -> random.nextDouble(COAST, WORLD);
+                default -> random.nextDouble(COAST);
+            };
+            y[i] = random.nextDouble(WORLD);
+            double heading = kind == RAIL ? random.nextInt(4) * Math.PI / 2 : random.nextDouble(2 * Math.PI);
+            hx[i] = Math.cos(heading);
+            hy[i] = Math.sin(heading);
+        }
+        IntStream.range(0, partitions).parallel().forEach(p -> locate(p));
+        index();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTick() {
+        return tick;
+    }
+
+    public double getX(int i) {
+        return x[i];
+    }
+
+    public double getY(int i) {
+        return y[i];
+    }
+
+    // Курс в радианах, 0 - на восток
+    public double getHeading(int i) {
+        return Math.atan2(hy[i], hx[i]);
+    }
+
+    // Один шаг: движение по отрезкам параллельно, затем пересборка сетки
+    public void step() {
+        long t = tick++;
+        IntStream.range(0, partitions).parallel().forEach(p -> move(p, t));
+        index();
+    }
+
+    private int from(int partition) {
+        return (int) ((long) size * partition / partitions);
+    }
+
+    private void move(int partition, long t) {
+        int[] count = counts[partition];
+        Arrays.fill(count, 0);
+        for (int i = from(partition), to = from(partition + 1); i < to; i++) {
+            byte kind = kinds[i];
+            double cx = hx[i], cy = hy[i];
+            if (kind != RAIL) {
+                int k = turn(i, t);
+                double cos = TURN_COS[kind][k], sin = TURN_SIN[kind][k];
+                double rx = cx * cos - cy * sin;
+                double ry = cx * sin + cy * cos;
+                // поправка длины к 1, чтобы ошибки округления не копились
+                double norm = 1.5 - 0.5 * (rx * rx + ry * ry);
+                cx = rx * norm;
+                cy = ry * norm;
+            }
+            double nx = x[i] + steps[i] * cx;
+            double ny = y[i] + steps[i] * cy;
+            if (inside(kind, nx, ny)) {
+                x[i] = nx;
+                y[i] = ny;
+            } else {
+                cx = -cx;
+                cy = -cy;
+            }
+            hx[i] = cx;
+            hy[i] = cy;
+            int cell = cellOf(x[i], y[i]);
+            cells[i] = cell;
+            count[cell]++;
+        }
+    }
+
+    private void locate(int partition) {
+        int[] count = counts[partition];
+        for (int i = from(partition), to = from(partition + 1); i < to; i++) {
+            int cell = cellOf(x[i], y[i]);
+            cells[i] = cell;
+            count[cell]++;
+        }
+    }
+
+    // Сортировка подсчётом: отрезок p пишет транспорт клетки c после отрезков 0..p-1
+    private void index() {
+        int position = 0;
+        for (int cell = 0; cell < GRID * GRID; cell++) {
+            cellStart[cell] = position;
+            for (int[] count : counts) {
+                int n = count[cell];
+                count[cell] = position;
+                position += n;
+            }
+        }
+        cellStart[GRID * GRID] = position;
+        IntStream.range(0, partitions).parallel().forEach(p -> {
+            int[] next = counts[p];
+            for (int i = from(p), to = from(p + 1); i < to; i++) cellItems[next[cells[i]]++] = i;
+        });
+    }
+
+    private static boolean inside(byte kind, double x, double y) {
+        if (x < 0 || x >= WORLD || y < 0 || y >= WORLD) return false;
+        return switch (kind) {
+            case FLYING -> true;
+            case WATER -> x >= COAST;
+            default -> x < COAST;
+        };
+    }
+
+    // Псевдослучайный номер поворота в [0, TURNS) по номеру и шагу (splitmix64)
+    private int turn(int i, long t) {
+        long z = seed + i * 0x9E3779B97F4A7C15L + t * 0xC2B2AE3D27D4EB4FL;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return (int) ((z ^ (z >>> 31)) >>> 56);
+    }
+
+    private static int cellOf(double x, double y) {
+        return clamp((int) (y / CELL)) * GRID + clamp((int) (x / CELL));
+    }
+
+    private static int clamp(int cell) {
+        return Math.max(0, Math.min(GRID - 1, cell));
+    }
+
+    // Номера транспорта не дальше radius от точки, по возрастанию
+    public int[] within(double px, double py, double radius) {
+        IntStream.Builder found = IntStream.builder();
+        double r2 = radius * radius;
+        int x0 = clamp((int) ((px - radius) / CELL)), x1 = clamp((int) ((px + radius) / CELL));
+        int y0 = clamp((int) ((py - radius) / CELL)), y1 = clamp((int) ((py + radius) / CELL));
+        for (int cy = y0; cy <= y1; cy++) {
+            for (int cx = x0; cx <= x1; cx++) {
+                int cell = cy * GRID + cx;
+                for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                    int i = cellItems[k];
+                    double dx = x[i] - px, dy = y[i] - py;
+                    if (dx * dx + dy * dy <= r2) found.add(i);
+                }
+            }
+        }
+        int[] result = found.build().toArray();
+        Arrays.sort(result);
+        return result;
+    }
+
+    // Количество пар транспорта ближе radius друг к другу (сближения). radius не больше CELL:
+    // каждая клетка сравнивается с собой и четырьмя соседями "вперёд", так что пара считается один раз
+    public long pairsWithin(double radius) {
+        if (radius > CELL) throw new IllegalArgumentException("Радиус больше клетки сетки: " + radius);
+        double r2 = radius * radius;
+        return IntStream.range(0, GRID * GRID).parallel().mapToLong(cell -> {
+            int cx = cell % GRID, cy = cell / GRID;
+            long pairs = 0;
+            for (int a = cellStart[cell]; a < cellStart[cell + 1]; a++) {
+                int i = cellItems[a];
+                for (int b = a + 1; b < cellStart[cell + 1]; b++) {
+                    if (close(i, cellItems[b], r2)) pairs++;
+                }
+                pairs += closeInCell(i, cx + 1, cy, r2) + closeInCell(i, cx - 1, cy + 1, r2)
+                        + closeInCell(i, cx, cy + 1, r2) + closeInCell(i, cx + 1, cy + 1, r2);
+            }
+            return pairs;
+        }).sum();
+    }
+
+    private int closeInCell(int i, int cx, int cy, double r2) {
+        if (cx < 0 || cx >= GRID || cy >= GRID) return 0;
+        int cell = cy * GRID + cx;
+        int pairs = 0;
+        for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+            if (close(i, cellItems[k], r2)) pairs++;
+        }
+        return pairs;
+    }
+
+    private boolean close(int i, int j, double r2) {
+        double dx = x[i] - x[j], dy = y[i] - y[j];
+        return dx * dx + dy * dy <= r2;
+    }
+}
+
+// Скорость симуляции: шагов в секунду для 100 000 транспорта и далее в 10 раз больше до count,
+// плюс время запросов по сетке. Запросы сверяются с полным перебором (пары - на 5 000 транспорта)
+class FleetSimulationBenchmark {
+    public static void run(int count) {
+        check(5_000);
+        for (int n = 100_000; n <= count; n *= 10) {
+            List<Vehicles> fleet = new ArrayList<>(n);
+            FleetGenerator generator = new FleetGenerator(1);
+            for (int i = 0; i < n; i++) fleet.add(generator.next());
+            FleetSimulation simulation = new FleetSimulation(fleet, 1);
+            fleet = null;
+
+            for (int i = 0; i < 20; i++) simulation.step();
+            int ticks = 0;
+            long start = System.nanoTime();
+            long nanos;
+            do {
+                simulation.step();
+                ticks++;
+                nanos = System.nanoTime() - start;
+            } while (nanos < 3_000_000_000L);
+            System.out.printf("Транспорта %,9d: %,8.1f шагов/с, %.2f мс на шаг%n", n, ticks * 1e9 / nanos, nanos / 1e6 / ticks);
+
+            start = System.nanoTime();
+            int[] found = null;
+            for (int i = 0; i < 1000; i++) found = simulation.within(i % 100 * 10, i / 10 % 100 * 10, 5);
+            System.out.printf("  в радиусе 5 км: %.1f мкс на запрос, в последнем найдено %d%n",
+                    (System.nanoTime() - start) / 1e3 / 1000, found.length);
+
+            start = System.nanoTime();
+            long pairs = simulation.pairsWithin(0.05);
+            System.out.printf("  пары ближе 50 м: %,d за %.1f мс%n", pairs, (System.nanoTime() - start) / 1e6);
+        }
+    }
+
+    private static void check(int n) {
+        List<Vehicles> fleet = new ArrayList<>(n);
+        FleetGenerator generator = new FleetGenerator(2);
+        for (int i = 0; i < n; i++) fleet.add(generator.next());
+        FleetSimulation simulation = new FleetSimulation(fleet, 2);
+        for (int i = 0; i < 50; i++) simulation.step();
+
+        int[] expected = IntStream.range(0, n).filter(i -> Math.hypot(simulation.getX(i) - 400, simulation.getY(i) - 600) <= 80).toArray();
+        int[] actual = simulation.within(400, 600, 80);
+        long pairs = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                double dx = simulation.getX(i) - simulation.getX(j), dy = simulation.getY(i) - simulation.getY(j);
+                if (dx * dx + dy * dy <= 4) pairs++;
+            }
+        }
+        if (!Arrays.equals(expected, actual) || pairs != simulation.pairsWithin(2)) {
+            throw new IllegalStateException("Сетка разошлась с полным перебором");
+        }
+        System.out.println("Проверка сетки на " + n + " транспорта: " + actual.length + " в радиусе, " + pairs + " пар");
+    }
+}
+
+// Вывод транспорта постранично. Страница собирается в одном буфере, который переиспользуется
+// от страницы к странице, и уходит в поток одним вызовом. Неизменные части вывода для каждого
+// вида (заголовок карточки, подпись в списке) считаются один раз на класс.
+final class VehicleRenderer {
+    static final int PAGE_SIZE = 20;
+    private static final String SEPARATOR = "----------------------------\n";
+
+    private record Layout(String header, String suffix) {
+    }
+
+    private static final ClassValue<Layout> LAYOUTS = new ClassValue<>() {
+        @Override
+        protected Layout computeValue(Class<?> type) {
+            return new Layout("\nТип: " + type.getSimpleName() + "\nНазвание: ", " (" + type.getSimpleName() + ")\n");
+        }
+    };
+
+    private final StringBuilder buffer = new StringBuilder(8 * 1024);
+    private final PrintStream out;
+
+    VehicleRenderer(PrintStream out) {
+        this.out = out;
+    }
+
+    static int pages(int size) {
+        return Math.max(1, (size + PAGE_SIZE - 1) / PAGE_SIZE);
+    }
+
+    // Карточка транспорта, как в printInfo
+    static StringBuilder appendCard(StringBuilder sb, Vehicles v) {
+        OilType oilType = v.getOilType();
+        EngineType engineType = v.getEngineType();
+        int maxSpeed = v.getSpeed();
+        sb.append(LAYOUTS.get(v.getClass()).header()).append(v.getName()).append('\n');
+        if (engineType != null) sb.append("Двигатель: ").append(engineType).append('\n');
+        if (oilType != null) sb.append("Тип топлива: ").append(oilType).append('\n');
+        if (maxSpeed != VehicleInfo.NO_SPEED) sb.append("Макс. скорость: ").append(maxSpeed).append(" км/ч\n");
+        v.appendSpecificInfo(sb);
+        return sb.append(SEPARATOR);
+    }
+
+    // Страница page (с 0): карточки или нумерованный список "N. название (вид)"
+    void page(List<Vehicles> vehicles, int page, boolean cards) {
+        buffer.setLength(0);
+        int from = page * PAGE_SIZE;
+        int to = Math.min(vehicles.size(), from + PAGE_SIZE);
+        for (int i = from; i < to; i++) {
+            Vehicles v = vehicles.get(i);
+            if (cards) {
+                appendCard(buffer, v);
+            } else {
+                buffer.append(i + 1).append(". ").append(v.getName()).append(LAYOUTS.get(v.getClass()).suffix());
+            }
+        }
+        int pages = pages(vehicles.size());
+        if (pages > 1) buffer.append("Страница ").append(page + 1).append(" из ").append(pages).append('\n');
+        out.append(buffer);
+    }
+}
+
+// Консольное меню над реестром. Ввод и вывод передаются снаружи: в обычном запуске это
+// System.in/System.out, в сервере - сокет клиента, по консоли на сеанс.
+class FleetConsole {
+    private final VehicleRegistry vehicles;
+    private final FleetJournal journal;
+    private final Scanner scanner;
+    private final PrintStream out;
+    private final VehicleRenderer renderer;
+    private final boolean files; // пункт импорта/экспорта: только в локальной консоли
+
+    FleetConsole(VehicleRegistry vehicles, FleetJournal journal, Scanner scanner, PrintStream out) {
+        this(vehicles, journal, scanner, out, true);
+    }
+
+    // files = false - без доступа к файловой системе (сеансы сервера: путь пришёл бы от клиента)
+    FleetConsole(VehicleRegistry vehicles, FleetJournal journal, Scanner scanner, PrintStream out, boolean files) {
+        this.vehicles = vehicles;
+        this.journal = journal;
+        this.scanner = scanner;
+        this.out = out;
+        this.renderer = new VehicleRenderer(out);
+        this.files = files;
+    }
+
+    // Меню до выбора "Выход"
+    public void run() {
+        while (true) {
+            out.println("\n===== Меню =====");
+            out.println("1. Добавить транспорт");
+            out.println("2. Показать все созданные транспорты");
+            out.println("3. Выполнить действие с транспортом");
+            out.println("4. Найти транспорт");
+            out.println("5. Статистика по парку");
+            if (files) out.println("6. Импорт/экспорт (CSV, JSON)");
+            out.println("7. Выход");
+            out.print("Выберите пункт: ");
+
+            int variant = scanner.nextInt();
+            scanner.nextLine();
+
+            switch (variant) {
+                case 1 -> addVehicle();
+                case 2 -> showVehicles();
+                case 3 -> doAction();
+                case 4 -> findVehicles();
+                case 5 -> queryVehicles();
+                case 6 -> {
+                    if (files) exchangeVehicles();
+                    else out.println("Импорт и экспорт недоступны в сетевом сеансе.");
+                }
+                case 7 -> {
+                    out.println("Выход из программы...");
+                    return;
+                }
+                default -> out.println("Неизвестный вариант выбора, попробуйте еще раз.");
+            }
+        }
+    }
+
+    private boolean checkIsEmptyList() {
+        if (vehicles.isEmpty()) {
+            out.println("\nСписок пуст.");
+            return true;
+        }
+        return false;
+    }
+
+    private OilType chooseOilType() {
+        out.println("Выберите тип топлива:");
+        OilType[] values = OilType.values();
+        for (int i = 0; i < values.length; i++) {
+            out.println((i + 1) + ". " + values[i]);
+        }
+        int oilVariant = scanner.nextInt();
+        scanner.nextLine();
+        if (oilVariant >= 1 && oilVariant <= values.length) {
+            return values[oilVariant - 1];
+        } else {
+            out.println("Неверный ввод, выбрано НЕТ");
+            return OilType.НЕТ;
+        }
+    }
+
+    private EngineType chooseEngineType() {
+        out.println("Выберите тип двигателя:");
+        EngineType[] values = EngineType.values();
+        for (int i = 0; i < values.length; i++) {
+            out.println((i + 1) + ". " + values[i]);
+        }
+        int engineVariant = scanner.nextInt();
+        scanner.nextLine();
+        if (engineVariant >= 1 && engineVariant <= values.length) {
+            return values[engineVariant - 1];
+        } else {
+            out.println("Неверный ввод, выбрано НЕТ");
+            return EngineType.НЕТ;
+        }
+    }
+
+
+    private void addVehicle() {
+        out.println("\nКакой транспорт добавить?");
+        out.println("1. Машина");
+        out.println("2. Самолет");
+        out.println("3. Мотоцикл");
+        out.println("4. Велосипед");
+        out.println("5. Поезд");
+        out.println("6. Метро");
+        out.println("7. Лодка");
+        out.println("8. Корабль");
+        out.print("Введите номер: ");
+        int type = scanner.nextInt();
+        scanner.nextLine();
+
+        out.print("Введите название: ");
+        String name = scanner.nextLine();
+
+        Vehicles vehicle = null;
+
+        switch (type) {
+            case 1 -> {
+                out.print("Количество дверей: ");
+                int doors = scanner.nextInt();
+                vehicle = new Car(name, doors);
+            }
+            case 2 -> {
+                out.print("Количество посадочных мест: ");
+                int capacity = scanner.nextInt();
+                vehicle = new Plane(name, capacity);
+            }
+            case 3 -> {
+                out.print("Есть ли электродвигатель? (true/false): ");
+                boolean electroEngine = scanner.nextBoolean();
+                vehicle = new Bike(name, electroEngine);
+            }
+            case 4 -> {
+                out.print("Есть ли переключатель передач? (true/false): ");
+                boolean shifter = scanner.nextBoolean();
+                vehicle = new Bicycle(name, shifter);
+            }
+            case 5 -> {
+                out.print("Количество вагонов: ");
+                int wagons = scanner.nextInt();
+                vehicle = new Train(name, wagons);
+            }
+            case 6 -> {
+                out.print("Количество станций: ");
+                int stations = scanner.nextInt();
+                vehicle = new Subway(name, stations);
+            }
+            case 7 -> {
+                out.print("Водоизмещение: ");
+                double d = scanner.nextDouble();
+                vehicle = new Boat(name, d);
+            }
+            case 8 -> {
+                out.print("Масса: ");
+                double mass = scanner.nextDouble();
+                vehicle = new Ship(name, mass);
+            }
+            default -> out.println("Неизвестный тип транспорта.");
+        }
+
+        if (vehicle != null) {
+            scanner.nextLine();
+            vehicle.setEngineType(chooseEngineType());
+            vehicle.setOilType(chooseOilType());
+
+            out.print("Введите макс. скорость: ");
+            int speed = scanner.nextInt();
+            if (speed > 0) vehicle.setMaxSpeed(speed);
+
+            vehicles.add(vehicle);
+            if (journal != null) journal.sync();
+            out.println("Транспорт добавлен!");
+        }
+    }
+
+    private void showVehicles() {
+        if (checkIsEmptyList()) return;
+        List<Vehicles> snapshot = vehicles.snapshot();
+        out.println("\n===== Список созданного транспорта =====");
+        out.println("\nВсего транспорта в списке " + snapshot.size());
+        out.println("\n----------------------------");
+        browse(snapshot, true, false);
+    }
+
+    // Постраничный просмотр: n - следующая страница, p - предыдущая. Для выбора (pick)
+    // возвращает номер выбранного транспорта в списке или -1, иначе номер - переход на страницу,
+    // пустая строка - выход. Список из одной страницы без выбора выводится без вопросов
+    private int browse(List<Vehicles> list, boolean cards, boolean pick) {
+        int pages = VehicleRenderer.pages(list.size());
+        int page = 0;
+        while (true) {
+            renderer.page(list, page, cards);
+            if (!pick && pages == 1) return -1;
+            if (pick) {
+                out.print(pages > 1 ? "n - дальше, p - назад. Номер транспорта: " : "Номер транспорта: ");
+            } else {
+                out.print("n - дальше, p - назад, номер - страница, Enter - в меню: ");
+            }
+
+            String input = scanner.nextLine().trim();
+            if (input.equalsIgnoreCase("n")) {
+                page = Math.min(page + 1, pages - 1);
+            } else if (input.equalsIgnoreCase("p")) {
+                page = Math.max(page - 1, 0);
+            } else if (!pick && input.isEmpty()) {
+                return -1;
+            } else {
+                int number;
+                try {
+                    number = Integer.parseInt(input);
+                } catch (NumberFormatException e) {
+                    number = 0;
+                }
+                if (pick) {
+                    if (number >= 1 && number <= list.size()) return number - 1;
+                    out.println("Неверный выбор.");
+                    return -1;
+                }
+                if (number >= 1 && number <= pages) page = number - 1;
+                else out.println("Нет такой страницы.");
+            }
+        }
+    }
+
+    private static final List<Class<? extends Vehicles>> VEHICLE_TYPES = List.of(
+            Car.class, Plane.class, Helicopter.class, Bike.class, Bicycle.class,
+            Train.class, Subway.class, Boat.class, Ship.class);
+
+    private void findVehicles() {
+        if (checkIsEmptyList()) return;
+
+        out.println("\nИскать по:");
+        out.println("1. Названию");
+        out.println("2. Типу топлива");
+        out.println("3. Типу двигателя");
+        out.println("4. Виду транспорта");
+        out.println("5. Диапазону макс. скорости");
+        int variant = scanner.nextInt();
+        scanner.nextLine();
+
+        List<Vehicles> found;
+        switch (variant) {
+            case 1 -> {
+                out.print("Введите название: ");
+                found = vehicles.findAll(scanner.nextLine());
+            }
+            case 2 -> found = vehicles.withOilType(chooseOilType());
+            case 3 -> found = vehicles.withEngineType(chooseEngineType());
+            case 4 -> {
+                out.println("Выберите вид транспорта:");
+                for (int i = 0; i < VEHICLE_TYPES.size(); i++) {
+                    out.println((i + 1) + ". " + VEHICLE_TYPES.get(i).getSimpleName());
+                }
+                int type = scanner.nextInt() - 1;
+                scanner.nextLine();
+                if (type < 0 || type >= VEHICLE_TYPES.size()) {
+                    out.println("Неверный выбор.");
+                    return;
+                }
+                found = vehicles.ofType(VEHICLE_TYPES.get(type));
+            }
+            case 5 -> {
+                out.print("От: ");
+                int from = scanner.nextInt();
+                out.print("До: ");
+                int to = scanner.nextInt();
+                scanner.nextLine();
+                found = vehicles.withSpeedBetween(from, to);
+            }
+            default -> {
+                out.println("Неизвестный вариант выбора.");
+                return;
+            }
+        }
+
+        out.println("\nНайдено: " + found.size());
+        browse(found, true, false);
+    }
+
+    private void queryVehicles() {
+        if (checkIsEmptyList()) return;
+
+        FleetQuery query = new FleetQuery();
+        List<Class<?>> types = new ArrayList<>(VEHICLE_TYPES);
+        types.addAll(List.of(Flying.class, GroundBased.class, RailsBased.class, WaterBased.class));
+        Class<?> type = chooseFilter("вид транспорта", types.toArray(new Class<?>[0]));
+        if (type != null) query.type(type);
+        OilType oilType = chooseFilter("тип топлива", OilType.values());
+        if (oilType != null) query.oilType(oilType);
+        EngineType engineType = chooseFilter("тип двигателя", EngineType.values());
+        if (engineType != null) query.engineType(engineType);
+        out.print("Макс. скорость от (0 - без ограничения): ");
+        int from = scanner.nextInt();
+        out.print("до (0 - без ограничения): ");
+        int to = scanner.nextInt();
+        scanner.nextLine();
+        if (from > 0 || to > 0) query.speedBetween(from, to > 0 ? to : Integer.MAX_VALUE);
+
+        out.println("\nЧто посчитать:");
+        out.println("1. Итоги");
+        out.println("2. По видам транспорта");
+        out.println("3. По типу топлива");
+        out.println("4. По типу двигателя");
+        out.println("5. Самые быстрые");
+        int variant = scanner.nextInt();
+        scanner.nextLine();
+
+        switch (variant) {
+            case 1 -> out.println(FleetQuery.stats(query.stream(vehicles)));
+            case 2 -> printGroups(FleetQuery.groupBy(query.stream(vehicles), v -> v.getType().getSimpleName()));
+            case 3 -> printGroups(FleetQuery.groupBy(query.stream(vehicles), VehicleInfo::getOilType));
+            case 4 -> printGroups(FleetQuery.groupBy(query.stream(vehicles), VehicleInfo::getEngineType));
+            case 5 -> {
+                out.print("Сколько: ");
+                int count = scanner.nextInt();
+                scanner.nextLine();
+                List<Vehicles> fastest = FleetQuery.top(query.stream(vehicles), count);
+                for (int i = 0; i < fastest.size(); i++) {
+                    Vehicles v = fastest.get(i);
+                    out.println((i + 1) + ". " + v.getName() + " (" + v.getType().getSimpleName() + "), "
+                            + v.getMaxSpeed() + " км/ч");
+                }
+            }
+            default -> out.println("Неизвестный вариант выбора.");
+        }
+    }
+
+    // Выбор значения фильтра; 0 или неверный ввод - без фильтра (null)
+    private <T> T chooseFilter(String title, T[] values) {
+        out.println("Фильтр: " + title + " (0 - любой):");
+        for (int i = 0; i < values.length; i++) {
+            Object value = values[i];
+            out.println((i + 1) + ". " + (value instanceof Class<?> c ? c.getSimpleName() : value));
+        }
+        int variant = scanner.nextInt();
+        scanner.nextLine();
+        return variant >= 1 && variant <= values.length ? values[variant - 1] : null;
+    }
+
+    private <K> void printGroups(Map<K, FleetQuery.Stats> groups) {
+        if (groups.isEmpty()) out.println("Ничего не найдено.");
+        groups.forEach((key, stats) -> out.println(key + ": " + stats));
+    }
+
+    private void exchangeVehicles() {
+        out.println("\n1. Загрузить из файла");
+        out.println("2. Выгрузить в файл");
+        int variant = scanner.nextInt();
+        scanner.nextLine();
+        if (variant != 1 && variant != 2) {
+            out.println("Неизвестный вариант выбора.");
+            return;
+        }
+        out.print("Файл (.csv или .json): ");
+        transfer(variant == 1, Path.of(scanner.nextLine().trim()));
+    }
+
+    void transfer(boolean load, Path file) {
+        long start = System.nanoTime();
+        try {
+            long count = load ? FleetExchange.importFile(file, vehicles) : FleetExchange.exportFile(vehicles, file);
+            if (load && journal != null) journal.sync();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            out.printf("%s транспорта: %d за %.3f с (%.0f строк/с)%n",
+                    load ? "Загружено" : "Выгружено", count, seconds, count / seconds);
+        } catch (IOException | UncheckedIOException e) {
+            out.println("Ошибка файла: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            out.println("Ошибка в данных: " + e.getMessage());
+        }
+    }
+
+    private void doAction() {
+        if (checkIsEmptyList()) return;
+
+        // Номера в списке - по снимку: транспорт, добавленный другими сеансами, их не сдвигает
+        List<Vehicles> snapshot = vehicles.snapshot();
+        out.println("\nВыберите транспорт для действия:");
+        int index = browse(snapshot, false, true);
+        if (index < 0) return;
+
+        Vehicles v = snapshot.get(index);
+
+        out.println("\nВыберите действие:");
+        if (v instanceof Flyable) out.println("1. Летать");
+        if (v instanceof Drivable) out.println("2. Ехать");
+        if (v instanceof Floatable) out.println("3. Плыть");
+
+        int action = scanner.nextInt();
+        scanner.nextLine();
+
+        if (v instanceof Flyable f && action == 1) f.fly(out);
+        else if (v instanceof Drivable d && action == 2) d.drive(out);
+        else if (v instanceof Floatable fl && action == 3) fl.floatOnWater(out);
+        else out.println("Неверное действие для выбранного транспорта.");
+    }
+
+}
+
+// Сервер реестра: строковый протокол по TCP (только loopback). Каждый сеанс - своё меню
+// FleetConsole над общим реестром и журналом: клиент шлёт те же строки, что вводятся
+// в консоли, и получает тот же текст, кроме импорта/экспорта: путь к файлу от клиента
+// открыл бы ему файловую систему сервера. Вывод сеанса копится в буфере и уходит клиенту,
+// когда меню ждёт ввода. Сеанс обслуживается своим виртуальным потоком (JDK 21+),
+// на старых JDK - обычным потоком из пула.
+class FleetServer implements AutoCloseable {
+    private final VehicleRegistry registry;
+    private final FleetJournal journal;
+    private final ServerSocket server;
+    private final ExecutorService executor = newPerSessionExecutor();
+    private final Set<Socket> sessions = ConcurrentHashMap.newKeySet();
+
+    FleetServer(VehicleRegistry registry, FleetJournal journal, int port) throws IOException {
+        this.registry = registry;
+        this.journal = journal;
+        this.server = new ServerSocket(port, 256, InetAddress.getLoopbackAddress());
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    // Принимает соединения, пока сервер не закрыт
+    void serve() throws IOException {
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                sessions.add(socket);
+                executor.execute(() -> session(socket));
+            }
+        } catch (SocketException e) {
+            if (!server.isClosed()) throw e;
+        }
+    }
+
+    // serve() в отдельном потоке
+    FleetServer start() {
+        Thread acceptor = new Thread(() -> {
+            try {
+                serve();
+            } catch (IOException e) {
+                System.err.println("Сервер остановлен: " + e.getMessage());
+            }
+        }, "fleet-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return this;
+    }
+
+    // Закрывает приём и соединения и ждёт, пока все сеансы выйдут из меню:
+    // после возврата реестр и журнал больше никто не меняет
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (Socket socket : sessions) socket.close();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void session(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream(), 16 * 1024),
+                    false, StandardCharsets.UTF_8);
+            Scanner scanner = new Scanner(new FlushingInputStream(socket.getInputStream(), out), StandardCharsets.UTF_8);
+            try {
+                new FleetConsole(registry, journal, scanner, out, false).run();
+            } catch (InputMismatchException e) {
+                out.println("\nНеверный ввод, сеанс завершён.");
+            } catch (NoSuchElementException e) {
+                // клиент закрыл соединение
+            }
+            out.flush();
+        } catch (IOException e) {
+            // соединение оборвалось
+        } finally {
+            sessions.remove(socket);
+        }
+    }
+
+    // Виртуальные потоки, если JDK их поддерживает, иначе обычный пул
+    static ExecutorService newPerSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // Перед блокирующим чтением отправляет клиенту накопленный вывод
+    private static final class FlushingInputStream extends FilterInputStream {
+        private final PrintStream out;
+
+        FlushingInputStream(InputStream in, PrintStream out) {
+            super(in);
+            this.out = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (in.available() == 0) out.flush();
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (in.available() == 0) out.flush();
+            return in.read(buffer, offset, length);
+        }
+    }
+}
+
+// Нагрузочный тест сервера через loopback: каждый клиент по кругу добавляет транспорт,
+// ищет его по названию и запрашивает итоги по парку, время операции - от отправки команды
+// до следующего приглашения меню. Реестр пишет журнал во временный каталог.
+class FleetServerBenchmark {
+    private static final byte[] PROMPT = "Выберите пункт: ".getBytes(StandardCharsets.UTF_8);
+    private static final int OPERATIONS = 300;
+
+    public static void run(int maxClients) throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("fleet");
+        VehicleRegistry registry = new VehicleRegistry();
+        FleetJournal journal = FleetJournal.open(directory, registry);
+        FleetGenerator generator = new FleetGenerator(1);
+        List<Vehicles> fleet = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) fleet.add(generator.next());
+        registry.addAll(fleet);
+
+        try (FleetServer server = new FleetServer(registry, journal, 0).start()) {
+            System.out.println("Транспорта в реестре: " + registry.size() + ", операций на клиента: " + OPERATIONS);
+            for (int clients = 1; clients <= maxClients; clients *= 4) {
+                round(server.getPort(), clients);
+            }
+        } finally {
+            journal.close();
+            try (var files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private static void round(int port, int clients) throws InterruptedException {
+        long[][] latencies = new long[clients][];
+        Thread[] threads = new Thread[clients];
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            int client = c;
+            threads[c] = new Thread(() -> {
+                try {
+                    latencies[client] = client(port, client);
+                } catch (IOException | RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads[c].start();
+        }
+        for (Thread thread : threads) thread.join();
+        long nanos = System.nanoTime() - start;
+        if (failure.get() != null) throw new IllegalStateException("Клиент упал", failure.get());
+
+        long[] all = new long[clients * OPERATIONS];
+        for (int c = 0; c < clients; c++) System.arraycopy(latencies[c], 0, all, c * OPERATIONS, OPERATIONS);
+        Arrays.sort(all);
+        System.out.printf("Клиентов %3d: %,8.0f операций/с, p50 %6.2f мс, p99 %6.2f мс, max %6.2f мс%n",
+                clients, all.length * 1e9 / nanos, all[all.length / 2] / 1e6,
+                all[(int) (all.length * 0.99)] / 1e6, all[all.length - 1] / 1e6);
+    }
+
+    private static long[] client(int port, int client) throws IOException {
+        long[] latencies = new long[OPERATIONS];
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            awaitPrompt(in);
+            for (int i = 0; i < OPERATIONS; i++) {
+                String name = "client-" + client + "-" + (i / 3);
+                String command = switch (i % 3) {
+                    case 0 -> "1\n1\n" + name + "\n4\n1\n1\n" + (100 + i) + "\n"; // добавить машину
+                    case 1 -> "4\n1\n" + name + "\n";                             // найти по названию
+                    default -> "5\n0\n0\n0\n0\n0\n1\n";                            // итоги по парку
+                };
+                long start = System.nanoTime();
+                out.write(command.getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                awaitPrompt(in);
+                latencies[i] = System.nanoTime() - start;
+            }
+            out.write("7\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+        return latencies;
+    }
+
+    // Читает ответ до приглашения меню (поиск подстроки по КМП)
+    private static void awaitPrompt(InputStream in) throws IOException {
+        int matched = 0;
+        while (matched < PROMPT.length) {
+            int b = in.read();
+            if (b < 0) throw new EOFException("Сервер закрыл соединение");
+            while (matched > 0 && PROMPT[matched] != (byte) b) matched = FAILURE[matched - 1];
+            if (PROMPT[matched] == (byte) b) matched++;
+        }
+    }
+
+    private static final int[] FAILURE = new int[PROMPT.length];
+
+    static {
+        for (int i = 1, k = 0; i < PROMPT.length; i++) {
+            while (k > 0 && PROMPT[i] != PROMPT[k]) k = FAILURE[k - 1];
+            if (PROMPT[i] == PROMPT[k]) k++;
+            FAILURE[i] = k;
+        }
+    }
+}
+
+public class Main {
+    private static final VehicleRegistry vehicles = new VehicleRegistry();
+    private static FleetJournal journal;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("bench-store")) {
+            FleetStoreBenchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-heap")) {
+            VehiclesHeapBenchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-journal")) {
+            FleetJournalBenchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-query")) {
+            FleetQueryBenchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-exchange")) {
+            FleetExchangeBenchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-sim")) {
+            FleetSimulationBenchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("bench-server")) {
+            FleetServerBenchmark.run(args.length > 1 ? Integer.parseInt(args[1]) : 64);
+            return;
+        }
+
+        try {
+            journal = FleetJournal.openConfigured(vehicles);
+        } catch (IOException | UncheckedIOException e) {
+            // Реестр мог загрузиться наполовину: работать с ним без журнала - незаметно потерять данные
+            System.err.println("Сохранённый транспорт не прочитан: " + e.getMessage());
+            System.err.println("Укажите другой каталог (-Dfleet.data=<каталог>)"
+                    + " или запустите без сохранения (-Dfleet.data=false)");
+            System.exit(1);
+        }
+        if (journal != null && !vehicles.isEmpty()) {
+            System.out.println("Загружено транспорта: " + vehicles.size());
+        }
+        FleetConsole console = new FleetConsole(vehicles, journal, new Scanner(System.in), System.out);
+
+        if (args.length == 2 && (args[0].equals("import") || args[0].equals("export"))) {
+            // import <файл> / export <файл> без меню
+            console.transfer(args[0].equals("import"), Path.of(args[1]));
+        } else if (args.length > 0 && args[0].equals("server")) {
+            // server [порт]: до Ctrl+C, снимок сохраняется при остановке
+            FleetServer server = new FleetServer(vehicles, journal, args.length > 1 ? Integer.parseInt(args[1]) : 7878);
+            Thread main = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                    main.join();
+                } catch (IOException | InterruptedException e) {
+                    System.err.println("Остановка сервера: " + e.getMessage());
+                }
+            }));
+            System.out.println("Сервер слушает порт " + server.getPort());
+            server.serve();
+            // serve() возвращается, как только закрыт приём; close() дожидается сеансов,
+            // чтобы снимок ниже не застал их добавлений
+            server.close();
+        } else {
+            console.run();
+        }
+
+        if (journal != null) {
+            journal.checkpoint(vehicles);
+            journal.close();
+        }
+    }
 }
@@ -0,0 +1,108 @@
+// Дополнительные операторы для калькулятора из 2.java, подключаемые через ServiceLoader
+// без изменений в Main: список классов - в META-INF/services/Main$CalculatorOperator.
+// Сборка и запуск из корня репозитория (2.java компилируется как Main.java,
+// потому что в нём public class Main):
+//   mkdir -p out && cp 2.java out/Main.java && javac -encoding UTF-8 -d out out/Main.java
+//   javac -encoding UTF-8 -cp out -d operators/out operators/ExtraOperators.java
+//   java -cp out:operators/out:operators Main
+// После этого в выражениях доступны: 3 min 5, 3 max 5, 100 log 10, 27 root 3.
+public class ExtraOperators {
+
+    // Меньшее из двух чисел
+    public static class Min implements Main.CalculatorOperator {
+        @Override
+        public String getSymbol() {
+            return "min";
+        }
+
+        @Override
+        public String name() {
+            return "MIN";
+        }
+
+        @Override
+        public int getPrecedence() {
+            return MULTIPLICATIVE;
+        }
+
+        @Override
+        public double apply(double a, double b) {
+            return Math.min(a, b);
+        }
+    }
+
+    // Большее из двух чисел
+    public static class Max implements Main.CalculatorOperator {
+        @Override
+        public String getSymbol() {
+            return "max";
+        }
+
+        @Override
+        public String name() {
+            return "MAX";
+        }
+
+        @Override
+        public int getPrecedence() {
+            return MULTIPLICATIVE;
+        }
+
+        @Override
+        public double apply(double a, double b) {
+            return Math.max(a, b);
+        }
+    }
+
+    // Логарифм a по основанию b: 100 log 10 = 2
+    public static class Log implements Main.CalculatorOperator {
+        @Override
+        public String getSymbol() {
+            return "log";
+        }
+
+        @Override
+        public String name() {
+            return "LOG";
+        }
+
+        @Override
+        public int getPrecedence() {
+            return EXPONENT;
+        }
+
+        @Override
+        public double apply(double a, double b) throws ArithmeticException {
+            double base = Math.log(b);
+            // Основание 1 - деление на ln 1 = 0
+            if (base == 0) throw new ArithmeticException("Ошибка - деление на 0.");
+            return Math.log(a) / base;
+        }
+    }
+
+    // Корень степени b из a: 27 root 3 = 3, -8 root 3 = -2
+    public static class Root implements Main.CalculatorOperator {
+        @Override
+        public String getSymbol() {
+            return "root";
+        }
+
+        @Override
+        public String name() {
+            return "ROOT";
+        }
+
+        @Override
+        public int getPrecedence() {
+            return EXPONENT;
+        }
+
+        @Override
+        public double apply(double a, double b) throws ArithmeticException {
+            if (b == 0) throw new ArithmeticException("Ошибка - деление на 0.");
+            // Нечётный корень из отрицательного числа определён, а Math.pow вернул бы NaN
+            if (a < 0 && b % 2 == 1 || a < 0 && b % 2 == -1) return -Math.pow(-a, 1 / b);
+            return Math.pow(a, 1 / b);
+        }
+    }
+}